@@ -0,0 +1,193 @@
+package citation_prediction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A coarse to fine search of the start grid used by 'newtonRaphson_ConvergenceTest', which solves only part of the grid.
+ * <br><br>
+ * The search works on the same (mu0, sigma0) lattice as the exhaustive search:
+ * <br>
+ * 	1. Every 'coarseFactor'-th start point along each axis (plus the last one) is solved.<br>
+ * 	2. Around each coarse point that converged, or nearly converged (the solve ran out of iterations but stayed inside
+ * 		the grid), the points of the neighbouring coarse cells are solved in grid order.<br>
+ * 	3. The refinement stops early once 'patience' solves in a row have not found a new unique lambda.<br>
+ * <br>
+ * The unique solutions are picked from the solved points in grid order with the same rules as the exhaustive search
+ * (see 'SolutionClusters'), so the two searches list the same solutions in the same order whenever the adaptive search
+ * reaches every basin. The basin of each solution only counts the start points that were solved. When nothing
+ * converges the search is repeated with the retry step, like the exhaustive search.
+ * <br><br>
+ * The number of solves done, and the number the exhaustive search would have done, are counted across every search
+ * (see {@link #getSolvesSaved()}). An instance can be shared between threads.
+ */
+public class AdaptiveSearch {
+
+	public static final int DEFAULT_COARSE_FACTOR = 3;
+	public static final int DEFAULT_PATIENCE = 24;
+
+	private final int coarseFactor;
+	private final int patience;
+	private final WSBSolver solver;
+
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong solves = new AtomicLong();
+	private final AtomicLong gridSolves = new AtomicLong();
+
+	/**
+	 * @param coarseFactor The number of fine grid steps between coarse start points.
+	 * @param patience The number of refinement solves in a row without a new unique lambda before the search stops.
+	 * @param solver The solver used for each start point.
+	 */
+	public AdaptiveSearch(int coarseFactor, int patience, WSBSolver solver) {
+		if (coarseFactor < 1) throw new IllegalArgumentException("The coarse factor must be at least 1.");
+		this.coarseFactor = coarseFactor;
+		this.patience = patience;
+		this.solver = solver;
+	}
+
+	/**
+	 * Uses the default solver ('ParksNewtonSolver').
+	 *
+	 * @param coarseFactor The number of fine grid steps between coarse start points.
+	 * @param patience The number of refinement solves in a row without a new unique lambda before the search stops.
+	 */
+	public AdaptiveSearch(int coarseFactor, int patience) {
+		this(coarseFactor, patience, new ParksNewtonSolver());
+	}
+
+	public AdaptiveSearch() {
+		this(DEFAULT_COARSE_FACTOR, DEFAULT_PATIENCE);
+	}
+
+	/**
+	 * Search the start grid for the unique WSB solutions of a citation history.
+	 *
+	 * @param data The citation history.
+	 * @param step The step of the fine grid (the step the exhaustive search would use).
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @return A list containing the WSB solutions.
+	 */
+	public ArrayList<LinkedHashMap<String, Double>> search(CitationData data, double step, double m) {
+
+		searches.incrementAndGet();
+
+		ArrayList<LinkedHashMap<String, Double>> solutions = search(data, step, m, new IterationState());
+		if (solutions.isEmpty()) {
+			solutions = search(data, CitationCore.GRID_RETRY_STEP, m, new IterationState());
+		}
+		return solutions;
+	}
+
+	private ArrayList<LinkedHashMap<String, Double>> search(CitationData data, double step, double m, IterationState l) {
+
+		ArrayList<Double> mu0s = CitationCore.gridPoints(CitationCore.GRID_START, CitationCore.GRID_MU_GUESS, step);
+		ArrayList<Double> sigma0s = CitationCore.gridPoints(CitationCore.GRID_START, CitationCore.GRID_SIGMA_GUESS, step);
+		int rows = mu0s.size();
+		int columns = sigma0s.size();
+
+		double muMax = mu0s.get(rows-1) + step;
+		double sigmaMax = sigma0s.get(columns-1) + step;
+
+		//The result of each solved start point, indexed like the exhaustive search (mu0 index * sigma0 count + sigma0 index).
+		boolean[] probed = new boolean[rows*columns];
+		double[][] results = new double[rows*columns][]; //lambda, mu, sigma (converged points only)
+		int count = 0;
+
+		//1. The coarse lattice.
+		TreeSet<Integer> refine = new TreeSet<Integer>();
+		for (int i : coarse(rows)) {
+			for (int j : coarse(columns)) {
+
+				int index = i*columns + j;
+				boolean converged = solver.solve(data, mu0s.get(i), sigma0s.get(j), m, l);
+				probed[index] = true;
+				count++;
+
+				boolean near = !converged && l.mu > 0 && l.mu < muMax && l.sigma > 0 && l.sigma < sigmaMax;
+				if (converged) { results[index] = new double[] { l.lambda, l.mu, l.sigma }; }
+
+				if (converged || near) {
+					for (int a=Math.max(0, i-coarseFactor+1); a<Math.min(rows, i+coarseFactor); a++) {
+						for (int b=Math.max(0, j-coarseFactor+1); b<Math.min(columns, j+coarseFactor); b++) {
+							refine.add(a*columns + b);
+						}
+					}
+				}
+			}
+		}
+
+		SolutionClusters found = new SolutionClusters();
+		for (double[] r : results) {
+			if (r != null) found.add(r[0], r[1], r[2]);
+		}
+
+		//2. and 3. Refine around the coarse points that converged until no new lambdas turn up.
+		int sinceNew = 0;
+		for (int index : refine) {
+			if (sinceNew >= patience) break;
+			if (probed[index]) continue;
+
+			probed[index] = true;
+			count++;
+			sinceNew++;
+
+			if (solver.solve(data, mu0s.get(index / columns), sigma0s.get(index % columns), m, l)) {
+				results[index] = new double[] { l.lambda, l.mu, l.sigma };
+
+				if (found.add(l.lambda, l.mu, l.sigma)) sinceNew = 0;
+			}
+		}
+
+		solves.addAndGet(count);
+		gridSolves.addAndGet(rows*columns);
+
+		//Pick the unique solutions in grid order, the same way as the exhaustive search.
+		SolutionClusters clusters = new SolutionClusters();
+		for (double[] r : results) {
+			if (r != null) clusters.add(r[0], r[1], r[2]);
+		}
+		return clusters.toSolutions();
+	}
+
+	/**
+	 * @return The indexes of the coarse points along an axis of 'size' points.
+	 */
+	private ArrayList<Integer> coarse(int size) {
+		ArrayList<Integer> r = new ArrayList<Integer>();
+		for (int i=0; i<size; i+=coarseFactor) { r.add(i); }
+		if (r.get(r.size()-1) != size-1) r.add(size-1);
+		return r;
+	}
+
+	/** @return The solver used for each start point. */
+	public WSBSolver getSolver() {
+		return solver;
+	}
+
+	/** @return The number of searches done. */
+	public long getSearches() {
+		return searches.get();
+	}
+
+	/** @return The number of Newton-Raphson solves done by every search so far. */
+	public long getSolves() {
+		return solves.get();
+	}
+
+	/** @return The number of Newton-Raphson solves the exhaustive search would have done on the same grids. */
+	public long getGridSolves() {
+		return gridSolves.get();
+	}
+
+	/** @return The number of Newton-Raphson solves saved compared with the exhaustive search. */
+	public long getSolvesSaved() {
+		return getGridSolves() - getSolves();
+	}
+
+	public String toString() {
+		return "adaptive(coarse=" + coarseFactor + ", patience=" + patience + ", solver=" + solver.getName() + ")";
+	}
+}
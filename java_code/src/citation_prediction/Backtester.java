@@ -0,0 +1,433 @@
+package citation_prediction;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class measures how well the WSB fits predict citations with a rolling origin: every paper is fitted on each of
+ * its first w years for every training window w of a set (like 3 to N-1 years), and the fit predicts the cumulative
+ * citations at the end of each year it did not see. The predictions are compared with the actual citations.
+ * <br><br>
+ * Year k of a paper (counting from 0, the year it was published) is spread over the days from 365k to 365(k+1) by
+ * 'fixData', so the cumulative citations at the end of year k are predicted at t = k+1 years (see 'CitationCurve').
+ * Each fit predicts from its solution with the largest basin. A fit without any solution is counted but not scored, and
+ * a training window without any citation is skipped (there is nothing to fit).
+ * <br><br>
+ * The errors are aggregated for each citation file, by training window and by horizon (the number of years past the
+ * end of the training window), as the mean absolute error, the root mean square error, the mean absolute percentage
+ * error (over the points with at least one citation), its median and the mean of ln((predicted+1)/(actual+1)), which
+ * shows whether the fits predict too many (above 0) or too few citations. A few fits that explode far past their
+ * training window dominate the means, so the median is the one to compare runs by. Every percentage error is kept, so
+ * the median is exact.
+ * <br><br>
+ * The fits are made by a {@link BatchFitter} (its solver, search and fit cache are used) on a pool of worker threads,
+ * one task per paper and training window, so the papers and windows of a file are fitted in parallel.
+ * <br><br>
+ * Usage: java citation_prediction.Backtester [-windows 3..N|3,5,10] [-grouped] [-adaptive] [-solver newton|lm] [-m 30] [-step 1] [-threads n] [-points points.csv] files...
+ */
+public class Backtester {
+
+	/** Fit every window from 3 years to one year less than each paper has. */
+	public static final String DEFAULT_WINDOWS = "3..N";
+
+	/**
+	 * The prediction errors of a group of points.
+	 */
+	public static class ErrorStats {
+		private long points;
+		private double absolute;
+		private double squared;
+		private long percentPoints;
+		private double percent;
+		private double logRatio;
+		private double[] percentErrors = new double[16]; //every percentage error, for the median
+
+		synchronized void add(double predicted, double actual) {
+			double e = predicted - actual;
+			points++;
+			absolute += Math.abs(e);
+			squared += e*e;
+			logRatio += Math.log((predicted+1)/(actual+1));
+			if (actual > 0) {
+				percentPoints++;
+				percent += Math.abs(e)/actual;
+				if (percentPoints > percentErrors.length) percentErrors = Arrays.copyOf(percentErrors, 2*percentErrors.length);
+				percentErrors[(int) percentPoints-1] = 100*Math.abs(e)/actual;
+			}
+		}
+
+		/** @return The number of points scored. */
+		public synchronized long getPoints() {
+			return points;
+		}
+
+		/** @return The mean absolute error. */
+		public synchronized double getMAE() {
+			return (points == 0) ? Double.NaN : absolute/points;
+		}
+
+		/** @return The root mean square error. */
+		public synchronized double getRMSE() {
+			return (points == 0) ? Double.NaN : Math.sqrt(squared/points);
+		}
+
+		/** @return The mean absolute percentage error, over the points with at least one citation. */
+		public synchronized double getMAPE() {
+			return (percentPoints == 0) ? Double.NaN : 100*percent/percentPoints;
+		}
+
+		/** @return The median absolute percentage error, over the points with at least one citation. */
+		public synchronized double getMdAPE() {
+			if (percentPoints == 0) return Double.NaN;
+			int n = (int) percentPoints;
+			double[] sorted = Arrays.copyOf(percentErrors, n);
+			Arrays.sort(sorted);
+			return (n % 2 == 1) ? sorted[n/2] : (sorted[n/2-1] + sorted[n/2])/2;
+		}
+
+		/** @return The mean of ln((predicted+1)/(actual+1)). */
+		public synchronized double getLogBias() {
+			return (points == 0) ? Double.NaN : logRatio/points;
+		}
+
+		public String toString() {
+			return String.format("%9d %12.4g %12.4g %12.4g%% %8.2f%% %9.4f", getPoints(), getMAE(), getRMSE(), getMAPE(), getMdAPE(), getLogBias());
+		}
+	}
+
+	/**
+	 * The errors of one citation file.
+	 */
+	public static class Report {
+		public final String name;
+		public final ErrorStats all = new ErrorStats();
+		public final TreeMap<Integer, ErrorStats> byWindow = new TreeMap<Integer, ErrorStats>();
+		public final TreeMap<Integer, ErrorStats> byHorizon = new TreeMap<Integer, ErrorStats>();
+		private final AtomicInteger papers = new AtomicInteger();
+		private final AtomicInteger fits = new AtomicInteger();
+		private final AtomicInteger unsolved = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final AtomicInteger empty = new AtomicInteger();
+
+		Report(String name) {
+			this.name = name;
+		}
+
+		private static ErrorStats get(TreeMap<Integer, ErrorStats> map, int key) {
+			synchronized (map) {
+				ErrorStats s = map.get(key);
+				if (s == null) {
+					s = new ErrorStats();
+					map.put(key, s);
+				}
+				return s;
+			}
+		}
+
+		/** @return The number of papers with at least one training window. */
+		public int getPapers() {
+			return papers.get();
+		}
+
+		/** @return The number of fits made. */
+		public int getFits() {
+			return fits.get();
+		}
+
+		/** @return The number of fits without any solution (they are not scored). */
+		public int getUnsolved() {
+			return unsolved.get();
+		}
+
+		/** @return The number of training windows skipped because they have no citations. */
+		public int getEmpty() {
+			return empty.get();
+		}
+
+		/** @return The number of fits that failed with an error. */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		public String toString() {
+			String nl = System.getProperty("line.separator");
+			String columns = "   points          MAE         RMSE          MAPE     MdAPE  log bias";
+			StringBuilder sb = new StringBuilder();
+			sb.append("Backtest of ").append(name).append(": ").append(getPapers()).append(" papers, ").append(getFits()).append(" fits (")
+				.append(getUnsolved()).append(" without a solution, ").append(getFailed()).append(" failed, ")
+				.append(getEmpty()).append(" windows without citations skipped)").append(nl);
+			sb.append("  all             ").append(columns).append(nl);
+			sb.append("                  ").append(all).append(nl);
+			sb.append("  training window ").append(columns).append(nl);
+			synchronized (byWindow) {
+				for (Integer w : byWindow.keySet()) sb.append(String.format("  %10d years ", w)).append(byWindow.get(w)).append(nl);
+			}
+			sb.append("  horizon         ").append(columns).append(nl);
+			synchronized (byHorizon) {
+				for (Integer h : byHorizon.keySet()) sb.append(String.format("  %10d years ", h)).append(byHorizon.get(h)).append(nl);
+			}
+			return sb.toString();
+		}
+	}
+
+	private final BatchFitter fitter;
+	private final int threads;
+	private int[] windows; //the training windows, or null for a range
+	private int minWindow = 3;
+	private int maxWindow = 0; //0 means one year less than each paper has
+	private PrintWriter points;
+
+	/**
+	 * @param fitter Fits each paper and window (its solver, search and caches are used, its threads and windows are not).
+	 * @param threads The number of worker threads.
+	 */
+	public Backtester(BatchFitter fitter, int threads) {
+		this.fitter = fitter;
+		this.threads = threads;
+	}
+
+	/**
+	 * Choose the training windows, either as a range 'min..max' (max 'N' means one year less than each paper has) or
+	 * as a list '3,5,10'. A paper is only fitted for the windows that leave at least one year to predict.
+	 *
+	 * @param spec The training windows.
+	 */
+	public void setWindows(String spec) {
+		int dots = spec.indexOf("..");
+		if (dots >= 0) {
+			String max = spec.substring(dots+2).trim();
+			minWindow = Integer.parseInt(spec.substring(0, dots).trim());
+			maxWindow = max.equalsIgnoreCase("N") ? 0 : Integer.parseInt(max);
+			windows = null;
+			if (minWindow < 1 || (maxWindow != 0 && maxWindow < minWindow)) throw new IllegalArgumentException("Not a range of training windows: " + spec);
+		} else {
+			String[] w = spec.split(",");
+			windows = new int[w.length];
+			for (int i=0; i<w.length; i++) {
+				windows[i] = Integer.parseInt(w[i].trim());
+				if (windows[i] < 1) throw new IllegalArgumentException("A training window must be at least 1 year: " + spec);
+			}
+			Arrays.sort(windows);
+		}
+	}
+
+	/**
+	 * @param points Receives one line per scored point, 'file,paper number,paper id,window,year,actual,predicted', or null.
+	 */
+	public void setPoints(PrintWriter points) {
+		this.points = points;
+	}
+
+	/**
+	 * @param years The number of years of citations of a paper.
+	 * @return The training windows the paper is fitted for.
+	 */
+	public int[] windowsFor(int years) {
+		if (windows != null) {
+			int n = 0;
+			while (n < windows.length && windows[n] < years) n++;
+			return Arrays.copyOf(windows, n);
+		}
+		int max = (maxWindow == 0) ? years-1 : Math.min(maxWindow, years-1);
+		if (max < minWindow) return new int[0];
+		int[] r = new int[max-minWindow+1];
+		for (int i=0; i<r.length; i++) r[i] = minWindow+i;
+		return r;
+	}
+
+	/**
+	 * @param solutions The WSB solutions of a fit.
+	 * @return The solution with the largest basin (the first one when the basins are the same), or null if there is none.
+	 */
+	public static LinkedHashMap<String, Double> best(ArrayList<LinkedHashMap<String, Double>> solutions) {
+		LinkedHashMap<String, Double> best = null;
+		double basin = -1;
+		for (LinkedHashMap<String, Double> s : solutions) {
+			Double b = s.get("basin");
+			double v = (b == null) ? 1 : b;
+			if (v > basin) {
+				best = s;
+				basin = v;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Backtest every paper of a citation file.
+	 *
+	 * @param filename The citation file.
+	 * @return The errors of the file.
+	 */
+	public Report run(String filename) throws IOException, InterruptedException {
+		return run(CitationCache.open(filename), filename);
+	}
+
+	/**
+	 * Backtest a list of papers.
+	 *
+	 * @param papers The citation histories.
+	 * @param name The name of the list in the report.
+	 * @return The errors of the papers.
+	 */
+	public Report run(Iterable<PaperRecord> papers, final String name) throws InterruptedException {
+
+		final Report r = new Report(name);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(4 * threads);
+
+		try {
+			int pn = 0;
+			for (final PaperRecord paper : papers) {
+
+				final int paperNumber = ++pn;
+				int[] ws = windowsFor(paper.citationsPerYear.length);
+				if (ws.length > 0) r.papers.incrementAndGet();
+
+				//The fits of every window share one expanded history.
+				final PaperFitContext context = new PaperFitContext(paper);
+				for (final int window : ws) {
+
+					if (context.getCitationCount(window) == 0) {
+						r.empty.incrementAndGet();
+						continue;
+					}
+
+					inFlight.acquire(); //back-pressure: wait for a fit to finish before reading further ahead.
+					workers.execute(new Runnable() {
+						public void run() {
+							try {
+								score(r, fitter.fitPaper(context, paperNumber, window));
+							} catch (RuntimeException e) {
+								r.failed.incrementAndGet();
+								System.err.println("ERROR: Could not backtest paper #" + paperNumber + " (train=" + window + ").");
+								e.printStackTrace();
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		if (points != null) points.flush();
+
+		return r;
+	}
+
+	/**
+	 * This function scores one fit against the years its training window left out.
+	 */
+	private void score(Report r, BatchFitter.PaperFit fit) {
+
+		r.fits.incrementAndGet();
+		LinkedHashMap<String, Double> s = best(fit.solutions);
+		if (s == null) {
+			r.unsolved.incrementAndGet();
+			return;
+		}
+
+		int[] c = fit.paper.citationsPerYear;
+		int held = c.length - fit.window;
+		double[] years = new double[held];
+		double[] predicted = new double[held];
+		for (int i=0; i<held; i++) years[i] = fit.window + i + 1;
+		CitationCurve.cumulative(fit.m, s.get("lambda"), s.get("mu"), s.get("sigma"), years, predicted);
+
+		long actual = 0;
+		for (int k=0; k<fit.window; k++) actual += c[k];
+
+		ErrorStats window = Report.get(r.byWindow, fit.window);
+		StringBuilder sb = (points == null) ? null : new StringBuilder();
+		for (int i=0; i<held; i++) {
+			actual += c[fit.window+i];
+			r.all.add(predicted[i], actual);
+			window.add(predicted[i], actual);
+			Report.get(r.byHorizon, i+1).add(predicted[i], actual);
+			if (sb != null) {
+				sb.append(r.name).append(',').append(fit.paperNumber).append(',').append(fit.paperId).append(',').append(fit.window)
+					.append(',').append(fit.window+i).append(',').append(actual).append(',').append(predicted[i]).append(System.getProperty("line.separator"));
+			}
+		}
+		if (sb != null) {
+			synchronized (points) { points.print(sb); }
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		boolean grouped = false;
+		boolean adaptive = false;
+		WSBSolver solver = new ParksNewtonSolver();
+		String windows = DEFAULT_WINDOWS;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String pointsFile = null;
+		double m = 30;
+		double step = 1;
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].equals("-grouped")) { grouped = true; }
+			else if (args[0].equals("-adaptive")) { adaptive = true; }
+			else if (args[0].equals("-solver") && args.length > 1) {
+				solver = BatchFitter.parseSolver(args[1]);
+				if (solver == null) { System.err.println("ERROR: Unknown solver '" + args[1] + "' (expected " + BatchFitter.SOLVER_NAMES + ")."); args = new String[0]; break; }
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			else if (args[0].equals("-windows") && args.length > 1) { windows = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-m") && args.length > 1) { m = Double.valueOf(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-step") && args.length > 1) { step = Double.valueOf(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-threads") && args.length > 1) { threads = Integer.parseInt(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-points") && args.length > 1) { pointsFile = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else { args = new String[0]; break; }
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		if (args.length < 1) {
+			System.err.println("Usage: java citation_prediction.Backtester [-windows 3..N|3,5,10] [-grouped] [-adaptive] [-solver newton|lm] [-m 30] [-step 1] [-threads n] [-points points.csv] files...");
+			System.exit(1);
+		}
+
+		CitationCore.verbose = false;
+
+		BatchFitter bf = new BatchFitter(threads, 4 * threads, step, m, BatchFitter.DEFAULT_WINDOWS);
+		bf.setGroupedData(grouped);
+		bf.setSolver(solver);
+		bf.setFitCache(new FitCache());
+		if (adaptive) { bf.setAdaptiveSearch(new AdaptiveSearch(AdaptiveSearch.DEFAULT_COARSE_FACTOR, AdaptiveSearch.DEFAULT_PATIENCE, solver)); }
+
+		Backtester bt = new Backtester(bf, threads);
+		bt.setWindows(windows);
+
+		PrintWriter points = null;
+		if (pointsFile != null) {
+			points = new PrintWriter(new BufferedWriter(new FileWriter(pointsFile)));
+			points.println("file,paper_number,paper_id,window,year,actual,predicted");
+			bt.setPoints(points);
+		}
+
+		try {
+			for (String file : args) {
+				long start = System.nanoTime();
+				Report r = bt.run(file);
+				System.out.print(r);
+				System.out.println(String.format("  (%.1f s)", (System.nanoTime() - start)/1e9));
+			}
+		} finally {
+			if (points != null) points.close();
+		}
+		System.err.println(solver.getName() + ": " + solver.getStats());
+	}
+}
@@ -0,0 +1,694 @@
+package citation_prediction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.math.plot.Plot2DPanel;
+
+/**
+ * This class fits whole citation files without any user interaction. Every paper is fitted for each
+ * training window (5 years, 10 years and all years by default) on a fixed size pool of worker threads,
+ * and each fit is handed to a {@link ResultListener} as soon as it finishes. A window that cannot be fitted (for
+ * example one without any citations) is handed on as a failed fit with its error (see 'PaperFit.failed').
+ * <br><br>
+ * Papers are read from the file one at a time and only a bounded number of fits are allowed to be
+ * waiting or running at once, so a very large file never has to fit in memory.
+ * <br><br>
+ * Papers are read from a {@link CitationCache} of the file, which is built the first time a file is fitted
+ * and rebuilt whenever the file changes.
+ * <br><br>
+ * An optional {@link FitCache} skips papers whose citation history has already been fitted, in this run or
+ * (with -fitcache) in an earlier one.
+ * <br><br>
+ * The start grid of each fit is searched exhaustively, or with an {@link AdaptiveSearch} (-adaptive), and each start point is
+ * solved with a {@link WSBSolver} (-solver newton, the default, or -solver lm for Levenberg-Marquardt).
+ * <br><br>
+ * With -plots the fits of each paper are also plotted to a PNG file in the given directory (see {@link PlotWriter}).
+ * The plots are rendered offscreen, so no display is needed.
+ * <br><br>
+ * With -shard index/count only the papers of one {@link Shard} of the file are fitted (the papers keep their number in
+ * the whole file), so a file can be fitted on several machines and the results combined with {@link ShardMerger}.
+ * With -out the fits are written to a result file (see 'ShardMerger.header') instead of System.out.
+ * <br><br>
+ * With -results the fits are also streamed to a CSV or JSONL file (see {@link ResultWriter}) as each paper finishes. If
+ * the run stops part way, running it again with the same -results file skips the papers that were already written.
+ * A resumed run would leave the skipped papers out of its -out file, so -results can not be used with -out.
+ * <br><br>
+ * The run's {@link Metrics} are registered with JMX, printed to System.err at the end and, with -metrics, every given
+ * number of seconds while the run goes on.
+ * <br><br>
+ * Usage: java citation_prediction.BatchFitter [-grouped] [-adaptive] [-solver newton|lm] [-nocache] [-fitcache cachefile] [-plots dir] [-metrics seconds] [-shard index/count] [-out resultfile] [-results file.csv|file.jsonl] file [m] [step] [threads]
+ */
+public class BatchFitter {
+
+	/** The training windows fitted for each paper (0 means all years), the same ones used by the test harness. */
+	public static final int[] DEFAULT_WINDOWS = { 5, 10, 0 };
+
+	/** The names of the solvers accepted by -solver (see 'parseSolver'). */
+	public static final String SOLVER_NAMES = "newton or lm";
+
+	/** The last setting of a run (see 'input'), the shard, the only setting that differs between the shards of a file. */
+	static final String SHARD_SETTING = ", shard=";
+
+	/**
+	 * This function turns the -solver option of the command line tools into a solver.
+	 *
+	 * @param name 'newton' for 'ParksNewtonSolver' or 'lm' for 'LevenbergMarquardtSolver'.
+	 * @return The solver, or null if the name is not one of them.
+	 */
+	public static WSBSolver parseSolver(String name) {
+		if (name.equals("newton")) return new ParksNewtonSolver();
+		if (name.equals("lm")) return new LevenbergMarquardtSolver();
+		return null;
+	}
+
+	/**
+	 * Receives each fit as it finishes. This is called from the worker threads, so it must be thread safe.
+	 */
+	public interface ResultListener {
+		void fitted(PaperFit fit);
+	}
+
+	/**
+	 * The WSB solutions found for one paper and one training window.
+	 */
+	public static class PaperFit {
+		public PaperRecord paper;
+		public String paperId;
+		public int paperNumber; //papers indexed as 1,2,3.... in the file
+		public int window; //0 means all years of training
+		public double m;
+		public ArrayList<LinkedHashMap<String, Double>> solutions;
+		public String error; //why the fit failed (it has no solutions), or null
+
+		public PaperFit() {
+		}
+
+		/**
+		 * @param paper The citation history.
+		 * @param paperNumber The number of the paper in its file.
+		 * @param window The number of years of training data used (0 means all years).
+		 * @param m The average number of new references contained in each paper for a journal.
+		 * @param solutions The WSB solutions found.
+		 */
+		public PaperFit(PaperRecord paper, int paperNumber, int window, double m, ArrayList<LinkedHashMap<String, Double>> solutions) {
+			this.paper = paper;
+			this.paperId = paper.id;
+			this.paperNumber = paperNumber;
+			this.window = window;
+			this.m = m;
+			this.solutions = solutions;
+		}
+
+		/**
+		 * @param paper The citation history.
+		 * @param paperNumber The number of the paper in its file.
+		 * @param window The number of years of training data used (0 means all years).
+		 * @param m The average number of new references contained in each paper for a journal.
+		 * @param error What went wrong.
+		 * @return A fit without solutions that records why the paper could not be fitted.
+		 */
+		public static PaperFit failed(PaperRecord paper, int paperNumber, int window, double m, Exception error) {
+			PaperFit fit = new PaperFit(paper, paperNumber, window, m, new ArrayList<LinkedHashMap<String, Double>>());
+			fit.error = String.valueOf(error).replace('\n', ' ').replace('\r', ' ');
+			return fit;
+		}
+
+		public String toString() {
+			return "P#" + paperNumber + "(" + paperId + ", train=" + (window == 0 ? "All" : String.valueOf(window)) + "):: " + (error != null ? "FAILED: " + error : solutions.toString());
+		}
+	}
+
+	/**
+	 * This function plots the fits of one paper against its citations (see 'PlotRenderer.plotSolutions'). The windows
+	 * are plotted in reverse order, so the fit of all years comes first like in the test harness.
+	 *
+	 * @param fits The fits of every training window of one paper.
+	 * @param title The title of the plot.
+	 * @return The plot, ready to render.
+	 */
+	public static Plot2DPanel plotFits(List<PaperFit> fits, String title) {
+
+		ArrayList<PaperFit> sorted = new ArrayList<PaperFit>(fits);
+		Collections.sort(sorted, new Comparator<PaperFit>() {
+			public int compare(PaperFit a, PaperFit b) {
+				//0 (all years) first, then the longest window first.
+				int wa = (a.window == 0) ? Integer.MAX_VALUE : a.window;
+				int wb = (b.window == 0) ? Integer.MAX_VALUE : b.window;
+				return (wa < wb) ? 1 : (wa == wb ? 0 : -1);
+			}
+		});
+
+		ArrayList<String> legends = new ArrayList<String>();
+		ArrayList<ArrayList<LinkedHashMap<String, Double>>> solutions = new ArrayList<ArrayList<LinkedHashMap<String, Double>>>();
+		for (PaperFit f : sorted) {
+			legends.add("p#" + f.paperNumber + ": (train=" + (f.window == 0 ? "All" : String.valueOf(f.window)) + ")--->" + (f.error != null ? "FAILED: " + f.error : f.solutions.toString()));
+			solutions.add(f.solutions);
+		}
+
+		return PlotRenderer.plotSolutions(CitationCore.fixData(sorted.get(0).paper, 0), sorted.get(0).m, title, legends, solutions);
+	}
+
+	/**
+	 * Passes each fit on to another listener and, once every training window of a paper has been fitted, plots the
+	 * paper's fits (see 'plotFits') to '(paper id)_(paper number)_m(m).png' with a {@link PlotRenderer}.
+	 */
+	public static class PlotWriter implements ResultListener {
+
+		private final ResultListener next;
+		private final PlotRenderer renderer;
+		private final File dir;
+		private final String title;
+		private final int windowCount;
+		private final HashMap<Integer, ArrayList<PaperFit>> pending = new HashMap<Integer, ArrayList<PaperFit>>();
+
+		/**
+		 * @param next The listener that receives every fit, or null.
+		 * @param renderer Renders the plots.
+		 * @param dir The directory the plots are written to.
+		 * @param title The title of every plot.
+		 * @param windowCount The number of training windows fitted for each paper.
+		 */
+		public PlotWriter(ResultListener next, PlotRenderer renderer, File dir, String title, int windowCount) {
+			this.next = next;
+			this.renderer = renderer;
+			this.dir = dir;
+			this.title = title;
+			this.windowCount = windowCount;
+		}
+
+		public void fitted(PaperFit fit) {
+
+			if (next != null) next.fitted(fit);
+
+			final ArrayList<PaperFit> fits;
+			synchronized (pending) {
+				ArrayList<PaperFit> f = pending.get(fit.paperNumber);
+				if (f == null) {
+					f = new ArrayList<PaperFit>(windowCount);
+					pending.put(fit.paperNumber, f);
+				}
+				f.add(fit);
+				if (f.size() < windowCount) return;
+				fits = pending.remove(fit.paperNumber);
+			}
+
+			try {
+				renderer.submit(new Callable<Plot2DPanel>() {
+					public Plot2DPanel call() {
+						return plotFits(fits, title);
+					}
+				}, new File(dir, fit.paperId + "_" + fit.paperNumber + "_m" + fit.m + ".png"));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private int threads;
+	private int maxInFlight;
+	private double step;
+	private double m;
+	private int[] windows;
+	private boolean groupedData;
+	private boolean useCache = true;
+	private FitCache fitCache;
+	private AdaptiveSearch search;
+	private WSBSolver solver = new ParksNewtonSolver();
+	private Shard shard;
+	private Map<Integer, String> completed;
+
+	/**
+	 * @param threads The number of worker threads.
+	 * @param maxInFlight The maximum number of fits waiting or running before reading more papers blocks.
+	 * @param step The step used to search the start grid (see newtonRaphson_ConvergenceTest).
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param windows The training windows to fit for each paper (0 means all years).
+	 */
+	public BatchFitter(int threads, int maxInFlight, double step, double m, int[] windows) {
+		this.threads = threads;
+		this.maxInFlight = maxInFlight;
+		this.step = step;
+		this.m = m;
+		this.windows = windows;
+	}
+
+	/**
+	 * Uses one thread per processor, the default training windows and allows four fits per thread in flight.
+	 *
+	 * @param step The step used to search the start grid (see newtonRaphson_ConvergenceTest).
+	 * @param m The average number of new references contained in each paper for a journal.
+	 */
+	public BatchFitter(double step, double m) {
+		this(Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors(), step, m, DEFAULT_WINDOWS);
+	}
+
+	/**
+	 * Fit from the yearly citation counts ('GroupedCitationData') instead of expanding every citation with 'fixData'.
+	 *
+	 * @param groupedData True to fit from the yearly counts.
+	 */
+	public void setGroupedData(boolean groupedData) {
+		this.groupedData = groupedData;
+	}
+
+	/**
+	 * Read files through their binary cache (the default) or parse the csv file every time.
+	 *
+	 * @param useCache True to read files through their cache.
+	 */
+	public void setUseCache(boolean useCache) {
+		this.useCache = useCache;
+	}
+
+	/**
+	 * Reuse the solutions of papers with the same citation history (see 'FitCache.key').
+	 *
+	 * @param fitCache The cache of fits, or null to fit every paper.
+	 */
+	public void setFitCache(FitCache fitCache) {
+		this.fitCache = fitCache;
+	}
+
+	/**
+	 * Search the start grid of each fit with an adaptive search instead of solving every start point.
+	 *
+	 * @param search The adaptive search, or null to search the whole grid.
+	 */
+	public void setAdaptiveSearch(AdaptiveSearch search) {
+		this.search = search;
+	}
+
+	/**
+	 * Choose the solver used for each start point of the exhaustive search (an adaptive search uses its own solver).
+	 *
+	 * @param solver The solver.
+	 */
+	public void setSolver(WSBSolver solver) {
+		this.solver = solver;
+	}
+
+	/**
+	 * @return The solver used for each start point of the exhaustive search.
+	 */
+	public WSBSolver getSolver() {
+		return solver;
+	}
+
+	/**
+	 * Only fit the papers of one shard of each file (the papers keep their number in the whole file).
+	 *
+	 * @param shard The shard, or null to fit every paper.
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Skip the papers written by an earlier run (see 'ResultWriter.getCompleted'). A paper is only skipped when its
+	 * number and id both match, so a changed file is fitted again.
+	 *
+	 * @param completed Paper number to paper id of the papers to skip, or null to fit every paper.
+	 */
+	public void setCompleted(Map<Integer, String> completed) {
+		this.completed = completed;
+	}
+
+	/**
+	 * @param paperNumber The number of the paper in its file.
+	 * @param paperId The id of the paper.
+	 * @return True if the paper was written by an earlier run and is skipped.
+	 */
+	public boolean isCompleted(int paperNumber, String paperId) {
+		return completed != null && paperId.equals(completed.get(paperNumber));
+	}
+
+	/**
+	 * @return The settings that change the fits (m, step, training windows, grouped data and the search and solver), on
+	 * 		one line, to check that results written by different runs can be put together (see 'ResultWriter').
+	 */
+	public String getSettings() {
+		return settings(String.valueOf(m));
+	}
+
+	/**
+	 * @param filename The citation file fitted.
+	 * @return The settings of a run of this fitter over the given file, 'getSettings' with the file and the shard (see
+	 * 		'input'), to check that a result file is resumed by the same run.
+	 */
+	public String getRunSettings(String filename) {
+		return getSettings() + input(shard, filename);
+	}
+
+	/**
+	 * @param m The value (or values, for an m sweep) of m.
+	 * @return The settings of this fitter with the given m (see 'getSettings').
+	 */
+	String settings(String m) {
+		return "m=" + m + ", step=" + step + ", windows=" + Arrays.toString(windows) + ", grouped=" + groupedData
+				+ ", search=" + (search == null ? "grid, solver=" + solver.getName() : search.toString());
+	}
+
+	/**
+	 * This function describes the input of a run, the name and size of the citation file, as 'ShardMerger.header' does,
+	 * and the shard fitted. The shard comes last, so the runs of the shards of a file differ only after SHARD_SETTING.
+	 *
+	 * @param shard The shard fitted, or null when the whole file is fitted.
+	 * @param filename The citation file fitted.
+	 * @return The input, to append to the settings of a run.
+	 */
+	static String input(Shard shard, String filename) {
+		File f = new File(filename);
+		return ", file=" + f.getName() + ", size=" + f.length() + SHARD_SETTING + (shard == null ? new Shard(0, 1) : shard);
+	}
+
+	/**
+	 * @return The training windows fitted for each paper (0 means all years).
+	 */
+	public int[] getWindows() {
+		return windows.clone();
+	}
+
+	/**
+	 * @return The average number of new references contained in each paper for a journal.
+	 */
+	public double getM() {
+		return m;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		boolean grouped = false;
+		boolean cache = true;
+		boolean adaptive = false;
+		WSBSolver solver = new ParksNewtonSolver();
+		String fitCacheFile = null;
+		String plotDir = null;
+		long metricsPeriod = 0;
+		Shard shard = null;
+		String outFile = null;
+		String resultsFile = null;
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].equals("-grouped")) { grouped = true; }
+			else if (args[0].equals("-nocache")) { cache = false; }
+			else if (args[0].equals("-adaptive")) { adaptive = true; }
+			else if (args[0].equals("-solver") && args.length > 1) {
+				solver = BatchFitter.parseSolver(args[1]);
+				if (solver == null) { System.err.println("ERROR: Unknown solver '" + args[1] + "' (expected " + BatchFitter.SOLVER_NAMES + ")."); args = new String[0]; break; }
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			else if (args[0].equals("-fitcache") && args.length > 1) { fitCacheFile = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-plots") && args.length > 1) { plotDir = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if ((args[0].equals("-shard") || args[0].equals("--shard")) && args.length > 1) { shard = Shard.parse(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-out") && args.length > 1) { outFile = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-results") && args.length > 1) { resultsFile = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-metrics") && args.length > 1) { metricsPeriod = (long) (1000*Double.valueOf(args[1])); args = Arrays.copyOfRange(args, 1, args.length); }
+			else { args = new String[0]; break; }
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		if (outFile != null && resultsFile != null) {
+			System.err.println("ERROR: -out and -results can not be used together (a resumed run would leave the papers it skips out of the -out file).");
+			args = new String[0];
+		}
+
+		if (args.length < 1) {
+			System.err.println("Usage: java citation_prediction.BatchFitter [-grouped] [-adaptive] [-solver newton|lm] [-nocache] [-fitcache cachefile] [-plots dir] [-metrics seconds] [-shard index/count] [-out resultfile] [-results file.csv|file.jsonl] file [m] [step] [threads]");
+			System.exit(1);
+		}
+
+		double m = args.length > 1 ? Double.valueOf(args[1]) : 30;
+		double step = args.length > 2 ? Double.valueOf(args[2]) : 1;
+		int threads = args.length > 3 ? Integer.valueOf(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		CitationCore.verbose = false;
+		
+		//Nothing is ever shown, so plots can be rendered without a display.
+		if (System.getProperty("java.awt.headless") == null) { System.setProperty("java.awt.headless", "true"); }
+
+		BatchFitter bf = new BatchFitter(threads, 4 * threads, step, m, DEFAULT_WINDOWS);
+		bf.setGroupedData(grouped);
+		bf.setUseCache(cache);
+		bf.setSolver(solver);
+		bf.setShard(shard);
+		if (adaptive) { bf.setAdaptiveSearch(new AdaptiveSearch(AdaptiveSearch.DEFAULT_COARSE_FACTOR, AdaptiveSearch.DEFAULT_PATIENCE, solver)); }
+
+		FitCache fitCache = new FitCache();
+		if (fitCacheFile != null && new File(fitCacheFile).exists()) { fitCache.load(fitCacheFile); }
+		bf.setFitCache(fitCache);
+
+		//The result file is written under a temporary name until it is complete.
+		File outTmp = (outFile == null) ? null : new File(outFile + ".tmp");
+		final PrintWriter out = (outFile == null) ? new PrintWriter(System.out) : new PrintWriter(new BufferedWriter(new FileWriter(outTmp)));
+		if (outFile != null) { out.println(ShardMerger.header(shard, args[0], bf)); }
+
+		ResultListener listener = new ResultListener() {
+			public synchronized void fitted(PaperFit fit) {
+				out.println(fit.toString());
+			}
+		};
+		ResultWriter results = null;
+		if (resultsFile != null) {
+			try {
+				results = new ResultWriter(new File(resultsFile), ResultWriter.Format.of(resultsFile), DEFAULT_WINDOWS.length, bf.getRunSettings(args[0]), true);
+			} catch (IOException e) {
+				System.err.println("ERROR: " + e.getMessage());
+				System.exit(1);
+			}
+			bf.setCompleted(results.getCompleted());
+			if (results.getResumed() > 0) { System.err.println("Resuming " + resultsFile + ": skipping the " + results.getResumed() + " papers already written."); }
+
+			final ResultListener print = listener;
+			final ResultWriter write = results;
+			listener = new ResultListener() {
+				public void fitted(PaperFit fit) {
+					print.fitted(fit);
+					write.fitted(fit);
+				}
+			};
+		}
+		PlotRenderer renderer = null;
+		if (plotDir != null) {
+			renderer = new PlotRenderer(threads, 4 * threads, PlotRenderer.DEFAULT_WIDTH, PlotRenderer.DEFAULT_HEIGHT);
+			listener = new PlotWriter(listener, renderer, new File(plotDir), "m=" + m + ", Filename: " + args[0], DEFAULT_WINDOWS.length);
+		}
+
+		Metrics.GLOBAL.register();
+		ScheduledExecutorService metricsDump = (metricsPeriod > 0) ? Metrics.GLOBAL.startDump(System.err, metricsPeriod) : null;
+
+		int fits = bf.fit(args[0], listener);
+		if (metricsDump != null) { metricsDump.shutdown(); }
+
+		if (outFile != null) {
+			out.println(ShardMerger.footer(fits));
+			out.close();
+			File f = new File(outFile);
+			if ((f.exists() && !f.delete()) || !outTmp.renameTo(f)) throw new IOException("Could not write the result file " + outFile);
+		} else {
+			out.flush();
+		}
+		System.err.println("Finished " + fits + " fits" + (shard == null ? "." : " (shard " + shard + ")."));
+		if (results != null) {
+			results.close();
+			System.err.println(results.toString());
+		}
+		if (renderer != null) {
+			renderer.finish();
+			System.err.println("Wrote " + renderer.getWritten() + " plots to " + plotDir + (renderer.getFailed() > 0 ? " (" + renderer.getFailed() + " failed)." : "."));
+		}
+		System.err.println(fitCache.toString());
+		if (adaptive) { System.err.println("Adaptive search: " + bf.search.getSolves() + " solves, " + bf.search.getSolvesSaved() + " saved."); }
+		System.err.println(solver.getName() + ": " + solver.getStats());
+		System.err.print(Metrics.GLOBAL.toString());
+
+		if (fitCacheFile != null) { fitCache.save(fitCacheFile); }
+	}
+
+	/**
+	 * Fit every paper in a csv file of citation histories. Lines that cannot be parsed are reported and skipped.
+	 *
+	 * @param filename The filename and path containing the citation data.
+	 * @param listener Receives each fit as it finishes.
+	 * @return The number of fits completed.
+	 */
+	public int fit(String filename, ResultListener listener) throws IOException, InterruptedException {
+
+		if (useCache) { return fit(CitationCache.open(filename), listener); }
+
+		CitationReader in = new CitationReader(filename, true, CitationReader.PRINT_ERRORS);
+		try {
+			return fit(in, listener);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Fit every paper in a list of citation histories.
+	 *
+	 * @param papers The citation histories.
+	 * @param listener Receives each fit as it finishes.
+	 * @return The number of fits completed.
+	 */
+	public int fit(Iterable<PaperRecord> papers, final ResultListener listener) throws InterruptedException {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final AtomicInteger completed = new AtomicInteger();
+
+		try {
+			int pn = 0;
+			for (final PaperRecord paper : papers) {
+
+				final int paperNumber = ++pn;
+				if (shard != null && !shard.contains(paper.id)) continue;
+				if (isCompleted(paperNumber, paper.id)) continue;
+				final PaperFitContext context = new PaperFitContext(paper); //shared by the fits of every window
+
+				for (final int window : windows) {
+
+					inFlight.acquire(); //back-pressure: wait for a fit to finish before reading further ahead.
+					workers.execute(new Runnable() {
+						public void run() {
+							try {
+								PaperFit fit;
+								try {
+									fit = fitPaper(context, paperNumber, window);
+								} catch (RuntimeException e) {
+									//Written as a failed row, so the paper still has a fit for every window and is
+									//	written, checkpointed, plotted and merged like any other.
+									System.err.println("ERROR: Could not fit paper #" + paperNumber + " (train=" + window + ").");
+									e.printStackTrace();
+									fit = PaperFit.failed(paper, paperNumber, window, m, e);
+								}
+								listener.fitted(fit);
+								completed.incrementAndGet();
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+
+		return completed.get();
+	}
+
+	/**
+	 * Fit one paper for one training window on the calling thread.
+	 *
+	 * @param paper The citation history.
+	 * @param paperNumber The number of the paper in its file.
+	 * @param window The number of years of training data to use (0 means all years).
+	 * @return The WSB solutions found.
+	 */
+	public PaperFit fitPaper(PaperRecord paper, int paperNumber, int window) {
+		return fitPaper(new PaperFitContext(paper), paperNumber, window);
+	}
+
+	/**
+	 * Fit one paper for one training window on the calling thread. Every window of a paper should be fitted from the same
+	 * context, so the citation history is only expanded once.
+	 *
+	 * @param context The citation history, prepared for fitting any training window (see 'PaperFitContext').
+	 * @param paperNumber The number of the paper in its file.
+	 * @param window The number of years of training data to use (0 means all years).
+	 * @return The WSB solutions found.
+	 */
+	public PaperFit fitPaper(PaperFitContext context, int paperNumber, int window) {
+
+		PaperRecord paper = context.paper;
+		PaperFit fit = new PaperFit();
+		fit.paper = paper;
+		fit.paperId = paper.id;
+		fit.paperNumber = paperNumber;
+		fit.window = window;
+		fit.m = m;
+
+		String key = null;
+		if (fitCache != null) {
+			key = FitCache.key(paper.citationsPerYear, window, groupedData, step, m, search == null ? "grid, solver=" + solver.getName() : search.toString());
+			fit.solutions = fitCache.get(key);
+			if (fit.solutions != null) {
+				Metrics.GLOBAL.counter(Metrics.PAPER_CACHED).increment();
+				return fit;
+			}
+		}
+
+		long start = System.nanoTime();
+		long[] before = Metrics.GLOBAL.threadSolves();
+
+		//The papers are already spread across the workers so each start grid is solved on this thread.
+		CitationData data = groupedData ? GroupedCitationData.fromPaper(paper, window) : context.window(window);
+		fit.solutions = (search == null) ? CitationCore.newtonRaphson_ConvergenceTest(data, step, m, null, solver) : search.search(data, step, m);
+
+		long[] after = Metrics.GLOBAL.threadSolves();
+		Metrics.GLOBAL.paperFitted(paper.id, window, System.nanoTime() - start, after[0] - before[0], after[1] - before[1]);
+
+		if (fitCache != null) { fitCache.put(key, fit.solutions); }
+
+		return fit;
+	}
+
+	/**
+	 * Refit one paper on the calling thread after its citation history has changed (see 'CitationCore.newtonRaphson_Refit'),
+	 * starting from the solutions of its previous fit. The fit cache is not used.
+	 *
+	 * @param paper The new citation history.
+	 * @param previous The previous fit of the paper for the same training window.
+	 * @return The WSB solutions found.
+	 */
+	public PaperFit refitPaper(PaperRecord paper, PaperFit previous) {
+
+		PaperFit fit = new PaperFit();
+		fit.paper = paper;
+		fit.paperId = paper.id;
+		fit.paperNumber = previous.paperNumber;
+		fit.window = previous.window;
+		fit.m = m;
+
+		CitationData data = groupedData ? GroupedCitationData.fromPaper(paper, fit.window) : new PaperFitContext(paper).window(fit.window);
+		fit.solutions = CitationCore.newtonRaphson_Refit(data, previous.solutions, step, m, null, search == null ? solver : search.getSolver());
+
+		return fit;
+	}
+
+	/**
+	 * Convenience to fit a list of papers and collect the fits (in the order they finished).
+	 *
+	 * @param papers The citation histories.
+	 * @return The fits, in the order they finished.
+	 */
+	public List<PaperFit> fitAll(Iterable<PaperRecord> papers) throws InterruptedException {
+
+		final List<PaperFit> fits = new ArrayList<PaperFit>();
+		fit(papers, new ResultListener() {
+			public void fitted(PaperFit fit) {
+				synchronized (fits) { fits.add(fit); }
+			}
+		});
+		return fits;
+	}
+}
@@ -0,0 +1,402 @@
+package citation_prediction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary, column by column copy of a csv file of citation histories, so a file only has to be parsed once.
+ * <br><br>
+ * The cache is memory-mapped when it is opened and papers are read straight from the mapped columns, nothing
+ * is parsed. {@link #open(String)} keeps the cache next to the csv file (csv filename + {@link #SUFFIX}) and
+ * rebuilds it whenever the csv file has changed since the cache was written.
+ * <br><br>
+ * File layout (big endian, every column starts on an 8 byte boundary):
+ * <br>
+ * 	Header: magic, version (ints), csv length, csv last modified, paper count, citation count total, id byte total (longs)<br>
+ * 	Publish years: int[paper count]<br>
+ * 	Count offsets: long[paper count+1], the citation counts of paper i are counts[offsets[i]..offsets[i+1])<br>
+ * 	Id offsets: long[paper count+1], the id of paper i is the UTF-8 bytes ids[offsets[i]..offsets[i+1])<br>
+ * 	Citation counts: int[citation count total]<br>
+ * 	Ids: byte[id byte total]<br>
+ */
+public class CitationCache implements Iterable<PaperRecord> {
+
+	/** Added to the csv filename to get the filename of its cache. */
+	public static final String SUFFIX = ".cache";
+
+	static final int MAGIC = 0x43495443; //"CITC"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 48;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Region file;
+	private long sourceLength;
+	private long sourceModified;
+	private int paperCount;
+
+	private long years;
+	private long countOffsets;
+	private long idOffsets;
+	private long counts;
+	private long ids;
+
+	private CitationCache(Region file) throws IOException {
+
+		this.file = file;
+
+		if (file.length < HEADER_SIZE || file.getInt(0) != MAGIC) throw new IOException("Not a citation cache.");
+		if (file.getInt(4) != VERSION) throw new IOException("Citation cache version " + file.getInt(4) + " is not supported.");
+
+		sourceLength = file.getLong(8);
+		sourceModified = file.getLong(16);
+		paperCount = (int) file.getLong(24);
+		long countTotal = file.getLong(32);
+		long idTotal = file.getLong(40);
+
+		years = HEADER_SIZE;
+		countOffsets = align(years + 4L*paperCount);
+		idOffsets = countOffsets + 8L*(paperCount+1);
+		counts = idOffsets + 8L*(paperCount+1);
+		ids = align(counts + 4L*countTotal);
+
+		if (ids + idTotal > file.length) throw new IOException("The citation cache is truncated.");
+	}
+
+	/**
+	 * Open the cache of a csv file, building it first if it does not exist or the csv file has changed since it was built.
+	 * Lines of the csv file that cannot be parsed are printed and left out of the cache.
+	 *
+	 * @param csvFilename The filename and path containing the citation data.
+	 * @return The cache.
+	 */
+	public static CitationCache open(String csvFilename) throws IOException {
+
+		File source = new File(csvFilename);
+		File cache = new File(csvFilename + SUFFIX);
+
+		if (cache.exists()) {
+			try {
+				CitationCache c = load(cache.getPath());
+				if (c.isCurrent(source)) return c;
+			} catch (IOException e) {
+				//An old version or a broken file, build it again.
+			}
+		}
+
+		try {
+			build(csvFilename, cache.getPath(), CitationReader.PRINT_ERRORS);
+		} catch (IOException e) {
+			//Another process (another shard of the same file) may have built the cache at the same time.
+			if (cache.exists()) {
+				try {
+					CitationCache c = load(cache.getPath());
+					if (c.isCurrent(source)) return c;
+				} catch (IOException e2) {
+					//Not usable either, report the build's error.
+				}
+			}
+			throw e;
+		}
+		return load(cache.getPath());
+	}
+
+	/**
+	 * Memory-map a cache file without checking it against its csv file.
+	 *
+	 * @param cacheFilename The filename and path of the cache.
+	 * @return The cache.
+	 */
+	public static CitationCache load(String cacheFilename) throws IOException {
+
+		RandomAccessFile f = new RandomAccessFile(cacheFilename, "r");
+		try {
+			//The mapping stays valid after the file is closed.
+			return new CitationCache(new Region(f.getChannel()));
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Convert a csv file to a cache file. The csv file is read twice, once to size the columns and once to fill them,
+	 * so no column has to be held in memory. The cache is written to a temporary file of its own (in the directory of the
+	 * cache) and then moved over the cache in one atomic step, so a failed build never leaves a broken cache behind and
+	 * several processes can build the same cache at once: each publishes a complete cache and the last one stays.
+	 *
+	 * @param csvFilename The filename and path containing the citation data.
+	 * @param cacheFilename The filename and path of the cache to write.
+	 * @param errors Told about every line of the csv file that could not be parsed (those papers are left out).
+	 */
+	public static void build(String csvFilename, String cacheFilename, CitationReader.ErrorHandler errors) throws IOException {
+
+		File source = new File(csvFilename);
+		long sourceLength = source.length();
+		long sourceModified = source.lastModified();
+
+		//Pass 1: size the columns.
+		long paperCount = 0;
+		long countTotal = 0;
+		long idTotal = 0;
+
+		CitationReader in = new CitationReader(csvFilename, true, errors);
+		try {
+			for (PaperRecord paper : in) {
+				paperCount++;
+				countTotal += paper.citationsPerYear.length;
+				idTotal += paper.id.getBytes(UTF8).length;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (paperCount > Integer.MAX_VALUE) throw new IOException("Too many papers for one citation cache: " + paperCount);
+
+		long years = HEADER_SIZE;
+		long countOffsets = align(years + 4*paperCount);
+		long idOffsets = countOffsets + 8*(paperCount+1);
+		long counts = idOffsets + 8*(paperCount+1);
+		long ids = align(counts + 4*countTotal);
+
+		//Pass 2: fill the columns. The second pass must see the same papers, so its errors are not reported again.
+		File cache = new File(cacheFilename).getAbsoluteFile();
+		File tmp = File.createTempFile(cache.getName() + ".", ".tmp", cache.getParentFile());
+		boolean built = false;
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(sourceLength).putLong(sourceModified);
+			header.putLong(paperCount).putLong(countTotal).putLong(idTotal);
+			header.flip();
+			channel.write(header, 0);
+
+			Column yearColumn = new Column(channel, years);
+			Column countOffsetColumn = new Column(channel, countOffsets);
+			Column idOffsetColumn = new Column(channel, idOffsets);
+			Column countColumn = new Column(channel, counts);
+			Column idColumn = new Column(channel, ids);
+
+			long countOffset = 0;
+			long idOffset = 0;
+			countOffsetColumn.putLong(0);
+			idOffsetColumn.putLong(0);
+
+			long written = 0;
+			in = new CitationReader(csvFilename, true, new CitationReader.ErrorHandler() {
+				public void error(long lineNumber, String line, Exception e) {}
+			});
+			try {
+				for (PaperRecord paper : in) {
+					if (written++ == paperCount) throw new IOException("The csv file changed while the citation cache was built.");
+
+					byte[] id = paper.id.getBytes(UTF8);
+
+					yearColumn.putInt(paper.year);
+					for (int c : paper.citationsPerYear) { countColumn.putInt(c); }
+					idColumn.put(id);
+
+					countOffset += paper.citationsPerYear.length;
+					idOffset += id.length;
+					countOffsetColumn.putLong(countOffset);
+					idOffsetColumn.putLong(idOffset);
+				}
+			} finally {
+				in.close();
+			}
+			if (written != paperCount || countOffset != countTotal || idOffset != idTotal) throw new IOException("The csv file changed while the citation cache was built.");
+
+			yearColumn.flush();
+			countOffsetColumn.flush();
+			idOffsetColumn.flush();
+			countColumn.flush();
+			idColumn.flush();
+			out.setLength(ids + idTotal);
+			out.close();
+
+			try {
+				Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			built = true;
+		} finally {
+			out.close();
+			if (!built) tmp.delete();
+		}
+	}
+
+	/**
+	 * @param source The csv file this cache was built from.
+	 * @return True if the csv file has not changed since this cache was built.
+	 */
+	public boolean isCurrent(File source) {
+		return source.exists() && source.length() == sourceLength && source.lastModified() == sourceModified;
+	}
+
+	/**
+	 * @return The number of papers in the cache.
+	 */
+	public int size() {
+		return paperCount;
+	}
+
+	/**
+	 * @param paper The index of the paper (0 first).
+	 * @return The paper id.
+	 */
+	public String getId(int paper) {
+
+		long from = file.getLong(idOffsets + 8L*paper);
+		long to = file.getLong(idOffsets + 8L*(paper+1));
+
+		byte[] b = new byte[(int) (to - from)];
+		for (int i=0; i<b.length; i++) { b[i] = file.get(ids + from + i); }
+		return new String(b, UTF8);
+	}
+
+	/**
+	 * @param paper The index of the paper (0 first).
+	 * @return The year the paper was published.
+	 */
+	public int getYear(int paper) {
+		return file.getInt(years + 4L*paper);
+	}
+
+	/**
+	 * @param paper The index of the paper (0 first).
+	 * @return The number of years of citation history the paper has.
+	 */
+	public int getYearCount(int paper) {
+		return (int) (file.getLong(countOffsets + 8L*(paper+1)) - file.getLong(countOffsets + 8L*paper));
+	}
+
+	/**
+	 * @param paper The index of the paper (0 first).
+	 * @param year The year since publication (0 first).
+	 * @return The number of citations the paper received that year.
+	 */
+	public int getCitations(int paper, int year) {
+		return file.getInt(counts + 4*(file.getLong(countOffsets + 8L*paper) + year));
+	}
+
+	/**
+	 * @param paper The index of the paper (0 first).
+	 * @return A copy of the paper's citation history.
+	 */
+	public PaperRecord get(int paper) {
+
+		long from = counts + 4*file.getLong(countOffsets + 8L*paper);
+		int[] c = new int[getYearCount(paper)];
+		for (int i=0; i<c.length; i++) { c[i] = file.getInt(from + 4L*i); }
+
+		return new PaperRecord(getId(paper), getYear(paper), c);
+	}
+
+	/**
+	 * @return The papers in the order they appear in the csv file.
+	 */
+	public Iterator<PaperRecord> iterator() {
+		return new Iterator<PaperRecord>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < paperCount;
+			}
+
+			public PaperRecord next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return get(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * A whole file memory-mapped in 1GB chunks, so files over 2GB can be read. Every int and long in the cache is
+	 * aligned to its size, so none of them cross a chunk boundary.
+	 */
+	private static final class Region {
+		private static final int CHUNK_BITS = 30;
+		private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+		final long length;
+		private final ByteBuffer[] chunks;
+
+		Region(FileChannel channel) throws IOException {
+			length = channel.size();
+			chunks = new ByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_BITS)];
+
+			for (int i=0; i<chunks.length; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_MASK + 1, length - start));
+			}
+		}
+
+		byte get(long position) {
+			return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK));
+		}
+
+		int getInt(long position) {
+			return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+		}
+
+		long getLong(long position) {
+			return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+		}
+	}
+
+	/**
+	 * Buffered writes of one column, starting at a fixed position of the file.
+	 */
+	private static final class Column {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		private long position;
+
+		Column(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		void putInt(int v) throws IOException {
+			if (buf.remaining() < 4) flush();
+			buf.putInt(v);
+		}
+
+		void putLong(long v) throws IOException {
+			if (buf.remaining() < 8) flush();
+			buf.putLong(v);
+		}
+
+		void put(byte[] b) throws IOException {
+			for (byte v : b) {
+				if (!buf.hasRemaining()) flush();
+				buf.put(v);
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) { position += channel.write(buf, position); }
+			buf.clear();
+		}
+	}
+}
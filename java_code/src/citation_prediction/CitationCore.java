@@ -2,30 +2,23 @@ package citation_prediction;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.Rectangle;
-import java.awt.Robot;
-import java.awt.image.BufferedImage;
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.lang.Math;
 
-import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.DecompositionSolver;
 import org.math.plot.Plot2DPanel;
 import org.math.plot.plotObjects.BaseLabel;
 
@@ -82,12 +75,8 @@ import org.math.plot.plotObjects.BaseLabel;
  * This class makes use of several packages of the Apache Commons Library (Apache License, V2.0):  http://commons.apache.org/
  *<br>
  *  Specifically:<br>
- *  	Math.Linear (RealMatrix, LUDecomposition, DecompositionSolver, MatrixUtils)
  *  	Math.Distribution (NormalDistributation: CDF and PDF functions)
- *  	CSV.CSVRecord
- *  	CSV.CSVParser
- *  	Note: the commons.csv package is part of the Sandbox package and therefore is considered in beta with no official releases.
- *  		this class uses the most recent build to extract data from a tabbed delimited csv file.
+ *  	Citation files are read with CitationReader (see PaperRecord.fromRecord to convert records read with commons.csv).
  *<br>  
  *  The graphs are all done using the jmathplot library (BSD 3-clause License), which can be found at:<br>
  *  	http://code.google.com/p/jmathplot/
@@ -111,7 +100,45 @@ import org.math.plot.plotObjects.BaseLabel;
 
 public class CitationCore {
 	
-	private NormalDistribution nd = new NormalDistribution();
+	/** Print the progress of every solve and start grid to the console (turn off for batch runs). */
+	public static volatile boolean verbose = true;
+	
+	/** The start grid of 'newtonRaphson_ConvergenceTest': mu0 and sigma0 go from GRID_START to (guess+2). */
+	static final double GRID_START = .1;
+	static final double GRID_MU_GUESS = 10;
+	static final double GRID_SIGMA_GUESS = 10;
+	/** The step of the second search when the first finds no solutions. */
+	static final double GRID_RETRY_STEP = .1;
+	
+	//Pivots of the Jacobian smaller than this are treated as singular (the default threshold of commons-math LUDecomposition).
+	private static final double SINGULAR_PIVOT = 1e-11;
+	
+	/** The maximum number of Newton-Raphson iterations for each start point. */
+	public int maxIterations = 31;
+	
+	/** A solve has converged once a Newton-Raphson step is smaller than this. */
+	public double stepTolerance = 1e-8;
+	
+	/**
+	 * A solve has also converged once max(|fn|, |gn|) is smaller than this (0, the default, turns the residual test off).
+	 * fn and gn are not scaled, they flatten out towards 0 far from the solution, so only use a value well below the
+	 * residual of the solutions of the data being fitted.
+	 */
+	public double residualTolerance = 0;
+	
+	/**
+	 * Halve each Newton-Raphson step (up to 'maxBacktracks' times) until max(|fn|, |gn|) goes down. A solve whose residual
+	 * does not go down after every halving has not converged.
+	 */
+	public boolean backtracking = false;
+	public int maxBacktracks = 8;
+	
+	/** Lists only the csv files of a directory (leaving out their caches, see CitationCache). */
+	static final FilenameFilter CSV_FILES = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(".csv");
+		}
+	};
 	
 	public static void main(String [] args) throws IOException {		
 		
@@ -140,19 +167,19 @@ public class CitationCore {
 			
 			//Add test here
 			
-			//uncomment this code so you can run test on many versions of 'm' one after the other.
-			/*tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,2.9));
-			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,20));
-			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,30));
-			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,50));
-			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,70));
-			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,100));*/
+			//Fit a file for many versions of 'm' at once (see MSweep).
+			tests.put(++testIndex, new TestCase_MSweep(s, 1, MSweep.DEFAULT_MS));
 			
 			
 			double m = 30;
 			tests.put(++testIndex, new TestCase_AutoSearchData(s,"",1,m));
 			tests.put(++testIndex, new TestCase_AutoSearchData(s,"(all papers with NO pause) ::",1, m, true, false));
 			tests.put(++testIndex, new TestCase_AutoSearchData(s,"(all papers with pause) ::",1, m, true, true));			
+			tests.put(++testIndex, new TestCase_GroupedDataValidation(1, m, 8, 1e-4));
+			tests.put(++testIndex, new TestCase_AdaptiveSearchValidation(1, m, new AdaptiveSearch()));
+			tests.put(++testIndex, new TestCase_SolverComparison(1, m));
+			tests.put(++testIndex, new TestCase_SolutionClusters(.25));
+			tests.put(++testIndex, new TestCase_ResultResume(1, m, 12, 3));
 		}
 		
 		
@@ -227,6 +254,9 @@ public class CitationCore {
 		 * a file to run the NRC Search algorithm on. The test will attempt to find WSB solutions
 		 * for 5 year, 10 year, and all years of citation data available. A graph will be 
 		 * presented to the user and saved for later reference.
+		 * <br><br>
+		 * When the papers are run without pausing nothing is presented, and the papers are fitted, plotted and saved
+		 * by a 'FitPipeline' instead of one after another.
 		 * 
 		 * 
 		 * @author Josiah Neuberger
@@ -264,11 +294,9 @@ public class CitationCore {
 			
 			public boolean run_test() {
 		
-				String solutionString = "";
 				String dirname = "papers/";
-				String nl = System.getProperty("line.separator");
 				File fdir = new File(dirname);
-				ArrayList<String> filenames = new ArrayList<String>(Arrays.asList(fdir.list()));
+				ArrayList<String> filenames = new ArrayList<String>(Arrays.asList(fdir.list(CSV_FILES)));
 				
 				//Get available files to parse for paper's citation history
 				int i=0;
@@ -281,96 +309,927 @@ public class CitationCore {
 
 				assert( (filenumber_input>=0) && (filenumber_input<filenames.size()) );
 				
-				List<CSVRecord> papersfromfile =  CitationCore.getCSVData(dirname+filenames.get(filenumber_input), CSVFormat.DEFAULT, false);
+				List<PaperRecord> papersfromfile;
+				try {
+					papersfromfile = CitationReader.readAll(dirname+filenames.get(filenumber_input));
+				} catch (IOException e) {
+					System.err.println("ERROR: There was an error opening or reading the input file.");
+					System.err.println("ERROR:" + dirname+filenames.get(filenumber_input));
+					return false;
+				}
 				
-				List <CSVRecord> papers;
+				List <PaperRecord> papers;
 				int pn;
 				
-				//Either run all the papers in the selected file or
-				//	let the user choose a paper.
-				if (!runAllPapers) {
-					System.out.println("Please choose a paper #: ");
-					int papernumber_input = s.nextInt();
-					
-					papers = papersfromfile.subList(papernumber_input-1, papernumber_input);
-					pn = papernumber_input-1;
+				//Either run all the papers in the selected file or
+				//	let the user choose a paper.
+				if (!runAllPapers) {
+					for (int r=0; r<papersfromfile.size(); r++) { System.out.println("#" + (r+1) + " " + papersfromfile.get(r)); }
+					System.out.println("Please choose a paper #: ");
+					int papernumber_input = s.nextInt();
+					
+					papers = papersfromfile.subList(papernumber_input-1, papernumber_input);
+					pn = papernumber_input-1;
+				
+				} else {
+					papers = papersfromfile;
+					pn = 0;
+				}
+				
+				String fn = filenames.get(filenumber_input);
+				String fnid = fn.substring(0,fn.indexOf("_"));
+				File dir = new File("saved_plots/" + fn);
+				
+				//Stream the solutions of each paper to disk as soon as it is fitted. A run of the whole file carries on
+				//	from where an earlier run stopped (see ResultWriter), a single paper always starts a new file.
+				//	Both paths fit like a default BatchFitter, so its settings are the settings of the file.
+				File resultFile = new File(dir, runAllPapers ? "solutions.csv" : "solutions_p" + (pn+1) + ".csv");
+				BatchFitter fitter = new BatchFitter(step, m);
+				ResultWriter results;
+				try {
+					results = new ResultWriter(resultFile, ResultWriter.Format.CSV, BatchFitter.DEFAULT_WINDOWS.length, fitter.getRunSettings(dirname + fn), runAllPapers);
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not open the result file " + resultFile);
+					e.printStackTrace();
+					return false;
+				}
+				if (results.getResumed() > 0) { System.out.println("Resuming " + resultFile + ": skipping the " + results.getResumed() + " papers already fitted."); }
+				
+				//Without pauses nobody looks at the plots, so fit, plot and save the papers in a pipeline.
+				if (!pauseBetweenPapers) {
+					int threads = Runtime.getRuntime().availableProcessors();
+					fitter.setCompleted(results.getCompleted());
+					FitPipeline pipeline = new FitPipeline(fitter, threads, threads, FitPipeline.DEFAULT_QUEUE_CAPACITY);
+					pipeline.setPlots(dir, fnid, "m=" + m + ", Filename: " + dirname + fn + " (papers indexed as 1,2,3....)");
+					final ResultWriter write = results;
+					pipeline.setListener(new BatchFitter.ResultListener() {
+						public void fitted(BatchFitter.PaperFit fit) {
+							System.out.println(fit.toString());
+							write.fitted(fit);
+						}
+					});
+					
+					try {
+						try {
+							pipeline.run(papers);
+						} finally {
+							results.close();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					System.out.println(pipeline.toString());
+					System.out.println(results.toString());
+					
+					return true; //User driven so this test always returns true.
+				}
+				
+				//process papers for WSB solutions and present graphs
+				for (int p=0; p<papers.size(); p++) {
+					
+					pn++; //The actual number of the paper from the file
+					if (papers.get(p).id.equals(results.getCompleted().get(pn))) continue;
+					
+					//Extract citation history and reformat for NRM for this paper
+					final String paper = "Filename: " + dirname+ filenames.get(filenumber_input) + " (papers indexed as 1,2,3....)";
+					PaperFitContext context = new PaperFitContext(papers.get(p)); //every training window is a view of it
+					final double[][] dataAll = CitationCore.fixData(papers.get(p), 0); //for the plot
+					
+					//Find WSB solutions
+					ArrayList<LinkedHashMap<String, Double>> solutions5 = CitationCore.newtonRaphson_ConvergenceTest(context.window(5), step, m, ForkJoinPool.commonPool());
+					ArrayList<LinkedHashMap<String, Double>> solutions10 = CitationCore.newtonRaphson_ConvergenceTest(context.window(10), step, m, ForkJoinPool.commonPool());
+					ArrayList<LinkedHashMap<String, Double>> solutionsAllData = CitationCore.newtonRaphson_ConvergenceTest(context.window(0), step, m, ForkJoinPool.commonPool());
+					
+					results.fitted(new BatchFitter.PaperFit(papers.get(p), pn, 5, m, solutions5));
+					results.fitted(new BatchFitter.PaperFit(papers.get(p), pn, 10, m, solutions10));
+					results.fitted(new BatchFitter.PaperFit(papers.get(p), pn, 0, m, solutionsAllData));
+					
+					System.out.println("************************P#" + pn + " Solutions**************************");
+					System.out.print("Solutions (5 years of training): " + solutions5.toString() + "\nSolutions (10 years of training):" + solutions10.toString() + "\nSolutions (all years of training): " + solutionsAllData.toString() + "\n");
+					
+					final List<String> legends = Arrays.asList("p#" + pn + ": (train=All)--->"+solutionsAllData.toString(), "p#" + pn + ": (train=10)--->"+solutions10.toString(), "p#" + pn + ": (train=5)--->"+solutions5.toString());
+					final List<ArrayList<LinkedHashMap<String, Double>>> solutions = Arrays.asList(solutionsAllData, solutions10, solutions5);
+					Callable<Plot2DPanel> plot = new Callable<Plot2DPanel>() {
+						public Plot2DPanel call() {
+							return PlotRenderer.plotSolutions(dataAll, m, "m=" + m + ", " + paper, legends, solutions);
+						}
+					};
+					
+					//Save the graph for later reference
+					File plotFile = new File(dir + "/" + fnid + "_" + pn + "_m" + m + ".png");
+					try {
+						PlotRenderer.writePNG(plot.call(), plotFile, PlotRenderer.DEFAULT_WIDTH, PlotRenderer.DEFAULT_HEIGHT);
+						
+						//A plot can only be in one window, so show the user a second copy.
+						if (!GraphicsEnvironment.isHeadless()) {
+							JFrame f = new JFrame("m=" + m + ", " + paper);
+							f.setContentPane(plot.call());
+							f.setBounds(0, 0, PlotRenderer.DEFAULT_WIDTH, PlotRenderer.DEFAULT_HEIGHT);
+							f.setVisible(true);
+						}
+					} catch (Exception e) {
+						System.err.println("ERROR: Could not save the plot " + plotFile);
+						e.printStackTrace();
+					}
+					
+					System.out.println("Please press enter to move onto the next paper.");
+					s.nextLine();
+				}
+				
+				try {
+					results.close();
+					System.out.println(results.toString());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				
+				return true; //User driven so this test always returns true.
+			}
+		}
+		
+		/**
+		 * Override this class to create a test case that fits the same paper in two ways and checks that both find the
+		 * same WSB solutions. You must implement the functions compare and report.
+		 * <br><br>
+		 * Every paper in every file in 'papers/' is compared for each training window, followed by the hand built
+		 * histories of 'edgeCases'. A training window without any citations is skipped (there is nothing to fit). Each
+		 * fit where the two ways differ is printed as a MISMATCH.
+		 *
+		 */
+		public abstract class TestCase_FitComparison extends TestCase {
+			
+			int[] windows;
+			
+			//The counts of the last run.
+			int fits;
+			int mismatches;
+			int skipped;
+			
+			TestCase_FitComparison(String name, int[] windows) {
+				super(name, TestCase.TYPE_STAND_ALONE);
+				
+				this.windows = windows;
+			}
+			
+			/**
+			 * This function fits one paper in both ways.
+			 * 
+			 * @param paper The citation history.
+			 * @param window The number of years of training data (0 means all years).
+			 * @return Null if both fits found the same solutions, otherwise the solutions of both fits.
+			 */
+			abstract String compare(PaperRecord paper, int window);
+			
+			/**
+			 * This function prints what the run found once every paper has been compared.
+			 * 
+			 * @return True if the test passed.
+			 */
+			abstract boolean report();
+			
+			/**
+			 * @return The hand built histories compared after the files (by default 'edgeCaseHistories').
+			 */
+			List<PaperRecord> edgeCases() {
+				return edgeCaseHistories();
+			}
+			
+			public boolean run_test() {
+				
+				String dirname = "papers/";
+				ArrayList<String> filenames = new ArrayList<String>(Arrays.asList(new File(dirname).list(CSV_FILES)));
+				
+				fits = 0;
+				mismatches = 0;
+				skipped = 0;
+				
+				boolean wasVerbose = CitationCore.verbose;
+				CitationCore.verbose = false;
+				
+				try {
+					for (String filename : filenames) {
+						try {
+							compareAll(filename, CitationReader.readAll(dirname + filename));
+						} catch (IOException e) {
+							System.err.println("ERROR: Could not read " + dirname + filename);
+							return false;
+						}
+					}
+					compareAll("edge cases", edgeCases());
+				} finally {
+					CitationCore.verbose = wasVerbose;
+				}
+				
+				return report();
+			}
+			
+			private void compareAll(String source, List<PaperRecord> papers) {
+				
+				for (int p=0; p<papers.size(); p++) {
+					for (int w : windows) {
+						
+						PaperRecord paper = papers.get(p);
+						if (citationCount(paper, w) == 0) { skipped++; continue; }
+						
+						String difference = compare(paper, w);
+						fits++;
+						
+						if (difference != null) {
+							mismatches++;
+							System.err.println("MISMATCH: " + source + " P#" + (p+1) + "(" + paper.id + ", train=" + w + ")\n" + difference);
+						}
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @param paper The citation history.
+		 * @param window The number of years of training data (0 means all years).
+		 * @return The number of citations in the training window.
+		 */
+		int citationCount(PaperRecord paper, int window) {
+			int[] years = paper.citationsPerYear;
+			int count = 0;
+			for (int i=0; i<years.length && (window == 0 || i<window); i++) { count += Math.max(years[i], 0); }
+			return count;
+		}
+		
+		/**
+		 * @return Citation histories at the edges of what the fitting has to handle: a single citation, years without
+		 * 		any citations (some training windows have none at all), one year, a long flat tail, a late burst and a year
+		 * 		with many citations. The 5 and 10 year windows of the short histories are longer than the history.
+		 */
+		List<PaperRecord> edgeCaseHistories() {
+			
+			ArrayList<PaperRecord> r = new ArrayList<PaperRecord>();
+			r.add(new PaperRecord("one-citation", 2000, new int[] { 1 }));
+			r.add(new PaperRecord("quiet-start", 2000, new int[] { 0, 0, 3, 0, 5, 2, 0, 1 }));
+			r.add(new PaperRecord("late-start", 2000, new int[] { 0, 0, 0, 0, 0, 0, 3, 4, 6, 2, 1 }));
+			r.add(new PaperRecord("one-year", 2000, new int[] { 40 }));
+			
+			int[] flat = new int[15];
+			Arrays.fill(flat, 1);
+			r.add(new PaperRecord("flat-tail", 2000, flat));
+			
+			r.add(new PaperRecord("late-burst", 2000, new int[] { 1, 0, 0, 0, 0, 0, 0, 0, 0, 60, 80 }));
+			r.add(new PaperRecord("large-year", 2000, new int[] { 3, 500, 20, 5 }));
+			return r;
+		}
+		
+		/**
+		 * @param a Unique WSB solutions.
+		 * @param b Unique WSB solutions.
+		 * @param tolerance The largest difference in lambda between two solutions that are the same.
+		 * @return True if both lists have the same number of solutions and each lambda is within the tolerance of the
+		 * 		lambda in the same place of the other list.
+		 */
+		static boolean sameLambdas(ArrayList<LinkedHashMap<String, Double>> a, ArrayList<LinkedHashMap<String, Double>> b, double tolerance) {
+			if (a.size() != b.size()) return false;
+			for (int i=0; i<a.size(); i++) {
+				if (!(Math.abs(a.get(i).get("lambda") - b.get(i).get("lambda")) < tolerance)) return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * @param a Unique WSB solutions.
+		 * @param b Unique WSB solutions.
+		 * @return The largest difference in lambda, mu or sigma between the solutions in the same place of both lists,
+		 * 		relative to the value in 'a' (or absolute when it is less than 1), or infinity if the lists have a different
+		 * 		number of solutions.
+		 */
+		static double maxRelativeDifference(ArrayList<LinkedHashMap<String, Double>> a, ArrayList<LinkedHashMap<String, Double>> b) {
+			if (a.size() != b.size()) return Double.POSITIVE_INFINITY;
+			double max = 0;
+			for (int i=0; i<a.size(); i++) {
+				for (String key : new String[] { "lambda", "mu", "sigma" }) {
+					double e = a.get(i).get(key);
+					max = Math.max(max, Math.abs(e - b.get(i).get(key)) / Math.max(1, Math.abs(e)));
+				}
+			}
+			return max;
+		}
+		
+		/**
+		 * This class implements a test case which fits every paper in every file in 'papers/' (5 years, 10 years and all years
+		 * of training) twice, once with the citation data expanded to one timestamp per citation and once with the yearly counts
+		 * ('GroupedCitationData'), and checks that both find the same WSB solutions.
+		 * <br><br>
+		 * The grouped data is created with a low exact limit so most of the years use the closed form sums. The error of the
+		 * closed form sums falls off with the fourth power of the number of citations in the year, so the default limit
+		 * ('GroupedCitationData.DEFAULT_EXACT_LIMIT') is much more accurate than the limit tested here. Besides the shared
+		 * edge cases, the years of the hand built histories sit on either side of the exact limit.
+		 *
+		 */
+		private class TestCase_GroupedDataValidation extends TestCase_FitComparison {
+			
+			double step;
+			double m;
+			int exactLimit;
+			double tolerance; //Maximum relative difference allowed between the two solutions.
+			double maxDifference;
+			
+			TestCase_GroupedDataValidation(double step, double m, int exactLimit, double tolerance) {
+				super("Grouped data vs expanded data validation with step=" + step + ", m=" + m + ", exact limit=" + exactLimit, new int[] { 5, 10, 0 });
+				
+				this.step = step;
+				this.m = m;
+				this.exactLimit = exactLimit;
+				this.tolerance = tolerance;
+			}
+			
+			List<PaperRecord> edgeCases() {
+				List<PaperRecord> r = edgeCaseHistories();
+				int l = exactLimit;
+				r.add(new PaperRecord("exact-limit", 2000, new int[] { l, l+1, l-1, l, l+1, 2*l, 2*l+1 }));
+				r.add(new PaperRecord("just-over-limit", 2000, new int[] { l+1, l+1, l+1, l+1, l+1, l+1 }));
+				return r;
+			}
+			
+			String compare(PaperRecord paper, int window) {
+				
+				int[] years = paper.citationsPerYear;
+				double[] counts = new double[window == 0 ? years.length : Math.min(window, years.length)];
+				for (int i=0; i<counts.length; i++) { counts[i] = years[i]; }
+				
+				ArrayList<LinkedHashMap<String, Double>> expanded = CitationCore.newtonRaphson_ConvergenceTest(CitationTimeline.of(CitationCore.fixData(paper, window)), step, m);
+				ArrayList<LinkedHashMap<String, Double>> grouped = CitationCore.newtonRaphson_ConvergenceTest(new GroupedCitationData(counts, exactLimit), step, m, ForkJoinPool.commonPool());
+				
+				double difference = maxRelativeDifference(expanded, grouped);
+				if (difference != Double.POSITIVE_INFINITY) maxDifference = Math.max(maxDifference, difference);
+				
+				return (difference <= tolerance) ? null : "  expanded: " + expanded + "\n  grouped:  " + grouped;
+			}
+			
+			public boolean run_test() {
+				maxDifference = 0;
+				return super.run_test();
+			}
+			
+			boolean report() {
+				System.out.println("Grouped data validation: " + (fits-mismatches) + " of " + fits + " fits matched (" + skipped + " windows without citations skipped), max relative difference=" + maxDifference);
+				return mismatches == 0;
+			}
+		}
+		
+		/**
+		 * This class implements a test case which fits every paper in every file in 'papers/' (5 years, 10 years and all years
+		 * of training) with both the exhaustive start grid search and an 'AdaptiveSearch', checks that both find the same
+		 * unique lambdas (in the same order) and reports how many Newton-Raphson solves the adaptive search saved.
+		 * <br><br>
+		 * Besides the shared edge cases, some hand built histories have so few citations that no start point converges,
+		 * so the exhaustive search retries with a finer step and the adaptive search has to come back empty as well.
+		 *
+		 */
+		private class TestCase_AdaptiveSearchValidation extends TestCase_FitComparison {
+			
+			double step;
+			double m;
+			AdaptiveSearch search;
+			long gridTime;
+			long adaptiveTime;
+			long solves;
+			long gridSolves;
+			
+			TestCase_AdaptiveSearchValidation(double step, double m, AdaptiveSearch search) {
+				super("Adaptive search vs exhaustive search validation with step=" + step + ", m=" + m + ", " + search, new int[] { 5, 10, 0 });
+				
+				this.step = step;
+				this.m = m;
+				this.search = search;
+			}
+			
+			List<PaperRecord> edgeCases() {
+				List<PaperRecord> r = edgeCaseHistories();
+				r.add(new PaperRecord("two-citations", 2000, new int[] { 1, 0, 0, 1 }));
+				r.add(new PaperRecord("first-year-only", 2000, new int[] { 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }));
+				r.add(new PaperRecord("sparse", 2000, new int[] { 0, 1, 0, 0, 1, 0, 0, 1, 0, 0, 1 }));
+				return r;
+			}
+			
+			String compare(PaperRecord paper, int window) {
+				
+				CitationData data = CitationTimeline.of(CitationCore.fixData(paper, window));
+				
+				long start = System.nanoTime();
+				ArrayList<LinkedHashMap<String, Double>> exhaustive = CitationCore.newtonRaphson_ConvergenceTest(data, step, m, null);
+				gridTime += System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				ArrayList<LinkedHashMap<String, Double>> adaptive = search.search(data, step, m);
+				adaptiveTime += System.nanoTime() - start;
+				
+				return sameLambdas(exhaustive, adaptive, 1e-2) ? null : "  exhaustive: " + exhaustive + "\n  adaptive:   " + adaptive;
+			}
+			
+			public boolean run_test() {
+				gridTime = 0;
+				adaptiveTime = 0;
+				solves = search.getSolves();
+				gridSolves = search.getGridSolves();
+				return super.run_test();
+			}
+			
+			boolean report() {
+				solves = search.getSolves() - solves;
+				gridSolves = search.getGridSolves() - gridSolves;
+				
+				System.out.println("Adaptive search validation: " + (fits-mismatches) + " of " + fits + " fits matched (" + skipped + " windows without citations skipped).");
+				System.out.println("Solves: " + solves + " of " + gridSolves + " (" + (gridSolves-solves) + " saved), time: " + 
+						(adaptiveTime/1e9) + "s vs " + (gridTime/1e9) + "s for the exhaustive search.");
+				return mismatches == 0;
+			}
+		}
+		
+		/**
+		 * This class implements a test case which fits every paper of a file chosen by the user for several versions of 'm'
+		 * (see MSweep), writes the solutions of every 'm' to 'saved_plots/<file>/sweep.csv' and prints the fits, the fits
+		 * without a solution and the time of each 'm'. A sweep that was stopped carries on where it stopped.
+		 */
+		private class TestCase_MSweep extends TestCase {
+			
+			private Scanner s;
+			double step;
+			double[] ms;
+			
+			TestCase_MSweep(Scanner s, double step, double[] ms) {
+				super("Sweep of m=" + Arrays.toString(ms) + " with step=" + step, TestCase.TYPE_USER_DRIVEN);
+				
+				this.s = s;
+				this.step = step;
+				this.ms = ms;
+			}
+			
+			public boolean run_test() {
+				
+				String dirname = "papers/";
+				ArrayList<String> filenames = new ArrayList<String>(Arrays.asList(new File(dirname).list(CSV_FILES)));
+				
+				for (int i=0; i<filenames.size(); i++) { System.out.println(i + ": " + filenames.get(i)); }
+				System.out.println("Please choose a file to parse for papers: ");
+				int filenumber_input = s.nextInt();
+				
+				assert( (filenumber_input>=0) && (filenumber_input<filenames.size()) );
+				String fn = filenames.get(filenumber_input);
+				
+				List<PaperRecord> papers;
+				try {
+					papers = CitationReader.readAll(dirname + fn);
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not read " + dirname + fn);
+					return false;
+				}
+				
+				MSweep sweep = new MSweep(ms, step, BatchFitter.DEFAULT_WINDOWS, Runtime.getRuntime().availableProcessors());
+				
+				File resultFile = new File("saved_plots/" + fn, "sweep.csv");
+				ResultWriter results;
+				try {
+					results = new ResultWriter(resultFile, ResultWriter.Format.CSV, sweep.getFitsPerPaper(), sweep.getRunSettings(dirname + fn), true);
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not open the result file " + resultFile);
+					e.printStackTrace();
+					return false;
+				}
+				sweep.setCompleted(results.getCompleted());
+				if (results.getResumed() > 0) { System.out.println("Resuming " + resultFile + ": skipping the " + results.getResumed() + " papers already fitted."); }
+				
+				boolean wasVerbose = CitationCore.verbose;
+				CitationCore.verbose = false;
+				
+				long start = System.nanoTime();
+				boolean interrupted = false;
+				try {
+					sweep.run(papers, results);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					interrupted = true;
+				} finally {
+					CitationCore.verbose = wasVerbose;
+				}
+				
+				try {
+					results.close();
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not write the result file " + resultFile);
+					e.printStackTrace();
+					return false;
+				}
+				if (interrupted) return false;
+				
+				System.out.println(sweep);
+				System.out.println(results);
+				System.out.println("Sweep time: " + (System.nanoTime()-start)/1e9 + "s");
+				return true;
+			}
+		}
+		
+		/**
+		 * This class implements a test case which fits every paper in every file in 'papers/' (all years of training) with
+		 * each solver ('WSBSolver') and prints the iterations, evaluations and time each solver needed for papers with few,
+		 * some and many citations, along with the number of papers where the solver found different solutions than the
+		 * default solver. The solvers may differ, so the test passes either way.
+		 * <br><br>
+		 * Besides the shared edge cases, the hand built histories have citation counts on either side of the bounds of the
+		 * volume classes.
+		 * 
+		 */
+		private class TestCase_SolverComparison extends TestCase_FitComparison {
+			
+			double step;
+			double m;
+			
+			//Upper bounds (exclusive) of the citation count of each volume class, the last class has no bound.
+			int[] volumeClasses = { 25, 100 };
+			
+			//One solver of each kind per volume class so each class has its own stats.
+			WSBSolver[] newton;
+			WSBSolver[] lm;
+			int[] papers;
+			int[] differences;
+			
+			TestCase_SolverComparison(double step, double m) {
+				super("Solver comparison by citation volume with step=" + step + ", m=" + m, new int[] { 0 });
+				
+				this.step = step;
+				this.m = m;
+			}
+			
+			List<PaperRecord> edgeCases() {
+				List<PaperRecord> r = edgeCaseHistories();
+				for (int bound : volumeClasses) {
+					for (int n=bound-1; n<=bound; n++) {
+						r.add(new PaperRecord("volume-" + n, 2000, new int[] { n/4, n/2, n - n/4 - n/2 }));
+					}
+				}
+				return r;
+			}
+			
+			String compare(PaperRecord paper, int window) {
+				
+				CitationData data = CitationTimeline.of(paper);
+				
+				int c = 0;
+				while (c < volumeClasses.length && data.getCitationCount() >= volumeClasses[c]) c++;
+				papers[c]++;
+				
+				ArrayList<LinkedHashMap<String, Double>> a = CitationCore.newtonRaphson_ConvergenceTest(data, step, m, null, newton[c]);
+				ArrayList<LinkedHashMap<String, Double>> b = CitationCore.newtonRaphson_ConvergenceTest(data, step, m, null, lm[c]);
+				
+				if (sameLambdas(a, b, 1e-2)) return null;
+				differences[c]++;
+				return "  " + newton[c].getName() + ": " + a + "\n  " + lm[c].getName() + ": " + b;
+			}
+			
+			public boolean run_test() {
+				
+				int classes = volumeClasses.length + 1;
+				newton = new WSBSolver[classes];
+				lm = new WSBSolver[classes];
+				papers = new int[classes];
+				differences = new int[classes];
+				for (int c=0; c<classes; c++) {
+					newton[c] = new ParksNewtonSolver();
+					lm[c] = new LevenbergMarquardtSolver();
+				}
+				
+				return super.run_test();
+			}
+			
+			boolean report() {
+				
+				for (int c=0; c<papers.length; c++) {
+					String name = (c == 0) ? "n < " + volumeClasses[0] : 
+						(c == volumeClasses.length) ? "n >= " + volumeClasses[c-1] : volumeClasses[c-1] + " <= n < " + volumeClasses[c];
+					
+					System.out.println("Papers with " + name + " citations (" + papers[c] + " papers, " + differences[c] + " with different solutions):");
+					System.out.println("  " + newton[c].getName() + ": " + newton[c].getStats());
+					System.out.println("  " + lm[c].getName() + ": " + lm[c].getStats());
+				}
+				return true;
+			}
+		}
+		
+		/**
+		 * This class implements a test case which adds hand built solutions to a 'SolutionClusters' and checks the number
+		 * of clusters and their basins. The solutions sit next to the edges of the grid cells, so two solutions within the
+		 * tolerance are often in different cells and are only found through the 27 cells around a solution. Every
+		 * tolerance and cell edge used is a power of two, so the differences are exact.
+		 *
+		 */
+		private class TestCase_SolutionClusters extends TestCase {
+			
+			double tolerance; //The same tolerance for lambda, mu and sigma (a power of two).
+			int failures;
+			
+			TestCase_SolutionClusters(double tolerance) {
+				super("Solution clusters at the cell edges with tolerance=" + tolerance, TestCase.TYPE_STAND_ALONE);
+				
+				this.tolerance = tolerance;
+			}
+			
+			private void check(boolean ok, String what, SolutionClusters clusters) {
+				if (!ok) {
+					failures++;
+					System.err.println("FAILED: " + what + "\n  clusters: " + clusters + " (" + clusters.getRejected() + " rejected)");
+				}
+			}
+			
+			//The clusters of the given solutions (lambda, mu, sigma).
+			private SolutionClusters cluster(double[]... solutions) {
+				SolutionClusters clusters = new SolutionClusters(tolerance, tolerance, tolerance);
+				for (double[] s : solutions) { clusters.add(s[0], s[1], s[2]); }
+				return clusters;
+			}
+			
+			public boolean run_test() {
+				
+				failures = 0;
+				double t = tolerance;
+				double edge = 4*t; //the edge between cell 3 and cell 4 of every axis
+				double near = t/8;
+				
+				//1. Two solutions on either side of the cell edges in each of the 26 directions (and in the same cell)
+				//	are one cluster.
+				for (int a=-1; a<=1; a++) {
+					for (int b=-1; b<=1; b++) {
+						for (int c=-1; c<=1; c++) {
+							SolutionClusters clusters = cluster(
+									new double[] { edge - a*near, edge - b*near, edge - c*near + (c == 0 ? near : 0) },
+									new double[] { edge + a*near, edge + b*near, edge + c*near + (c == 0 ? near : 0) });
+							String d = "(" + a + ", " + b + ", " + c + ")";
+							check(clusters.size() == 1 && clusters.getClusters().get(0).getBasin() == 2, "Two solutions " + 2*near + " apart across the cell edges in direction " + d + " are one cluster.", clusters);
+						}
+					}
+				}
+				
+				//2. The tolerance is exclusive on each axis, and a difference just under it joins across a cell edge.
+				for (int axis=0; axis<3; axis++) {
+					double[] p = { edge, edge, edge };
+					double[] at = p.clone();
+					double[] under = p.clone();
+					at[axis] += t;
+					under[axis] -= t - near; //in the cell below
+					
+					SolutionClusters clusters = cluster(p, at);
+					check(clusters.size() == 2, "Two solutions exactly the tolerance apart on axis " + axis + " are two clusters.", clusters);
+					
+					clusters = cluster(p, under);
+					check(clusters.size() == 1 && clusters.getClusters().get(0).getBasin() == 2, "Two solutions just under the tolerance apart on axis " + axis + " are one cluster.", clusters);
+					
+					double[] far = p.clone();
+					far[axis] += 2*t - near; //two cells away, more than the tolerance apart
+					clusters = cluster(p, far);
+					check(clusters.size() == 2, "Two solutions two cells apart on axis " + axis + " are two clusters.", clusters);
+				}
+				
+				//3. A solution within the tolerance of two clusters joins only one of them.
+				SolutionClusters clusters = cluster(new double[] { edge, edge, edge }, new double[] { edge + t + near, edge, edge }, new double[] { edge + t/2 + near/2, edge, edge });
+				check(clusters.size() == 2 && clusters.getClusters().get(0).getBasin() + clusters.getClusters().get(1).getBasin() == 3, "A solution between two clusters joins one of them.", clusters);
+				
+				//4. Negative and NaN lambdas are rejected, and a lambda of 0 is kept.
+				clusters = cluster(new double[] { -near, edge, edge }, new double[] { Double.NaN, edge, edge }, new double[] { 0, edge, edge });
+				check(clusters.size() == 1 && clusters.getRejected() == 2, "Negative and NaN lambdas are rejected.", clusters);
+				
+				//5. The basins count every solution and rank the clusters, clusters with the same basin keep their order.
+				double[] x = { edge, edge, edge }, y = { edge + 2*t, edge, edge }, z = { edge, edge + 2*t, edge }, w = { edge, edge, edge + 2*t };
+				clusters = cluster(x, y, y, z, y, x, z, z, z, w, x);
+				ArrayList<SolutionClusters.Cluster> ranked = clusters.rankedByBasin();
+				check(clusters.size() == 4 && ranked.get(0).mu == z[1] && ranked.get(0).getBasin() == 4 && ranked.get(1).lambda == x[0] && ranked.get(1).mu == x[1]
+						&& ranked.get(2).lambda == y[0] && ranked.get(3).getBasin() == 1 && clusters.toSolutions().get(1).get("basin") == 3.0, "The clusters are ranked by basin.", clusters);
+				
+				//6. Clearing keeps the tolerances and starts over.
+				clusters.clear();
+				check(clusters.isEmpty() && clusters.getRejected() == 0, "Clearing removes every cluster.", clusters);
+				clusters.add(edge, edge, edge);
+				clusters.add(edge + near, edge, edge);
+				check(clusters.size() == 1, "Clusters are found again after clearing.", clusters);
+				
+				//7. Each axis has its own tolerance.
+				clusters = new SolutionClusters(t, 4*t, t/4);
+				clusters.add(edge, edge, edge);
+				clusters.add(edge, edge + 2*t, edge); //inside the mu tolerance
+				clusters.add(edge + t, edge, edge); //outside the lambda tolerance
+				clusters.add(edge, edge, edge + t/8); //inside the sigma tolerance
+				clusters.add(edge, edge, edge - t/2); //outside the sigma tolerance, inside the others
+				check(clusters.size() == 3 && clusters.getClusters().get(0).getBasin() == 3, "Each axis has its own tolerance.", clusters);
+				
+				//8. A solution standing for several start points (a refitted solution) adds them all to the basin.
+				clusters = new SolutionClusters(t, t, t);
+				clusters.add(edge, edge, edge, 3);
+				clusters.add(edge + near, edge, edge - near, 5);
+				clusters.add(edge, edge + 2*t, edge);
+				check(clusters.size() == 2 && clusters.getClusters().get(0).getBasin() == 8 && clusters.rankedByBasin().get(1).getBasin() == 1, "The basins add up the start points of each solution.", clusters);
+				
+				//9. Solutions on a lattice around the cell edges: no two clusters are within the tolerance of each other
+				//	(a cluster the 27 cell lookup missed would be), and every solution is in a basin.
+				Random random = new Random(42);
+				clusters = new SolutionClusters(t, t, t);
+				int added = 0;
+				for (int i=0; i<2000; i++) {
+					clusters.add(edge + near*(random.nextInt(33) - 16), edge + near*(random.nextInt(33) - 16), edge + near*(random.nextInt(33) - 16));
+					added++;
+				}
+				int basins = 0;
+				ArrayList<SolutionClusters.Cluster> all = clusters.getClusters();
+				for (int i=0; i<all.size(); i++) {
+					basins += all.get(i).getBasin();
+					for (int j=0; j<i; j++) {
+						SolutionClusters.Cluster a = all.get(i), b = all.get(j);
+						if (Math.abs(a.lambda - b.lambda) < t && Math.abs(a.mu - b.mu) < t && Math.abs(a.sigma - b.sigma) < t) {
+							check(false, "The clusters " + a + " and " + b + " are within the tolerance of each other.", clusters);
+						}
+					}
+				}
+				check(basins == added, "The basins add up to the " + added + " solutions added (they add up to " + basins + ").", clusters);
+				
+				System.out.println("Solution clusters: " + failures + " checks failed, " + all.size() + " clusters of " + added + " lattice solutions.");
+				return failures == 0;
+			}
+		}
+		
+		/**
+		 * This class implements a test case which stops, resumes and merges result files ('ResultWriter' and
+		 * 'ShardMerger'). The first papers of the smallest file in 'papers/' that has enough of them are fitted once from
+		 * start to end, and then:
+		 * <br>
+		 * 	1. a run that was stopped while it wrote a paper (the result file and checkpoint end half way through a line)
+		 * 		is resumed,<br>
+		 * 	2. a run whose result file lost its end after the checkpoint was written (the last checkpoint is past the end
+		 * 		of the file) is resumed,<br>
+		 * 	3. the papers are fitted in shards and merged, then merged again with a shard missing, a shard twice and a
+		 * 		shard that was stopped while it wrote a paper.<br>
+		 * <br>
+		 * The resumed and merged files must be the same as the file of the clean run, byte for byte, and the bad merges
+		 * must be caught. The files are left in 'saved_plots/resume/'.
+		 */
+		private class TestCase_ResultResume extends TestCase {
+			
+			double step;
+			double m;
+			int paperCount;
+			int shardCount;
+			int failures;
+			String filename;
+			
+			TestCase_ResultResume(double step, double m, int paperCount, int shardCount) {
+				super("Resume and merge result files of " + paperCount + " papers in " + shardCount + " shards", TestCase.TYPE_STAND_ALONE);
+				
+				this.step = step;
+				this.m = m;
+				this.paperCount = paperCount;
+				this.shardCount = shardCount;
+			}
+			
+			private void check(boolean ok, String what) {
+				if (!ok) {
+					failures++;
+					System.err.println("FAILED: " + what);
+				}
+			}
+			
+			//Fit the papers (of one shard) into a result file and close it.
+			private ResultWriter fit(Shard shard, List<PaperRecord> papers, File file, boolean resume) throws IOException, InterruptedException {
+				BatchFitter fitter = new BatchFitter(step, m);
+				fitter.setShard(shard);
+				ResultWriter results = new ResultWriter(file, ResultWriter.Format.CSV, BatchFitter.DEFAULT_WINDOWS.length, fitter.getRunSettings(filename), resume);
+				fitter.setCompleted(results.getCompleted());
+				try {
+					fitter.fit(papers, results);
+				} finally {
+					results.close();
+				}
+				return results;
+			}
+			
+			private byte[] read(File file) throws IOException {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					byte[] b = new byte[(int) raf.length()];
+					raf.readFully(b);
+					return b;
+				} finally {
+					raf.close();
+				}
+			}
+			
+			private void append(File file, byte[] b) throws IOException {
+				FileOutputStream out = new FileOutputStream(file, true);
+				try {
+					out.write(b);
+				} finally {
+					out.close();
+				}
+			}
+			
+			//The same result file and checkpoint as the clean run.
+			private boolean same(File clean, File file) throws IOException {
+				return Arrays.equals(read(clean), read(file))
+						&& Arrays.equals(read(ResultWriter.checkpointFile(clean)), read(ResultWriter.checkpointFile(file)));
+			}
+			
+			//True if the merge found a problem with the given text.
+			private boolean found(ShardMerger.Report r, String text) {
+				for (String p : r.problems) if (p.contains(text)) return true;
+				return false;
+			}
+			
+			public boolean run_test() {
+				
+				String dirname = "papers/";
+				File[] files = new File(dirname).listFiles(CSV_FILES);
+				Arrays.sort(files, new Comparator<File>() {
+					public int compare(File a, File b) {
+						return Long.compare(a.length(), b.length());
+					}
+				});
 				
-				} else {
-					papers = papersfromfile;
-					pn = 0;
+				//The smallest file with enough papers, or the largest file if none has.
+				List<PaperRecord> papers = null;
+				for (File f : files) {
+					filename = f.getPath();
+					try {
+						papers = CitationReader.readAll(filename);
+					} catch (IOException e) {
+						System.err.println("ERROR: Could not read " + filename);
+						return false;
+					}
+					if (papers.size() >= paperCount) break;
 				}
+				papers = papers.subList(0, Math.min(paperCount, papers.size()));
+				int half = papers.size()/2;
 				
-				//process papers for WSB solutions and present graphs
-				for (int p=0; p<papers.size(); p++) {
-					
-					pn++; //The actual number of the paper from the file
-					
-					//Extract citation history and reformat for NRM for this paper
-					String paper = "Filename: " + dirname+ filenames.get(filenumber_input) + " (papers indexed as 1,2,3....)";
-					double[][] data5 = CitationCore.fixData(papers.get(p), 5);
-					double[][] data10 = CitationCore.fixData(papers.get(p), 10);
-					double[][] dataAll = CitationCore.fixData(papers.get(p), 0);
-					
-					//Find WSB solutions
-					ArrayList<LinkedHashMap<String, Double>> solutions5 = CitationCore.newtonRaphson_ConvergenceTest(data5, step, m);
-					ArrayList<LinkedHashMap<String, Double>> solutions10 = CitationCore.newtonRaphson_ConvergenceTest(data10, step, m);
-					ArrayList<LinkedHashMap<String, Double>> solutionsAllData = CitationCore.newtonRaphson_ConvergenceTest(dataAll, step, m);
-					
-					solutionString += "P#" + pn + "(train=5):: " + solutions5.toString() + nl;
-					solutionString += "P#" + pn + "(train=10):: " + solutions10.toString() + nl;
-					solutionString += "P#" + pn + "(train=All):: " + solutionsAllData.toString() + nl;
-					
-					System.out.println("************************P#" + pn + " Solutions**************************");
-					System.out.print("Solutions (5 years of training): " + solutions5.toString() + "\nSolutions (10 years of training):" + solutions10.toString() + "\nSolutions (all years of training): " + solutionsAllData.toString() + "\n");
-					
-					JFrame f = new JFrame();
-					Plot2DPanel plot = super.cc.graphWSB(dataAll, m, null, "m=" + m + ", " + paper,"p#" + pn + ": (train=All)--->"+solutionsAllData.toString(), solutionsAllData, false, f);
-					super.cc.graphWSB(dataAll, m, plot, "m=" + m + ", " + paper, "p#" + pn + ": (train=10)--->"+solutions10.toString(), solutions10, false, f);
-					super.cc.graphWSB(dataAll, m, plot, "m=" + m + ", " + paper, "p#" + pn + ": (train=5)--->"+solutions5.toString(), solutions5, true, f);
+				File dir = new File("saved_plots/resume");
+				failures = 0;
+				boolean wasVerbose = CitationCore.verbose;
+				CitationCore.verbose = false;
+				
+				try {
+					File clean = new File(dir, "clean.csv");
+					fit(null, papers, clean, false);
+					byte[] cleanBytes = read(clean);
 					
+					//1. Stopped while a paper was written: half a line of the next paper in the file and half a line in
+					//	the checkpoint.
+					File stopped = new File(dir, "stopped.csv");
+					fit(null, papers.subList(0, half), stopped, false);
+					int at = (int) stopped.length();
+					append(stopped, Arrays.copyOfRange(cleanBytes, at, Math.min(at + 40, cleanBytes.length)));
+					append(ResultWriter.checkpointFile(stopped), ((half+1) + "\t" + papers.get(half).id + "\t" + (at+10)).getBytes("UTF-8"));
+					ResultWriter results = fit(null, papers, stopped, true);
+					check(results.getResumed() == half, "The stopped run resumes after " + half + " papers (it resumed after " + results.getResumed() + ").");
+					check(same(clean, stopped), "The stopped run is the same as the clean run once it is resumed.");
 					
-					//Get screenshot to save graph for later reference
-					Rectangle screenRect = new Rectangle(0,0,1000,800);
+					//2. The end of the file was lost after the checkpoint was written, so the last paper is fitted again.
+					File cut = new File(dir, "cut.csv");
+					fit(null, papers.subList(0, half), cut, false);
+					RandomAccessFile raf = new RandomAccessFile(cut, "rw");
 					try {
-						System.err.println("WARNING: TAKING SCREEN CAPTURE. DON'T TOUCH ANYTHING");
-						Thread.sleep(4000);
-						BufferedImage plot_screenshot = new Robot().createScreenCapture(screenRect);
-						System.err.println("Thanks, we're done now.");
-						
-						
-						File dir = new File("saved_plots/" + filenames.get(filenumber_input));
-						if (!dir.exists()) dir.mkdir();
-					
-						String fn = filenames.get(filenumber_input);
-						String fnid = fn.substring(0,fn.indexOf("_"));
-						
-						ImageIO.write(plot_screenshot, "jpg", new File(dir + "/" + fnid + "_" + pn + "_m" + m + ".jpg"));
-						//plot.toGraphicFile(new File(dir +"/" + pn + ".png"));
-						if (!pauseBetweenPapers) { f.dispose();	}
-						
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						raf.setLength(raf.length() - 10);
+					} finally {
+						raf.close();
 					}
+					results = fit(null, papers, cut, true);
+					check(results.getResumed() == half-1, "The cut run resumes after " + (half-1) + " papers (it resumed after " + results.getResumed() + ").");
+					check(same(clean, cut), "The cut run is the same as the clean run once it is resumed.");
 					
-					if (pauseBetweenPapers) {
-						System.out.println("Please press enter to move onto the next paper.");
-						s.nextLine();
+					//3. The shards merge into the clean run, and a shard missing, twice or stopped is caught.
+					ArrayList<File> parts = new ArrayList<File>();
+					for (int i=0; i<shardCount; i++) {
+						File part = new File(dir, "part" + i + ".csv");
+						fit(new Shard(i, shardCount), papers, part, false);
+						parts.add(part);
 					}
-				}
-				
-				try { //save the graph
-					File dir = new File("saved_plots/" + filenames.get(filenumber_input));
-					if (!dir.exists()) dir.mkdir();
+					File merged = new File(dir, "merged.csv");
+					ShardMerger.Report r = ShardMerger.merge(parts, merged, null);
+					check(r.isOk(), "The shards merge.\n" + r);
+					check(r.isOk() && same(clean, merged), "The merged shards are the same as the clean run.");
 					
-					FileWriter bw = new FileWriter(dir + "/solutions.txt");
-					bw.write(solutionString);
-					bw.close();
-				} catch (Exception e) {
+					r = ShardMerger.merge(parts.subList(0, shardCount-1), null, null);
+					check(found(r, "Shard " + new Shard(shardCount-1, shardCount) + " is missing."), "A missing shard is caught.\n" + r);
+					
+					ArrayList<File> twice = new ArrayList<File>(parts);
+					twice.add(parts.get(0));
+					r = ShardMerger.merge(twice, null, null);
+					check(found(r, "is fitted twice."), "A shard merged twice is caught.\n" + r);
+					
+					append(parts.get(0), Arrays.copyOfRange(cleanBytes, cleanBytes.length - 40, cleanBytes.length - 10));
+					r = ShardMerger.merge(parts, null, null);
+					check(found(r, "stopped part way through a paper"), "A shard that was stopped is caught.\n" + r);
+				} catch (IOException e) {
+					System.err.println("ERROR: " + e.getMessage());
 					e.printStackTrace();
+					return false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					CitationCore.verbose = wasVerbose;
 				}
 				
-				return true; //User driven so this test always returns true.
+				System.out.println("Resume and merge: " + failures + " checks failed, " + papers.size() + " papers of " + filename + ".");
+				return failures == 0;
 			}
 		}
 	}
@@ -386,8 +1245,8 @@ public class CitationCore {
 	 * @param graphTitle The title to display on the JPanel.
 	 * @param lineLegend The title of this curve.
 	 * @param wsbSolutions The list of WSB solutions to graph.
-	 * @param showGraph Display the graph to the user (generally called once all curves have been added.)
-	 * @param frame The frame to display the graph in.
+	 * @param showGraph Add the axis labels, title and legend and display the graph to the user (generally called once all curves have been added.)
+	 * @param frame The frame to display the graph in, or null to finish the graph without displaying it (see 'PlotRenderer').
 	 * @return A Panel containing the graph.
 	 */
 	public Plot2DPanel graphWSB(double[][] data_in_days, double m, Plot2DPanel plot, String graphTitle, String lineLegend, ArrayList<LinkedHashMap<String, Double>> wsbSolutions, boolean showGraph, JFrame frame) {
@@ -415,17 +1274,17 @@ public class CitationCore {
 		}
 		
 		//Extract the timevalue column
-		RealMatrix mdata = MatrixUtils.createRealMatrix(data_in_years);
-		double[] tvalues = mdata.getColumn(0);
+		double[] tvalues = new double[plotLength];
+		for (int i=0; i<plotLength; i++) { tvalues[i] = data_in_years[i][0]; }
 		double[] cvalues = new double[plotLength];
 		
 		for(LinkedHashMap<String, Double> s : wsbSolutions) {
 			//calculate their fitted y values
-			for (int i=0; i<plotLength; i++) {
-				cvalues[i] = m * (Math.exp(s.get("lambda")*pnorm((Math.log(365*tvalues[i])-s.get("mu"))/s.get("sigma")))-1);
-			}
+			double lambda = s.get("lambda");
+			CitationCurve.cumulative(m, lambda, s.get("mu"), s.get("sigma"), tvalues, cvalues);
+			
 			//Calculate the Ultimate Impact
-			double c_impact = m * (Math.exp(s.get("lambda"))-1);
+			double c_impact = CitationCurve.ultimateImpact(m, lambda);
 			//plot the fit
 			plot.addLinePlot("Ultimate Impact=" + c_impact + " :: " + lineLegend, tvalues, cvalues);
 		}
@@ -445,168 +1304,102 @@ public class CitationCore {
             plot.addPlotable(filetitle);
 			
 			plot.addLegend("SOUTH");
-			//JFrame frame = new JFrame(graphTitle); 
-			frame.setTitle(graphTitle);
-			frame.setContentPane(plot);
-			frame.setBounds(0, 0, 1000, 800);
-			frame.setVisible(true);
-			frame.repaint();
+			if (frame != null) {
+				//JFrame frame = new JFrame(graphTitle); 
+				frame.setTitle(graphTitle);
+				frame.setContentPane(plot);
+				frame.setBounds(0, 0, PlotRenderer.DEFAULT_WIDTH, PlotRenderer.DEFAULT_HEIGHT);
+				frame.setVisible(true);
+				frame.repaint();
+			}
 		}
 		return plot;
 	}
 	
 	/**
 	 * This function calculates a bunch of values needed for each iteration of the Newton-Raphson numerical method for solving for a WSB solution.
+	 * <br>
+	 * The sums over the citation timestamps are calculated by the citation data itself (see 'CitationData.sumIterationData').
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history.
 	 * @param mu The current iteration's mu value.
 	 * @param sigma The current iteration's sigma value.
 	 * @param m The constant value, which is determined by the average number of references in each new paper for a journal.
-	 * @param t The last time value in the citation history.
-	 * @param n The total number of citations for this paper.
 	 * @param iteration The iteration number.
-	 * @return A list containing all the calculated values for the Netwon-Raphson method for this iteration.
+	 * @param l The state that will hold the calculated values (reused across iterations).
+	 * @return The state updated with all the calculated values for the Netwon-Raphson method for this iteration.
 	 */
-	private LinkedHashMap<String, Double> getIterationData(double[][] data, double mu, double sigma, double m, double t, double n, int iteration) {
-		
-		//Set variables to zero for each iteration that this function is called.
-		double xt = 0;
-		double xi = 0;
-		double ti = 0;
-		
-		double mhat = m/n;
-	  
-		double s_ln_ti = 0;
-		double s_ln_ti_sqrd = 0;
-		double s_xi = 0;
-		double s_xi_sqrd = 0;
-		double s_pnorm_xi = 0;
-		double s_dnorm_xi = 0;
-  		double s_xi_dnorm_xi = 0;
-  		double s_xi_sqrd_dnorm_xi = 0;
-  		double s_xi_cubed_dnorm_xi = 0;
-	  
-		//Find X of T
-		xt = (Math.log(t) - mu)/sigma;
-		  
+	IterationState getIterationData(CitationData data, double mu, double sigma, double m, int iteration, IterationState l) {
+		
+		double t = data.getLastTime();
+		double n = data.getCitationCount();
+		
 		//Sum the various values needed.
-		for (int i=0; i<n; i++) {
-	    
-		  ti = data[i][0];
-		  xi = (Math.log(ti) - mu)/sigma;
-		    
-		  s_ln_ti += Math.log(ti);
-		  s_ln_ti_sqrd += Math.pow(Math.log(ti),2);
-		    
-		  s_xi += xi;
-		  s_xi_sqrd += Math.pow(xi,2);
-		    
-		  s_pnorm_xi += pnorm(xi);
-		  
-		  s_dnorm_xi += dnorm(xi);
-		  s_xi_dnorm_xi += xi * dnorm(xi);
-		  s_xi_sqrd_dnorm_xi += Math.pow(xi,2) * dnorm(xi);
-		  s_xi_cubed_dnorm_xi += Math.pow(xi,3) * dnorm(xi);
-    
-		}
-		  
-		//Divide by the total number of citations to get the expected values.
-		s_ln_ti /= n;
-		s_ln_ti_sqrd /= n;
-		 
-		s_xi /= n;
-		s_xi_sqrd /= n;
-		 
-		s_pnorm_xi /=n;
-		  
-		s_dnorm_xi /= n;
-		s_xi_dnorm_xi /= n;
-		s_xi_sqrd_dnorm_xi /= n;
-		s_xi_cubed_dnorm_xi /= n;
-  
-		LinkedHashMap<String, Double> r_list = new LinkedHashMap<String, Double>();
-		
-		//Add them to our list.
-		r_list.put("iteration", (double) iteration);
-		r_list.put("t", t);
-		r_list.put("xt", xt);
-		r_list.put("n", n);
-		r_list.put("m", m);
-		r_list.put("mhat", mhat);
-		r_list.put("mu", mu);
-		r_list.put("sigma", sigma);
-		
-		r_list.put("s_ln_ti", s_ln_ti);
-		r_list.put("s_ln_ti_sqrd", s_ln_ti_sqrd);
-		
-		r_list.put("s_xi", s_xi);
-		r_list.put("s_xi_sqrd", s_xi_sqrd);
-		
-		r_list.put("s_pnorm_xi", s_pnorm_xi);
-		
-		r_list.put("s_dnorm_xi", s_dnorm_xi);
-		r_list.put("s_xi_dnorm_xi", s_xi_dnorm_xi);
-		r_list.put("s_xi_sqrd_dnorm_xi", s_xi_sqrd_dnorm_xi);
-		r_list.put("s_xi_cubed_dnorm_xi", s_xi_cubed_dnorm_xi);
-		
-		return r_list;
-		  
-	}
-
-	/**
-	 * This function calculates a bunch of values needed for each iteration of the Newton-Raphson numerical method for solving for a WSB solution.
-	 * <br>
-	 * Uses some default values:
-	 * <br>
-	 * t - extracted from the citation history in 'data'<br>
-	 * n - extracted from the citation history in 'data'<br>
-	 * 
-	 * @param data The citation data in days.
-	 * @param mu The current iteration's mu value.
-	 * @param sigma The current iteration's sigma value.
-	 * @param m A constant value, which is determined by the average number of references in each new paper for a journal.
-	 * @return A list containing all the calculated values for the Netwon-Raphson method for this iteration.
-	 */
-	private LinkedHashMap<String, Double> getIterationData(double[][] data, double mu, double sigma, double m) {
-		return getIterationData(data, mu, sigma, m, data[data.length-1][0], data[data.length-1][1], 0);
+		data.sumIterationData(this, mu, sigma, l);
+		l.evaluations++;
+		
+		l.iteration = iteration;
+		l.t = t;
+		l.xt = (Math.log(t) - mu)/sigma; //Find X of T
+		l.n = n;
+		l.m = m;
+		l.mhat = m/n;
+		l.mu = mu;
+		l.sigma = sigma;
+		
+		return l;
 	}
 
 	/**
 	 * This function calculates the essential formulas for the Newton-Raphson function. The formulas used here
 	 * were based on the math of Dr. Allen Parks.
 	 * 
-	 * @param l A list structure that will hold the calculated values.
-	 * @return The list updated with the calculated values of the essential formulas.
+	 * @param l The state holding the values calculated by 'getIterationData'.
+	 * @return The state updated with the calculated values of the essential formulas.
 	 */
-	private LinkedHashMap<String, Double> getPartialsData(LinkedHashMap<String, Double> l) {
+	IterationState getPartialsData(IterationState l) {
+		
+		double mhat1 = 1+l.mhat;
+		double xt = l.xt;
+		double pnorm_xt = pnorm(xt);
+		double dnorm_xt = dnorm(xt);
 		
-		double fn = ( ((1+l.get("mhat"))*pnorm(l.get("xt")) - l.get("s_pnorm_xi"))*l.get("s_xi") ) - 
-			    l.get("s_dnorm_xi") + (1+l.get("mhat"))*dnorm(l.get("xt"));
-		l.put("fn", fn);
+		l.fn = ( (mhat1*pnorm_xt - l.s_pnorm_xi)*l.s_xi ) - 
+			    l.s_dnorm_xi + mhat1*dnorm_xt;
 		
-		double gn = ( ((1+l.get("mhat"))*pnorm(l.get("xt")) - l.get("s_pnorm_xi"))*(l.get("s_xi_sqrd")-1) ) - 
-			    l.get("s_xi_dnorm_xi") + ( (1+l.get("mhat"))*l.get("xt")*dnorm(l.get("xt")) );
-		l.put("gn", gn);
+		l.gn = ( (mhat1*pnorm_xt - l.s_pnorm_xi)*(l.s_xi_sqrd-1) ) - 
+			    l.s_xi_dnorm_xi + ( mhat1*xt*dnorm_xt );
 		
-		double df_dmu =  (    ( (1+l.get("mhat"))*((l.get("xt")-l.get("s_xi"))*dnorm(l.get("xt"))-pnorm(l.get("xt"))) ) + l.get("s_xi")*l.get("s_dnorm_xi")
-	              - l.get("s_xi_dnorm_xi") + l.get("s_pnorm_xi")    ) /l.get("sigma");
-		l.put("df_dmu", df_dmu);
+		l.df_dmu =  (    ( mhat1*((xt-l.s_xi)*dnorm_xt-pnorm_xt) ) + l.s_xi*l.s_dnorm_xi
+	              - l.s_xi_dnorm_xi + l.s_pnorm_xi    ) /l.sigma;
 		
-		double df_dsigma = (   ( (1+l.get("mhat"))*((l.get("xt")-l.get("s_xi"))*l.get("xt")*dnorm(l.get("xt"))-l.get("s_xi")*pnorm(l.get("xt")))  ) 
-                + l.get("s_xi")*(l.get("s_xi_dnorm_xi")+l.get("s_pnorm_xi")) - l.get("s_xi_sqrd_dnorm_xi")    ) /l.get("sigma");
-		l.put("df_dsigma", df_dsigma);
+		l.df_dsigma = (   ( mhat1*((xt-l.s_xi)*xt*dnorm_xt-l.s_xi*pnorm_xt)  ) 
+                + l.s_xi*(l.s_xi_dnorm_xi+l.s_pnorm_xi) - l.s_xi_sqrd_dnorm_xi    ) /l.sigma;
 		
-		double dg_dmu = (   ( (1+l.get("mhat"))*(2*l.get("s_xi")*pnorm(l.get("xt")) + (l.get("s_xi_sqrd")-Math.pow(l.get("xt"),2))*dnorm(l.get("xt"))) ) 
-	              - ( 2*l.get("s_xi")*l.get("s_pnorm_xi") + l.get("s_xi_sqrd")*l.get("s_dnorm_xi") - l.get("s_xi_sqrd_dnorm_xi") )    ) /(-l.get("sigma"));
-		l.put("dg_dmu", dg_dmu);
+		l.dg_dmu = (   ( mhat1*(2*l.s_xi*pnorm_xt + (l.s_xi_sqrd-xt*xt)*dnorm_xt) ) 
+	              - ( 2*l.s_xi*l.s_pnorm_xi + l.s_xi_sqrd*l.s_dnorm_xi - l.s_xi_sqrd_dnorm_xi )    ) /(-l.sigma);
 		
-		double dg_dsigma = (    ( (1+l.get("mhat"))*((Math.pow(l.get("xt"),3))*dnorm(l.get("xt")) - l.get("s_xi_sqrd")*l.get("xt")*dnorm(l.get("xt")) - 2*l.get("s_xi_sqrd")*pnorm(l.get("xt"))) )
-                + 2*l.get("s_xi_sqrd")*l.get("s_pnorm_xi") + l.get("s_xi_sqrd")*l.get("s_xi_dnorm_xi") - l.get("s_xi_cubed_dnorm_xi")  ) /l.get("sigma");
-		l.put("dg_dsigma", dg_dsigma);
+		l.dg_dsigma = (    ( mhat1*((xt*xt*xt)*dnorm_xt - l.s_xi_sqrd*xt*dnorm_xt - 2*l.s_xi_sqrd*pnorm_xt) )
+                + 2*l.s_xi_sqrd*l.s_pnorm_xi + l.s_xi_sqrd*l.s_xi_dnorm_xi - l.s_xi_cubed_dnorm_xi  ) /l.sigma;
 		
 		return l;
 	}
 	
+	/**
+	 * Evaluate the equations (fn, gn) and their partial derivatives at (mu, sigma), for solvers other than 'newtonRaphson'
+	 * (see 'WSBSolver'). Each call counts as one evaluation in 'l.evaluations'.
+	 * 
+	 * @param data The citation history.
+	 * @param mu The mu to evaluate at.
+	 * @param sigma The sigma to evaluate at.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param l The state the values are stored in.
+	 * @return The state 'l'.
+	 */
+	IterationState evaluate(CitationData data, double mu, double sigma, double m, IterationState l) {
+		return getPartialsData(getIterationData(data, mu, sigma, m, l.iteration, l));
+	}
+	
 	/**
 	 * This function will print a list containing the calculated values for the Newton-Raphson method in
 	 * a formated way that is easy to read.
@@ -633,89 +1426,138 @@ public class CitationCore {
 	 * http://josiahneuberger.github.io/citation_prediction/
 	 * <br><br>
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history.
 	 * @param mu The initial mu guess to use in the Newton-Raphson method.
 	 * @param sigma The initial sigma guess to use in the Newton-Raphson method.
 	 * @param m The constant value, which is determined by the average number of references in each new paper for a journal.
-	 * @param t The last time value in the paper's citation history.
-	 * @param n The total number of citations for this paper.
-	 * @param l A list structure to store values for each iteration (should be null to start).
-	 * @param iteration The iteration (should be zero to start)
+	 * @param l The state used to store values for each iteration, it holds the WSB solution when this function returns.
 	 * @param max_iteration The maximum number of iterations to try before stopping.
-	 * @param tolerance The tolerance level, which determines that a solution has been converged on.
-	 * @return A list containing the WSB solution of (lambda, mu, sigma, iterations).
+	 * @param tolerance The size of the step before the first iteration (the method stops once a step is smaller than 'stepTolerance').
+	 * @return The state 'l', where 'converged' is true and (lambda, mu, sigma, iteration) hold the WSB solution if one was found.
 	 */
-	private LinkedHashMap <String, Double> newtonRaphson(double[][] data, double mu, double sigma, double m, double t, double n, LinkedHashMap<String, Double> l, int iteration, int max_iteration, double tolerance) {
-		
-		double lambda;
-		LinkedHashMap<String, Double> r = new LinkedHashMap<String, Double>();
+	private IterationState newtonRaphson(CitationData data, double mu, double sigma, double m, IterationState l, int max_iteration, double tolerance) {
 		
+		int iteration = 0;
+		boolean current = false; //true when 'l' already holds the partials at (mu, sigma)
+		l.evaluations = 0;
+		l.singular = false;
 		
-		if (iteration > max_iteration) {
-			System.out.println("Does not converge.");
-			
-			r.put("lambda", null);
-			r.put("mu", null);
-			r.put("sigma", null);
-			r.put("iterations", null);
-			
-			return r;
-		} else if (tolerance < 0.00000001) {
-			System.out.println("Stopped due to tolerance.");
-			
-			r.put("lambda", getLambda(data, mu, sigma, m, t, n));
-			r.put("mu", mu);
-			r.put("sigma", sigma);
-			r.put("iterations", (double) iteration);
-			
-			return r;
-		} 
-		else {
-			
-			l = getPartialsData(getIterationData(data, mu, sigma, m));
-			
-			double [] array_xn = { mu, sigma };
-			double [] array_yn = { l.get("fn"), l.get("gn") };
-			
-			RealMatrix xn = MatrixUtils.createColumnRealMatrix(array_xn);
-			RealMatrix yn = MatrixUtils.createColumnRealMatrix(array_yn);
+		while (true) {
 			
+			if (iteration > max_iteration) {
+				if (verbose) System.out.println("Does not converge.");
+				
+				l.converged = false;
+				
+				return l;
+			} else if (tolerance < stepTolerance) {
+				if (verbose) System.out.println("Stopped due to tolerance.");
+				
+				return converged(data, mu, sigma, m, iteration, l);
+			}
 			
-			//http://commons.apache.org/proper/commons-math/userguide/linear.html
+			if (!current) { getPartialsData(getIterationData(data, mu, sigma, m, iteration, l)); }
+			current = false;
 			
-			double [][] array_jacobian = { {l.get("df_dmu"), l.get("df_dsigma")}, {l.get("dg_dmu"), l.get("dg_dsigma")} };
-			RealMatrix jacobian = MatrixUtils.createRealMatrix(array_jacobian);
-			LUDecomposition lud = new LUDecomposition(jacobian);
-			DecompositionSolver decS = lud.getSolver();
+			iteration++;
+			l.iteration = iteration;
+			//DEBUG: printList(l.toMap());
 			
-			l.put("iteration", (double) (iteration + 1));
-			//DEBUG: printList(l);
+			//Solve the 2x2 system J*d = (fn, gn) in closed form. The pivots are the ones LU decomposition with partial
+			//	pivoting would use, so the Jacobian is treated as singular in the same cases as before.
+			double a = l.df_dmu, b = l.df_dsigma, c = l.dg_dmu, d = l.dg_dsigma;
+			double det = a*d - b*c;
+			double pivot = Math.max(Math.abs(a), Math.abs(c));
 			
-			if (!decS.isNonSingular()) {
-				l.put("iteration", (double) (max_iteration+1));
-				System.err.println("ERROR: Jacobian matrix was singular.");
-			} else {
+			if (!(pivot >= SINGULAR_PIVOT) || !(Math.abs(det/pivot) >= SINGULAR_PIVOT)) {
+				if (verbose) System.err.println("ERROR: Jacobian matrix was singular.");
+				
+				l.converged = false;
+				l.singular = true;
 				
-				RealMatrix solution = xn.subtract(decS.getInverse().multiply(yn));
+				return l;
+			}
+			
+			//The residual is only trusted where the Jacobian is not singular (far from the data fn and gn underflow to 0).
+			double residual = Math.max(Math.abs(l.fn), Math.abs(l.gn));
+			if (residual < residualTolerance) {
+				if (verbose) System.out.println("Stopped due to residual.");
 				
-				RealMatrix xndiff = solution.subtract(xn);
-				tolerance = Math.sqrt(Math.pow(xndiff.getEntry(0, 0),2) + Math.pow(xndiff.getEntry(1,0),2));
+				return converged(data, mu, sigma, m, iteration-1, l);
+			}
+			
+			double d_mu = (d*l.fn - b*l.gn) / det;
+			double d_sigma = (a*l.gn - c*l.fn) / det;
+			double scale = 1;
 			
-				//update values
-				l.put("mu", solution.getEntry(0, 0));
-				l.put("sigma", solution.getEntry(1,0));
+			if (backtracking) {
+				//Halve the step until the residual goes down, so starts that would oscillate settle instead.
+				for (int k=0; k<maxBacktracks; k++) {
+					getPartialsData(getIterationData(data, mu - scale*d_mu, sigma - scale*d_sigma, m, iteration, l));
+					
+					if (Math.max(Math.abs(l.fn), Math.abs(l.gn)) < residual) {
+						current = true;
+						break;
+					}
+					scale /= 2;
+				}
 				
-				//DEBUG: System.out.printf("\"%-20s=%25f\"\n", "NEW MU", l.get("mu"));
-				//DEBUG: System.out.printf("\"%-20s=%25f\"\n",  "NEW SIGMA", l.get("sigma"));
+				//A step made tiny by halving is not a sign of convergence, so a solve no halving could improve stops here.
+				if (!current) {
+					if (verbose) System.out.println("Stopped due to backtracking.");
+					
+					l.converged = false;
+					
+					return l;
+				}
 			}
-			//DEBUG: System.out.println("****************************************");
 			
-			return newtonRaphson(data, l.get("mu"), l.get("sigma"), m, l, (l.get("iteration").intValue()), tolerance);
+			tolerance = scale * Math.sqrt(d_mu*d_mu + d_sigma*d_sigma);
+			
+			//update values
+			mu -= scale*d_mu;
+			sigma -= scale*d_sigma;
+			l.mu = mu;
+			l.sigma = sigma;
+			
+			//DEBUG: System.out.printf("\"%-20s=%25f\"\n", "NEW MU", l.mu);
+			//DEBUG: System.out.printf("\"%-20s=%25f\"\n",  "NEW SIGMA", l.sigma);
 		}
 	}
 	
-	private LinkedHashMap <String, Double> newtonRaphson(double[][] data, double mu, double sigma, double m, LinkedHashMap<String, Double> l, int iteration, double tolerance) {
-		return newtonRaphson(data, mu, sigma, m, data[data.length-1][0], data[data.length-1][1], l, iteration, 31, tolerance);
+	/**
+	 * Store a converged WSB solution in the state.
+	 */
+	IterationState converged(CitationData data, double mu, double sigma, double m, int iteration, IterationState l) {
+		
+		l.lambda = getLambda(data, mu, sigma, m, l);
+		l.mu = mu;
+		l.sigma = sigma;
+		l.iteration = iteration;
+		l.converged = true;
+		
+		return l;
+	}
+	
+	/**
+	 * This function implements the algorithm designed by Josiah Neuberger and William Etcho used to solve for a WSB solution.
+	 * The general math for the Newton-Raphson method was provided by Dr. Allen Parks and can be found in the function 'getPartialsData'.
+	 * <br><br>
+	 * This function does not allocate a new result, the WSB solution is left in the state passed in so a single state can be
+	 * reused for many solves (one state per thread).
+	 * <br><br>
+	 * This function uses the following default values:<br>
+	 * Max Iterations = 'maxIterations' (31 by default)<br>
+	 * 
+	 * @param data The citation history.
+	 * @param mu The initial mu guess to use in the Newton-Raphson method.
+	 * @param sigma The initial sigma guess to use in the Newton-Raphson method.
+	 * @param m The constant value, which is determined by the average number of references in each new paper for a journal.
+	 * @param l The state used to store values for each iteration, it holds the WSB solution when this function returns.
+	 * @return True if a solution was converged on, the solution is in (l.lambda, l.mu, l.sigma, l.iteration).
+	 */
+	public boolean newtonRaphson(CitationData data, double mu, double sigma, double m, IterationState l) {
+		return newtonRaphson(data, mu, sigma, m, l, maxIterations, .1).converged;
 	}
 	
 	/**
@@ -729,16 +1571,18 @@ public class CitationCore {
 	 * http://josiahneuberger.github.io/citation_prediction/
 	 * <br><br>
 	 * This function uses the following default values:<br>
-	 * Max Iterations = 31<br>
+	 * Max Iterations = 'maxIterations' (31 by default)<br>
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history (see 'CitationTimeline').
 	 * @param mu The initial mu guess to use in the Newton-Raphson method.
 	 * @param sigma The initial sigma guess to use in the Newton-Raphson method.
 	 * @param m The constant value, which is determined by the average number of references in each new paper for a journal.
 	 * @return A list containing the WSB solution of (lambda, mu, sigma, iterations).
 	 */
-	public LinkedHashMap <String, Double> newtonRaphson(double[][] data, double mu, double sigma, double m) {
-		return newtonRaphson(data, mu, sigma, m, data[data.length-1][0], data[data.length-1][1], null, 0, 31, .1);
+	public LinkedHashMap <String, Double> newtonRaphson(CitationData data, double mu, double sigma, double m) {
+		IterationState l = new IterationState();
+		newtonRaphson(data, mu, sigma, m, l);
+		return l.toSolution();
 	}
 	
 
@@ -746,78 +1590,271 @@ public class CitationCore {
 	 * This function runs the Newton-Raphson function on an interval from .1 to 10 returning a list of
 	 * all the unique solutions.
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history (see 'CitationTimeline').
 	 * @param step The step you would like to use to step through the interval of .1 to 10.
 	 * @param m The average number of new references contained in each paper for a journal.
 	 * @return A list containing the WSB solutions.
 	 */
-	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(double[][] data, double step, double m) {
-		return newtonRaphson_ConvergenceTest(data, .1, 10, 10, step, m, false);
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(CitationData data, double step, double m) {
+		return newtonRaphson_ConvergenceTest(data, GRID_START, GRID_MU_GUESS, GRID_SIGMA_GUESS, step, m, false, ForkJoinPool.commonPool(), new ParksNewtonSolver(), new SolutionClusters());
 	}
 	
 	/**
 	 * This function runs the Newton-Raphson function on an interval from .1 to 10 returning a list of
 	 * all the unique solutions.
+	 * <br><br>
+	 * The start points are solved on the given pool, but the results are merged in the same order as a
+	 * serial run so the list of unique solutions is always the same.
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history (see 'CitationTimeline', 'PaperFitContext' and 'GroupedCitationData').
 	 * @param step The step you would like to use to step through the interval of .1 to 10.
 	 * @param m The average number of new references contained in each paper for a journal.
-	 * @return A list of list containing the WSB solutions.
+	 * @param pool The pool to solve the start points on, or null to solve them on the calling thread.
+	 * @return A list containing the WSB solutions.
+	 */
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(CitationData data, double step, double m, ForkJoinPool pool) {
+		return newtonRaphson_ConvergenceTest(data, step, m, pool, new ParksNewtonSolver());
+	}
+	
+	/**
+	 * This function runs a solver on an interval from .1 to 10 returning a list of all the unique solutions.
+	 * 
+	 * @param data The citation history (see 'CitationTimeline', 'PaperFitContext' and 'GroupedCitationData').
+	 * @param step The step you would like to use to step through the interval of .1 to 10.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param pool The pool to solve the start points on, or null to solve them on the calling thread.
+	 * @param solver The solver used for each start point (see 'WSBSolver').
+	 * @return A list containing the WSB solutions.
+	 */
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(CitationData data, double step, double m, ForkJoinPool pool, WSBSolver solver) {
+		return newtonRaphson_ConvergenceTest(data, step, m, pool, solver, new SolutionClusters());
+	}
+	
+	/**
+	 * This function runs a solver on an interval from .1 to 10 and groups the converged start points into clusters of
+	 * unique solutions, each with the number of start points that converged to it (see 'SolutionClusters').
+	 * 
+	 * @param data The citation history (see 'CitationTimeline', 'PaperFitContext' and 'GroupedCitationData').
+	 * @param step The step you would like to use to step through the interval of .1 to 10.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param pool The pool to solve the start points on, or null to solve them on the calling thread.
+	 * @param solver The solver used for each start point (see 'WSBSolver').
+	 * @param clusters Receives the clusters of the search that returned the solutions (it is cleared first).
+	 * @return A list containing the WSB solutions (lambda, mu, sigma, basin) in the order they were found.
+	 */
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(CitationData data, double step, double m, ForkJoinPool pool, WSBSolver solver, SolutionClusters clusters) {
+		return newtonRaphson_ConvergenceTest(data, GRID_START, GRID_MU_GUESS, GRID_SIGMA_GUESS, step, m, false, pool, solver, clusters);
+	}
+	
+	/**
+	 * This function refits a paper after its citation history has changed (for example a new year of citations was added),
+	 * starting the Newton-Raphson method from each of the paper's previous solutions instead of searching the whole start grid.
+	 * The start grid is only searched (see 'newtonRaphson_ConvergenceTest') if none of the previous solutions converge.
+	 * <br><br>
+	 * Each previous solution stands for the start points of its basin, so the basin of a refitted solution adds up the
+	 * basins of the previous solutions that converged to it and can be compared with the basins of a grid search.
+	 * 
+	 * @param data The new citation history.
+	 * @param previous The WSB solutions found for the old citation history (entries without a mu and sigma are ignored,
+	 * 		an entry without a basin counts as one start point).
+	 * @param step The step used if the start grid has to be searched.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param pool The pool to solve the start grid on if it has to be searched, or null to solve it on the calling thread.
+	 * @return A list containing the WSB solutions.
+	 */
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_Refit(CitationData data, List<LinkedHashMap<String, Double>> previous, double step, double m, ForkJoinPool pool) {
+		return newtonRaphson_Refit(data, previous, step, m, pool, new ParksNewtonSolver());
+	}
+	
+	/**
+	 * Same as 'newtonRaphson_Refit(CitationData, List, double, double, ForkJoinPool)' with a chosen solver (see 'WSBSolver').
+	 * 
+	 * @param data The new citation history.
+	 * @param previous The WSB solutions found for the old citation history.
+	 * @param step The step used if the start grid has to be searched.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param pool The pool to solve the start grid on if it has to be searched, or null to solve it on the calling thread.
+	 * @param solver The solver used for each start point.
+	 * @return A list containing the WSB solutions.
 	 */
-	private static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(double[][] data, double start, double mu_guess, double sigma_guess, double step, double m, boolean wasAlreadyRun) {
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_Refit(CitationData data, List<LinkedHashMap<String, Double>> previous, double step, double m, ForkJoinPool pool, WSBSolver solver) {
+		
+		IterationState l = new IterationState();
+		SolutionClusters clusters = new SolutionClusters();
+		
+		for (LinkedHashMap<String, Double> p : previous) {
+			
+			if (p.get("mu") == null || p.get("sigma") == null) continue;
+			Double basin = p.get("basin");
+			int starts = (basin == null || !(basin >= 1)) ? 1 : (int) Math.round(basin);
+			if (solver.solve(data, p.get("mu"), p.get("sigma"), m, l)) { clusters.add(l.lambda, l.mu, l.sigma, starts); }
+		}
 		
-		CitationCore cc = new CitationCore();
+		if (clusters.isEmpty()) return newtonRaphson_ConvergenceTest(data, step, m, pool, solver);
+		else return clusters.toSolutions();
+	}
+	
+	/**
+	 * Same as 'newtonRaphson_Refit(CitationData, List, double, double, ForkJoinPool)' with the start grid solved on the common pool.
+	 * 
+	 * @param data The new citation history (see 'CitationTimeline').
+	 * @param previous The WSB solutions found for the old citation history.
+	 * @param step The step used if the start grid has to be searched.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @return A list containing the WSB solutions.
+	 */
+	public static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_Refit(CitationData data, List<LinkedHashMap<String, Double>> previous, double step, double m) {
+		return newtonRaphson_Refit(data, previous, step, m, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * This function runs the Newton-Raphson function on an interval from .1 to 10 returning a list of
+	 * all the unique solutions.
+	 * 
+	 * @param data The citation history.
+	 * @param step The step you would like to use to step through the interval of .1 to 10.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param pool The pool to solve the start points on, or null to solve them on the calling thread.
+	 * @param solver The solver used for each start point.
+	 * @param clusters Receives the clusters of unique solutions (it is cleared first).
+	 * @return A list of list containing the WSB solutions.
+	 */
+	private static ArrayList<LinkedHashMap<String, Double>> newtonRaphson_ConvergenceTest(CitationData data, double start, double mu_guess, double sigma_guess, double step, double m, boolean wasAlreadyRun, ForkJoinPool pool, WSBSolver solver, SolutionClusters clusters) {
 		
 		String [] matrix_headers = { "mu0", "sigma0", "lambda", "mu", "sigma", "iteration" };
 		ArrayList<ArrayList<Double>> matrix = new ArrayList<ArrayList<Double>>(100);
-		ArrayList<LinkedHashMap<String, Double>> solutions = new ArrayList<LinkedHashMap<String, Double>>(100);
-		ArrayList<Double> lambdas = new ArrayList<Double>();
+		clusters.clear();
+		
+		//Build the start points the same way the serial loops step through them.
+		ArrayList<Double> mu0s = gridPoints(start, mu_guess, step);
+		ArrayList<Double> sigma0s = gridPoints(start, sigma_guess, step);
+		
+		ConvergenceTestTask grid = new ConvergenceTestTask(solver, data, m, mu0s, sigma0s, 0, mu0s.size()*sigma0s.size(), pool != null);
+		if (pool == null) { grid.compute(); }
+		else { pool.invoke(grid); }
 		
-		for (double mu0=start; mu0<(mu_guess+2); mu0+=step) {
-			for (double sigma0=start; sigma0<(sigma_guess+2); sigma0+=step) {
-				LinkedHashMap <String, Double> answer = cc.newtonRaphson(data,  mu0, sigma0, m);
+		//Merge the results in grid order.
+		for (int i=0; i<grid.converged.length; i++) {
+			
+			if (grid.converged[i]) {
+				double lambda = grid.results[i][0];
+				ArrayList<Double> row = new ArrayList<Double>();
 				
-				if (answer.get("lambda") != null) {
-					ArrayList<Double> row = new ArrayList<Double>();
-					
-					row.add(mu0);
-					row.add(sigma0);
-					row.add(answer.get("lambda"));
-					row.add(answer.get("mu"));
-					row.add(answer.get("sigma"));					
-					row.add(answer.get("iterations"));
-					
-					matrix.add(row);
-					
-					boolean isUnique = true;
-					for (double l : lambdas) {
-						if ((answer.get("lambda") < 0) || Math.abs(l - answer.get("lambda")) < 1e-2) {
-							isUnique = false;
-							break;
-						}
-					}
-					if(isUnique) { 
-						LinkedHashMap<String, Double> s = new LinkedHashMap<String, Double>();
-						s.put("lambda", answer.get("lambda"));
-						s.put("mu", answer.get("mu"));
-						s.put("sigma", answer.get("sigma"));
-						
-						solutions.add(s); 
-					}
-					
-					lambdas.add(answer.get("lambda"));
-				}
+				row.add(mu0s.get(i / sigma0s.size()));
+				row.add(sigma0s.get(i % sigma0s.size()));
+				row.add(lambda);
+				row.add(grid.results[i][1]);
+				row.add(grid.results[i][2]);					
+				row.add(grid.results[i][3]);
+				
+				matrix.add(row);
+				
+				clusters.add(lambda, grid.results[i][1], grid.results[i][2]);
 			}
 		}
 		
-		printMatrix(matrix, matrix_headers);
-		System.out.println("Unique Solutions:");
-		System.out.println(solutions.toString());
+		ArrayList<LinkedHashMap<String, Double>> solutions = clusters.toSolutions();
 		
-		if (!wasAlreadyRun && solutions.isEmpty()) return newtonRaphson_ConvergenceTest(data, start, mu_guess, sigma_guess, .1, m, true); 
+		if (verbose) {
+			printMatrix(matrix, matrix_headers);
+			System.out.println("Unique Solutions:");
+			System.out.println(solutions.toString());
+		}
+		
+		if (!wasAlreadyRun && solutions.isEmpty()) return newtonRaphson_ConvergenceTest(data, start, mu_guess, sigma_guess, GRID_RETRY_STEP, m, true, pool, solver, clusters);
 		else return solutions;
 	}
 	
+	/**
+	 * The start values of one axis of the start grid, stepped the same way as the original serial loops (from 'start'
+	 * while less than guess+2, adding 'step' each time).
+	 * 
+	 * @param start The first start value.
+	 * @param guess The guess the axis extends 2 past.
+	 * @param step The step between start values.
+	 * @return The start values.
+	 */
+	static ArrayList<Double> gridPoints(double start, double guess, double step) {
+		ArrayList<Double> r = new ArrayList<Double>();
+		for (double x=start; x<(guess+2); x+=step) { r.add(x); }
+		return r;
+	}
+	
+	/**
+	 * Solves a range of the (mu0, sigma0) start grid used by 'newtonRaphson_ConvergenceTest', splitting the range
+	 * in half until it is small enough to solve on one thread. Each start point writes its answer into its own slot
+	 * so the results can be merged in grid order afterwards. A grid solved without a pool is never split, even when it is
+	 * solved on a thread of some other pool.
+	 */
+	private static class ConvergenceTestTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		//Number of start points to solve on one thread before splitting the range.
+		static final int THRESHOLD = 64;
+		
+		private WSBSolver solver;
+		private CitationData data;
+		private double m;
+		private ArrayList<Double> mu0s;
+		private ArrayList<Double> sigma0s;
+		private int from;
+		private int to;
+		private boolean fork; //true when the caller gave a pool to split the grid across
+		
+		//Shared by every task of one grid, each start point owns index (mu0 index * sigma0 count + sigma0 index).
+		boolean[] converged;
+		double[][] results; //lambda, mu, sigma, iterations
+		
+		ConvergenceTestTask(WSBSolver solver, CitationData data, double m, ArrayList<Double> mu0s, ArrayList<Double> sigma0s, int from, int to, boolean fork) {
+			this.solver = solver;
+			this.data = data;
+			this.m = m;
+			this.mu0s = mu0s;
+			this.sigma0s = sigma0s;
+			this.from = from;
+			this.to = to;
+			this.fork = fork;
+			
+			this.converged = new boolean[to];
+			this.results = new double[to][];
+		}
+		
+		private ConvergenceTestTask(ConvergenceTestTask parent, int from, int to) {
+			this.solver = parent.solver;
+			this.data = parent.data;
+			this.m = parent.m;
+			this.mu0s = parent.mu0s;
+			this.sigma0s = parent.sigma0s;
+			this.from = from;
+			this.to = to;
+			this.fork = parent.fork;
+			
+			this.converged = parent.converged;
+			this.results = parent.results;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (fork && to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ConvergenceTestTask(this, from, mid), new ConvergenceTestTask(this, mid, to));
+				return;
+			}
+			
+			IterationState answer = new IterationState(); //reused for every start point in this range
+			int columns = sigma0s.size();
+			
+			for (int i=from; i<to; i++) {
+				if (solver.solve(data, mu0s.get(i / columns), sigma0s.get(i % columns), m, answer)) {
+					converged[i] = true;
+					results[i] = new double[] { answer.lambda, answer.mu, answer.sigma, answer.iteration };
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Prints the citation history stored in 'l' in a formated way.
 	 * 
@@ -851,94 +1888,45 @@ public class CitationCore {
 	/**
 	 * Calculate lambda based on a solution found in the Newton-Raphson method for mu and sigma.
 	 * 
-	 * @param data The citation data in days.
+	 * @param data The citation history (see 'CitationTimeline', its last time and citation count are t and n).
 	 * @param mu The solution for mu.
 	 * @param sigma The solution for sigma.
 	 * @param m The average number of references for new papers for a journal.
-	 * @param t The last timestamp for the citation data.
-	 * @param n The total number of citations from the citation history.
 	 * @return The lambda value based on mu and sigma.
 	 */
-	public double getLambda(double[][] data, double mu, double sigma, double m, double t, double n) {
-		
-		double xt = (Math.log(t) - mu)/sigma;
-		double mhat = m/n;
-		
+	public double getLambda(CitationData data, double mu, double sigma, double m) {
+		return getLambda(data, mu, sigma, m, new IterationState());
+	}
+	
+	/**
+	 * Calculate lambda based on a solution found in the Newton-Raphson method for mu and sigma.
+	 * 
+	 * @param data The citation history.
+	 * @param mu The solution for mu.
+	 * @param sigma The solution for sigma.
+	 * @param m The average number of references for new papers for a journal.
+	 * @param l A state whose scratch space can be used (one per thread).
+	 * @return The lambda value based on mu and sigma.
+	 */
+	private double getLambda(CitationData data, double mu, double sigma, double m, IterationState l) {
 		
-		double s_pnorm_xi = 0;
+		double xt = (Math.log(data.getLastTime()) - mu)/sigma;
+		double mhat = m/data.getCitationCount();
 		
-		for (int i=0; i<n; i++) {
-			double ti = data[i][0];
-			double xi = (Math.log(ti) - mu)/sigma;
-			
-			s_pnorm_xi += pnorm(xi);
-		}
-		s_pnorm_xi /= n;
+		double s_pnorm_xi = data.meanPnorm(this, mu, sigma, l);
 		
 		return 1/(   ((1+mhat)*pnorm(xt)) - (s_pnorm_xi)     );
 	}
 	
 	
-	private double pnorm(double x) {
-		return nd.cumulativeProbability(x);
+	double pnorm(double x) {
+		return NormalKernel.pnorm(x);
 	}
 	
-	private double dnorm(double x) {
-		return nd.density(x);
+	double dnorm(double x) {
+		return NormalKernel.dnorm(x);
 	}
 	
-	/**
-	 * Get CSV citation history from a file.
-	 * 
-	 * @param filename The filename and path containing the citation data.
-	 * @param format The format of the file.
-	 * @param hasHeader Does the file have a line with headings?
-	 * @return A record containing the csv information.
-	 */
-	private static List<CSVRecord> getCSVData(String filename, CSVFormat format, boolean hasHeader) {
-		
-		boolean error = true;
-		List<CSVRecord> list_ourdata= null;
-		
-		 try {
-			FileReader ourdata = new FileReader(filename);
-			
-			CSVParser data_parser = new CSVParser(ourdata, format);
-	
-			list_ourdata = data_parser.getRecords();
-			
-			if (hasHeader) { list_ourdata.remove(0); } //remove header file.
-			
-			Iterator<CSVRecord> list_iterator = list_ourdata.iterator();
-			for (int rowIndex=0; rowIndex < list_ourdata.size(); rowIndex++) {
-				CSVRecord record = list_iterator.next();
-				
-				System.out.println("#" + (rowIndex+1) + " " + record.toString());
-				
-			}
-			
-			data_parser.close();
-			ourdata.close();
-			
-			error = false;
-			
-		 } catch(java.io.FileNotFoundException e) {
-			 System.err.println("ERROR: There was an error opening, reading, or parsing the input file.");
-			 System.err.println("ERROR:" + filename);
-			 error = true;
-		 } catch (java.io.IOException e) {
-			 System.err.println("ERROR: Could not close the parser or the input file.");
-			 error =  true;
-		 } 
-		 
-		 if (error || list_ourdata == null) {
-			 System.exit(1);
-			 return null;
-		 } else {
-			 return list_ourdata;
-		 }
-	}
-
 	/**
 	 * Fix the citation data, which is in years by translating the timestamps and citations to be in days.
 	 * 
@@ -946,25 +1934,20 @@ public class CitationCore {
 	 * @param limitToRows Limit the rows being processed.
 	 * @return The citation history in days.
 	 */
-	private static double[][] fixData(CSVRecord record, int limitToRows) {
+	static double[][] fixData(PaperRecord record, int limitToRows) {
 		
 		double[][] r = null;
 		int citationCount = 0;
 		int numberOfRowsToProcess = 0;
-		
-		Iterator<String> record_iterator = record.iterator();
-		record_iterator.next(); //move pass paper id
-		record_iterator.next(); //move pass paper publish year
+		int[] years = record.citationsPerYear;
 		
 		if (limitToRows!=0) { numberOfRowsToProcess = limitToRows; r = new double[numberOfRowsToProcess+1][2]; }
-		else { numberOfRowsToProcess = record.size()-2; r = new double[record.size()-2][2]; }
+		else { numberOfRowsToProcess = years.length; r = new double[years.length][2]; }
 		
-		for (int rowIndex=0; record_iterator.hasNext() && rowIndex<numberOfRowsToProcess; rowIndex++) {
-			
-			String citations_forthis_year = record_iterator.next();
+		for (int rowIndex=0; rowIndex<years.length && rowIndex<numberOfRowsToProcess; rowIndex++) {
 			
-			r[rowIndex][0] = Double.valueOf(rowIndex); //timestamp
-			r[rowIndex][1] = Double.valueOf(citations_forthis_year); //citation
+			r[rowIndex][0] = rowIndex; //timestamp
+			r[rowIndex][1] = years[rowIndex]; //citation
 			
 			citationCount += r[rowIndex][1];
 		}
@@ -0,0 +1,122 @@
+package citation_prediction;
+
+/**
+ * This class evaluates the cumulative citations predicted by a WSB solution (equation 3 of Wang, Song and Barabasi):
+ * <br>
+ * 	c(t) = m * (exp(lambda * pnorm((ln(t) - mu)/sigma)) - 1), with t in days since publication,
+ * <br>
+ * and the ultimate impact, the citations the paper gets as t goes to infinity:
+ * <br>
+ * 	c(infinity) = m * (exp(lambda) - 1).
+ * <br><br>
+ * Times are given in years since publication. The bulk functions evaluate many curves and times at once into arrays
+ * given by the caller, so scoring a large number of points allocates nothing: each curve's 1/sigma and
+ * (ln(365) - mu)/sigma are worked out once, and in 'cumulativeGrid' each ln(t) is shared by every curve.
+ */
+public class CitationCurve {
+
+	private static final double LN_365 = Math.log(365);
+
+	private CitationCurve() {
+	}
+
+	/**
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of the WSB solution.
+	 * @param mu The mu of the WSB solution.
+	 * @param sigma The sigma of the WSB solution.
+	 * @param years The time since publication in years.
+	 * @return The predicted cumulative citations at that time.
+	 */
+	public static double cumulative(double m, double lambda, double mu, double sigma, double years) {
+		return m * (Math.exp(lambda*NormalKernel.pnorm((Math.log(years)+LN_365-mu)/sigma))-1);
+	}
+
+	/**
+	 * This function evaluates one curve at many times.
+	 *
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of the WSB solution.
+	 * @param mu The mu of the WSB solution.
+	 * @param sigma The sigma of the WSB solution.
+	 * @param years The times since publication in years.
+	 * @param from The first time to evaluate.
+	 * @param to One past the last time to evaluate.
+	 * @param out Receives the cumulative citations at years[i] in out[outOffset + i - from].
+	 * @param outOffset Where the first value goes in 'out'.
+	 */
+	public static void cumulative(double m, double lambda, double mu, double sigma, double[] years, int from, int to, double[] out, int outOffset) {
+		double inv = 1/sigma;
+		double shift = (LN_365-mu)*inv;
+		for (int i=from, o=outOffset; i<to; i++, o++) {
+			out[o] = m * (Math.exp(lambda*NormalKernel.pnorm(Math.log(years[i])*inv + shift))-1);
+		}
+	}
+
+	/**
+	 * Evaluate one curve at every time of 'years' into the start of 'out'.
+	 */
+	public static void cumulative(double m, double lambda, double mu, double sigma, double[] years, double[] out) {
+		cumulative(m, lambda, mu, sigma, years, 0, years.length, out, 0);
+	}
+
+	/**
+	 * This function evaluates many (curve, time) pairs: pair i is curve 'curve[i]' at 'years[i]'.
+	 *
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of each curve.
+	 * @param mu The mu of each curve.
+	 * @param sigma The sigma of each curve.
+	 * @param curve The curve of each pair.
+	 * @param years The time of each pair in years since publication.
+	 * @param n The number of pairs.
+	 * @param out Receives the cumulative citations of pair i in out[i].
+	 */
+	public static void cumulative(double m, double[] lambda, double[] mu, double[] sigma, int[] curve, double[] years, int n, double[] out) {
+		for (int i=0; i<n; i++) {
+			int c = curve[i];
+			out[i] = m * (Math.exp(lambda[c]*NormalKernel.pnorm((Math.log(years[i])+LN_365-mu[c])/sigma[c]))-1);
+		}
+	}
+
+	/**
+	 * This function evaluates the first 'curves' curves at every time of 'years'. The value of curve c at years[j] goes
+	 * in out[c*years.length + j], so 'out' needs curves*years.length values.
+	 *
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of each curve.
+	 * @param mu The mu of each curve.
+	 * @param sigma The sigma of each curve.
+	 * @param curves The number of curves.
+	 * @param years The times since publication in years.
+	 * @param out Receives the cumulative citations, one row of times per curve.
+	 */
+	public static void cumulativeGrid(double m, double[] lambda, double[] mu, double[] sigma, int curves, double[] years, double[] out) {
+		int t = years.length;
+		for (int j=0; j<t; j++) {
+			double lnDays = Math.log(years[j]) + LN_365;
+			for (int c=0, o=j; c<curves; c++, o+=t) {
+				out[o] = m * (Math.exp(lambda[c]*NormalKernel.pnorm((lnDays-mu[c])/sigma[c]))-1);
+			}
+		}
+	}
+
+	/**
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of the WSB solution.
+	 * @return The predicted citations of the paper over its whole life.
+	 */
+	public static double ultimateImpact(double m, double lambda) {
+		return m * (Math.exp(lambda)-1);
+	}
+
+	/**
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param lambda The lambda of each curve.
+	 * @param n The number of curves.
+	 * @param out Receives the ultimate impact of curve c in out[c].
+	 */
+	public static void ultimateImpact(double m, double[] lambda, int n, double[] out) {
+		for (int c=0; c<n; c++) out[c] = m * (Math.exp(lambda[c])-1);
+	}
+}
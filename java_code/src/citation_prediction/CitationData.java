@@ -0,0 +1,42 @@
+package citation_prediction;
+
+/**
+ * A citation history prepared for the Newton-Raphson method. The method only needs the sums over every
+ * citation timestamp calculated by 'getIterationData' and 'getLambda', so each implementation is free to
+ * calculate those sums in the way that suits how it stores the citations.
+ */
+public interface CitationData {
+
+	/**
+	 * @return The last time value in the citation history (in days).
+	 */
+	double getLastTime();
+
+	/**
+	 * @return The total number of citations for this paper.
+	 */
+	double getCitationCount();
+
+	/**
+	 * Calculate the expected values (sums divided by the number of citations) of ln(ti), ln(ti)^2, xi, xi^2,
+	 * pnorm(xi), dnorm(xi), xi*dnorm(xi), xi^2*dnorm(xi) and xi^3*dnorm(xi) where xi = (ln(ti) - mu)/sigma,
+	 * and store them in the 's_' fields of 'l'.
+	 *
+	 * @param cc The CitationCore used to evaluate pnorm and dnorm.
+	 * @param mu The current iteration's mu value.
+	 * @param sigma The current iteration's sigma value.
+	 * @param l The state that will hold the calculated values (its scratch space can also be used).
+	 */
+	void sumIterationData(CitationCore cc, double mu, double sigma, IterationState l);
+
+	/**
+	 * Calculate the expected value of pnorm(xi) where xi = (ln(ti) - mu)/sigma, used to calculate lambda.
+	 *
+	 * @param cc The CitationCore used to evaluate pnorm.
+	 * @param mu The solution for mu.
+	 * @param sigma The solution for sigma.
+	 * @param l A state whose scratch space can be used.
+	 * @return The expected value of pnorm(xi).
+	 */
+	double meanPnorm(CitationCore cc, double mu, double sigma, IterationState l);
+}
@@ -0,0 +1,274 @@
+package citation_prediction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads citation histories (paper id, publish year, citations per year...) one paper at a time, straight from
+ * the bytes of the file into a {@link PaperRecord}. Only the paper id becomes a String, the year and the
+ * counts are parsed into ints without building a String for every cell.
+ * <br><br>
+ * The file can be read through a buffered stream or memory-mapped one region at a time, so files larger
+ * than memory (or than 2GB) can be read either way. A line that cannot be parsed is passed to the
+ * {@link ErrorHandler} and skipped, the rest of the file is still read.
+ */
+public class CitationReader implements Iterator<PaperRecord>, Iterable<PaperRecord>, Closeable {
+
+	/**
+	 * Told about every line that could not be parsed.
+	 */
+	public interface ErrorHandler {
+		void error(long lineNumber, String line, Exception e);
+	}
+
+	/** Prints one line to System.err for each line that could not be parsed. */
+	public static final ErrorHandler PRINT_ERRORS = new ErrorHandler() {
+		public void error(long lineNumber, String line, Exception e) {
+			System.err.println("ERROR: Could not parse line " + lineNumber + " (" + e.getMessage() + "): " + line);
+		}
+	};
+
+	//Size of each region of a file that is memory-mapped at a time.
+	static final long MAP_REGION = 64L * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ErrorHandler errors;
+
+	//Either a memory-mapped file...
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long position;
+
+	//...or a stream.
+	private InputStream in;
+	private byte[] streamBytes;
+
+	private ByteBuffer buf;
+	private boolean eof;
+
+	private byte[] line = new byte[1024];
+	private int lineLength;
+	private long lineNumber;
+
+	private PaperRecord next;
+
+	/**
+	 * @param filename The filename and path containing the citation data.
+	 * @param memoryMapped Memory-map the file instead of reading it through a buffered stream.
+	 * @param errors Told about every line that could not be parsed.
+	 */
+	public CitationReader(String filename, boolean memoryMapped, ErrorHandler errors) throws IOException {
+		this.errors = errors;
+
+		if (memoryMapped) {
+			file = new RandomAccessFile(new File(filename), "r");
+			channel = file.getChannel();
+		} else {
+			in = new FileInputStream(filename);
+			streamBytes = new byte[64 * 1024];
+		}
+	}
+
+	/**
+	 * @param in The stream containing the citation data.
+	 * @param errors Told about every line that could not be parsed.
+	 */
+	public CitationReader(InputStream in, ErrorHandler errors) {
+		this.errors = errors;
+		this.in = in;
+		this.streamBytes = new byte[64 * 1024];
+	}
+
+	/**
+	 * Read every paper in a file into memory (only meant for small files), printing lines that could not be parsed.
+	 *
+	 * @param filename The filename and path containing the citation data.
+	 * @return The papers in the order they appear in the file.
+	 */
+	public static List<PaperRecord> readAll(String filename) throws IOException {
+
+		List<PaperRecord> papers = new ArrayList<PaperRecord>();
+		CitationReader reader = new CitationReader(filename, false, PRINT_ERRORS);
+		try {
+			for (PaperRecord paper : reader) { papers.add(paper); }
+		} finally {
+			reader.close();
+		}
+		return papers;
+	}
+
+	public Iterator<PaperRecord> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		try {
+			while (next == null && readLine()) {
+				lineNumber++;
+				if (isBlank()) continue;
+
+				try {
+					next = parseLine();
+				} catch (RuntimeException e) {
+					errors.error(lineNumber, new String(line, 0, lineLength, UTF8), e);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("ERROR: Could not read the citation data at line " + lineNumber + ".", e);
+		}
+		return next != null;
+	}
+
+	public PaperRecord next() {
+		if (!hasNext()) throw new NoSuchElementException();
+
+		PaperRecord r = next;
+		next = null;
+		return r;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() throws IOException {
+		if (in != null) in.close();
+		if (channel != null) channel.close();
+		if (file != null) file.close();
+	}
+
+	/**
+	 * Move to the next region of the file.
+	 *
+	 * @return False at the end of the file.
+	 */
+	private boolean fill() throws IOException {
+
+		if (channel != null) {
+			long remaining = channel.size() - position;
+			if (remaining <= 0) return false;
+
+			long size = Math.min(remaining, MAP_REGION);
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			position += size;
+			return true;
+		}
+
+		int read = in.read(streamBytes);
+		while (read == 0) { read = in.read(streamBytes); }
+		if (read < 0) return false;
+
+		buf = ByteBuffer.wrap(streamBytes, 0, read);
+		return true;
+	}
+
+	/**
+	 * Copy the bytes of the next line (without the line ending) into 'line'.
+	 *
+	 * @return False at the end of the file.
+	 */
+	private boolean readLine() throws IOException {
+
+		lineLength = 0;
+		if (eof) return false;
+
+		while (true) {
+			if (buf == null || !buf.hasRemaining()) {
+				if (!fill()) {
+					eof = true;
+					return lineLength > 0;
+				}
+			}
+
+			byte b = buf.get();
+			if (b == '\n') {
+				if (lineLength > 0 && line[lineLength-1] == '\r') lineLength--;
+				return true;
+			}
+
+			if (lineLength == line.length) {
+				byte[] bigger = new byte[line.length * 2];
+				System.arraycopy(line, 0, bigger, 0, lineLength);
+				line = bigger;
+			}
+			line[lineLength++] = b;
+		}
+	}
+
+	private boolean isBlank() {
+		for (int i=0; i<lineLength; i++) {
+			if (line[i] != ' ' && line[i] != '\t' && line[i] != '\r') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse the current line: paper id, publish year, citations per year...
+	 */
+	private PaperRecord parseLine() {
+
+		int fields = 1;
+		for (int i=0; i<lineLength; i++) {
+			if (line[i] == ',') fields++;
+		}
+		if (fields < 3) throw new IllegalArgumentException("expected a paper id, a publish year and at least one year of citations");
+
+		//paper id
+		int end = indexOf(',', 0);
+		int from = 0;
+		int to = end;
+		while (from < to && line[from] == ' ') from++;
+		while (to > from && line[to-1] == ' ') to--;
+		if (to - from >= 2 && line[from] == '"' && line[to-1] == '"') { from++; to--; }
+		String id = new String(line, from, to - from, UTF8);
+
+		//publish year
+		int start = end + 1;
+		end = indexOf(',', start);
+		int year = parseInt(start, end);
+
+		//citations per year
+		int[] counts = new int[fields-2];
+		for (int i=0; i<counts.length; i++) {
+			start = end + 1;
+			end = indexOf(',', start);
+			counts[i] = parseInt(start, end);
+		}
+
+		return new PaperRecord(id, year, counts);
+	}
+
+	private int indexOf(char c, int from) {
+		for (int i=from; i<lineLength; i++) {
+			if (line[i] == c) return i;
+		}
+		return lineLength;
+	}
+
+	private int parseInt(int from, int to) {
+
+		while (from < to && line[from] == ' ') from++;
+		while (to > from && line[to-1] == ' ') to--;
+		if (from == to) throw new NumberFormatException("empty cell");
+
+		int value = 0;
+		for (int i=from; i<to; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException("not a whole number: " + new String(line, from, to - from, UTF8));
+			value = value*10 + digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,210 @@
+package citation_prediction;
+
+/**
+ * A citation history with one timestamp per citation, kept as flat arrays: the times ti (in days, in time order) and
+ * ln(ti) of every citation, along with the number of citations n and the last time t.
+ * <br><br>
+ * 'fixData' returns a double[n][2] of (time, running count) rows, and the Newton-Raphson method only reads the time of
+ * each row to take its log again on every iteration. A timeline takes each ln(ti) once when it is created, along with
+ * the sums of ln(ti) and ln(ti)^2, which do not depend on mu or sigma, so an iteration only has to work out
+ * xi = (ln(ti) - mu)/sigma from one contiguous array. A timeline never changes after it is created, so one timeline can
+ * be shared by every start point of the start grid and every thread solving them.
+ * <br><br>
+ * The sums are added up citation by citation in time order, and {@link #first(int)} gives the first citations of a
+ * timeline without copying it (see 'PaperFitContext'), so every training window of a paper can share one timeline.
+ */
+public final class CitationTimeline implements CitationData {
+
+	private final double[] t;
+	private final double[] lnT;
+	private final double[] prefixLn; //prefixLn[i] = the sum of ln(tj) for j<i
+	private final double[] prefixLnSqrd; //prefixLnSqrd[i] = the sum of ln(tj)^2 for j<i
+	private final int count;
+	private final double n;
+	private final double lastTime;
+
+	private CitationTimeline(double[] t, double[] lnT, double[] prefixLn, double[] prefixLnSqrd, int count, double lastTime) {
+		this.t = t;
+		this.lnT = lnT;
+		this.prefixLn = prefixLn;
+		this.prefixLnSqrd = prefixLnSqrd;
+		this.count = count;
+		this.n = count;
+		this.lastTime = lastTime;
+	}
+
+	/**
+	 * @param t The time of each citation in days, in time order (the array is copied).
+	 * @param lastTime The last time value in the citation history.
+	 */
+	public CitationTimeline(double[] t, double lastTime) {
+		this(t.clone(), new double[t.length], new double[t.length+1], new double[t.length+1], t.length, lastTime);
+		if (t.length == 0) throw new IllegalArgumentException("A citation timeline needs at least one citation.");
+		for (int i=0; i<count; i++) { add(i, Math.log(this.t[i])); }
+	}
+
+	/**
+	 * Uses the time of the last citation for the last time value.
+	 *
+	 * @param t The time of each citation in days, in time order (the array is copied).
+	 */
+	public CitationTimeline(double[] t) {
+		this(t, (t.length == 0) ? 0 : t[t.length-1]);
+	}
+
+	private void add(int i, double ln_ti) {
+		lnT[i] = ln_ti;
+		prefixLn[i+1] = prefixLn[i] + ln_ti;
+		prefixLnSqrd[i+1] = prefixLnSqrd[i] + ln_ti*ln_ti;
+	}
+
+	/**
+	 * @param data The citation data in days, as returned by 'fixData'.
+	 * @return The timeline of the data, using the last timestamp and the last running citation count for t and n.
+	 */
+	public static CitationTimeline of(double[][] data) {
+		if (data.length == 0) throw new IllegalArgumentException("A citation timeline needs at least one citation.");
+		double[] t = new double[(int) data[data.length-1][1]];
+		for (int i=0; i<t.length; i++) { t[i] = data[i][0]; }
+		return new CitationTimeline(t, data[data.length-1][0]);
+	}
+
+	/**
+	 * @param paper The citation history in years.
+	 * @return The timeline of every citation of the paper, with the timestamps of 'fixData(paper, 0)' (it has no
+	 * 		citations if the paper has none, see {@link #first(int)}).
+	 */
+	public static CitationTimeline of(PaperRecord paper) {
+
+		int[] years = paper.citationsPerYear;
+		int total = 0;
+		for (int c : years) { total += Math.max(c, 0); }
+
+		double[] t = new double[total];
+		int i = 0;
+		for (int k=0; k<years.length; k++) {
+			double c = years[k];
+			for (int j=0; j<c; j++, i++) {
+				t[i] = 365 * (k + (j+1)/c); //the timestamps of 'fixData'
+			}
+		}
+
+		CitationTimeline timeline = new CitationTimeline(t, new double[total], new double[total+1], new double[total+1], total, (total == 0) ? 0 : t[total-1]);
+		for (i=0; i<total; i++) { timeline.add(i, Math.log(t[i])); }
+		return timeline;
+	}
+
+	/**
+	 * @param citations The number of citations to keep.
+	 * @return The first citations of this timeline, sharing its arrays, with the time of the last of them for t.
+	 * @throws IllegalArgumentException If there are no citations to keep or more than this timeline has.
+	 */
+	public CitationTimeline first(int citations) {
+		if (citations <= 0 || citations > count) throw new IllegalArgumentException("Can not take the first " + citations + " of " + count + " citations.");
+		if (citations == count) return this;
+		return new CitationTimeline(t, lnT, prefixLn, prefixLnSqrd, citations, t[citations-1]);
+	}
+
+	/**
+	 * @return The number of citations in the timeline.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i The index of a citation (0 is the first).
+	 * @return The time of the citation in days.
+	 */
+	public double getTime(int i) {
+		if (i >= count) throw new IndexOutOfBoundsException("Citation " + i + " of " + count);
+		return t[i];
+	}
+
+	/**
+	 * @param i The index of a citation (0 is the first).
+	 * @return ln of the time of the citation in days.
+	 */
+	public double getLnTime(int i) {
+		if (i >= count) throw new IndexOutOfBoundsException("Citation " + i + " of " + count);
+		return lnT[i];
+	}
+
+	public double getLastTime() {
+		return lastTime;
+	}
+
+	public double getCitationCount() {
+		return n;
+	}
+
+	public void sumIterationData(CitationCore cc, double mu, double sigma, IterationState l) {
+
+		double[] lnT = this.lnT;
+		l.scratch(count);
+		double[] x = l.x;
+
+		double s_xi = 0;
+		double s_xi_sqrd = 0;
+		double s_pnorm_xi = 0;
+		double s_dnorm_xi = 0;
+		double s_xi_dnorm_xi = 0;
+		double s_xi_sqrd_dnorm_xi = 0;
+		double s_xi_cubed_dnorm_xi = 0;
+
+		//First pass: the xi values.
+		for (int i=0; i<count; i++) {
+			double xi = (lnT[i] - mu)/sigma;
+			s_xi += xi;
+			s_xi_sqrd += xi*xi;
+			x[i] = xi;
+		}
+
+		//Evaluate pnorm and dnorm for every citation at once.
+		NormalKernel.evaluate(x, 0, count, l.cdf, l.pdf);
+
+		//Second pass: the sums that need pnorm and dnorm.
+		for (int i=0; i<count; i++) {
+			double xi = x[i];
+			double dnorm_xi = l.pdf[i];
+
+			s_pnorm_xi += l.cdf[i];
+
+			s_dnorm_xi += dnorm_xi;
+			s_xi_dnorm_xi += xi * dnorm_xi;
+			s_xi_sqrd_dnorm_xi += xi*xi * dnorm_xi;
+			s_xi_cubed_dnorm_xi += xi*xi*xi * dnorm_xi;
+		}
+
+		//Divide by the total number of citations to get the expected values.
+		l.s_ln_ti = prefixLn[count] / n;
+		l.s_ln_ti_sqrd = prefixLnSqrd[count] / n;
+
+		l.s_xi = s_xi / n;
+		l.s_xi_sqrd = s_xi_sqrd / n;
+
+		l.s_pnorm_xi = s_pnorm_xi / n;
+
+		l.s_dnorm_xi = s_dnorm_xi / n;
+		l.s_xi_dnorm_xi = s_xi_dnorm_xi / n;
+		l.s_xi_sqrd_dnorm_xi = s_xi_sqrd_dnorm_xi / n;
+		l.s_xi_cubed_dnorm_xi = s_xi_cubed_dnorm_xi / n;
+	}
+
+	public double meanPnorm(CitationCore cc, double mu, double sigma, IterationState l) {
+
+		double[] lnT = this.lnT;
+		l.scratch(count);
+
+		for (int i=0; i<count; i++) {
+			l.x[i] = (lnT[i] - mu)/sigma;
+		}
+		NormalKernel.evaluate(l.x, 0, count, l.cdf, l.pdf);
+
+		double s_pnorm_xi = 0;
+		for (int i=0; i<count; i++) {
+			s_pnorm_xi += l.cdf[i];
+		}
+		return s_pnorm_xi / n;
+	}
+}
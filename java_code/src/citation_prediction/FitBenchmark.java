@@ -0,0 +1,503 @@
+package citation_prediction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * This class benchmarks the hot paths of a fit, so changes to them can be measured against a saved baseline.
+ * <br><br>
+ * Each benchmark is run like a JMH benchmark in average time mode: a few warmup iterations let the JIT compile the
+ * code, then each measurement iteration repeats the operation for a fixed time and the mean time of one operation
+ * (and its 99.9% confidence error across the iterations) is reported. The result of every operation is consumed so
+ * the JIT can not remove the work.
+ * <br><br>
+ * The fitting benchmarks ('getIterationData', 'getPartialsData', 'newtonRaphson', 'newtonRaphson_ConvergenceTest',
+ * 'fixData', 'CitationTimeline' and 'PaperFitContext', which replaces fixData for fitting) are parameterized by the
+ * number of citations, the training window and the step. Their citation histories keep the shape of a real paper
+ * ('WSB_selected_testpapers.csv', paper #1) scaled to each citation count. The reading benchmarks ('CitationReader',
+ * 'CitationCache', which replaced 'getCSVData') read every bundled file in 'papers/'.
+ * The curve benchmarks score the same grid of papers and future times one point at a time from the solution maps
+ * (like 'graphWSB' did) and with the bulk functions of {@link CitationCurve}.
+ * <br><br>
+ * Usage: java citation_prediction.FitBenchmark [-quick] [-filter regex] [-counts 10,100,...] [-windows 5,10,0]
+ * [-steps 1,.5] [-save results.csv] [-baseline results.csv] [papersDir]
+ */
+public class FitBenchmark {
+
+	public static final int[] DEFAULT_COUNTS = { 10, 100, 1000, 10000, 100000 };
+	public static final int[] DEFAULT_WINDOWS = { 5, 10, 0 };
+	public static final double[] DEFAULT_STEPS = { 1, .5 };
+
+	/** A change slower than the baseline by more than this (and more than the error) is reported as a regression. */
+	public static final double REGRESSION_THRESHOLD = .10;
+
+	/**
+	 * One operation to benchmark. The result is consumed, so return something that depends on all the work done.
+	 */
+	public interface Benchmark {
+		Object run() throws Exception;
+	}
+
+	/**
+	 * The time of one operation of a benchmark.
+	 */
+	public static class Result {
+		public String name;
+		public String params;
+		public double nsPerOp;
+		public double error; //99.9% confidence, in ns
+		public long ops;
+
+		public String key() {
+			return name + " " + params;
+		}
+
+		public String toString() {
+			return String.format("%-32s %-36s %14.1f +- %10.1f ns/op (%d ops)", name, params, nsPerOp, error, ops);
+		}
+	}
+
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationNanos = 500000000L;
+	private Pattern filter;
+
+	private ArrayList<Result> results = new ArrayList<Result>();
+
+	//Every result is folded in here so the work can not be optimized away.
+	private static volatile int sink;
+
+	/**
+	 * @param warmupIterations The number of iterations run before measuring (3 by default).
+	 * @param measurementIterations The number of iterations measured (5 by default).
+	 * @param iterationMillis The time each iteration repeats the operation for (500ms by default).
+	 */
+	public void setIterations(int warmupIterations, int measurementIterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+
+	/**
+	 * @param filter Only benchmarks whose name and parameters match are run, or null to run every benchmark.
+	 */
+	public void setFilter(Pattern filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Measure one benchmark and keep its result.
+	 *
+	 * @param name The name of the benchmark.
+	 * @param params The parameters of the benchmark.
+	 * @param b The operation.
+	 * @return The result, or null if the benchmark was filtered out.
+	 */
+	public Result measure(String name, String params, Benchmark b) throws Exception {
+
+		if (filter != null && !filter.matcher(name + " " + params).find()) return null;
+
+		//Repeat the operation in batches of about a millisecond, so reading the clock does not add to its time.
+		long batch = 1;
+		for (long t = 0; t < 1000000L && batch < (1L << 30); batch *= 2) {
+			long start = System.nanoTime();
+			for (long i=0; i<batch; i++) consume(b.run());
+			t = System.nanoTime() - start;
+			if (t >= 1000000L) break;
+		}
+
+		for (int i=0; i<warmupIterations; i++) { iteration(b, batch, null); }
+
+		double[] times = new double[measurementIterations];
+		long ops = 0;
+		for (int i=0; i<measurementIterations; i++) {
+			long[] n = new long[1];
+			times[i] = iteration(b, batch, n);
+			ops += n[0];
+		}
+
+		double mean = 0;
+		for (double t : times) mean += t;
+		mean /= times.length;
+
+		double var = 0;
+		for (double t : times) var += (t - mean)*(t - mean);
+		double error = (times.length > 1) ? 3.291 * Math.sqrt(var / (times.length - 1)) / Math.sqrt(times.length) : 0;
+
+		Result r = new Result();
+		r.name = name;
+		r.params = params;
+		r.nsPerOp = mean;
+		r.error = error;
+		r.ops = ops;
+
+		results.add(r);
+		System.out.println(r);
+		return r;
+	}
+
+	/**
+	 * @return The mean time of one operation in ns over one iteration.
+	 */
+	private double iteration(Benchmark b, long batch, long[] opsOut) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (long i=0; i<batch; i++) consume(b.run());
+			ops += batch;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+
+		if (opsOut != null) opsOut[0] = ops;
+		return elapsed / (double) ops;
+	}
+
+	private static void consume(Object o) {
+		if (o instanceof IterationState) {
+			IterationState l = (IterationState) o;
+			sink += (int) Double.doubleToLongBits(l.fn + l.gn + l.df_dmu + l.s_xi);
+		} else if (o != null) {
+			sink += o.hashCode();
+		}
+	}
+
+	/**
+	 * This function builds a citation history with the shape of a real paper scaled to a number of citations.
+	 *
+	 * @param shape The paper whose yearly counts give the shape.
+	 * @param citations The total number of citations of the new paper.
+	 * @return The scaled paper.
+	 */
+	public static PaperRecord scale(PaperRecord shape, int citations) {
+
+		int[] c = shape.citationsPerYear;
+		long total = 0;
+		int peak = 0;
+		for (int i=0; i<c.length; i++) {
+			total += c[i];
+			if (c[i] > c[peak]) peak = i;
+		}
+
+		int[] scaled = new int[c.length];
+		long sum = 0;
+		for (int i=0; i<c.length; i++) {
+			scaled[i] = (int) Math.floor(c[i] * (double) citations / total);
+			sum += scaled[i];
+		}
+		scaled[peak] += citations - sum; //put the rounding in the peak year
+
+		return new PaperRecord(shape.id + "x" + citations, shape.year, scaled);
+	}
+
+	/**
+	 * Run the fitting benchmarks.
+	 *
+	 * @param shape The paper whose shape every citation history has.
+	 * @param counts The numbers of citations.
+	 * @param windows The training windows (0 means all years).
+	 * @param steps The steps of the start grid.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 */
+	public void fitting(PaperRecord shape, int[] counts, int[] windows, double[] steps, final double m) throws Exception {
+
+		final CitationCore cc = new CitationCore();
+		final WSBSolver solver = new ParksNewtonSolver(cc);
+		final double mu = 7;
+		final double sigma = 1;
+
+		for (int count : counts) {
+			final PaperRecord paper = scale(shape, count);
+
+			for (final int window : windows) {
+				final CitationData data = CitationTimeline.of(CitationCore.fixData(paper, window));
+				String params = "citations=" + count + ", window=" + window;
+
+				measure("fixData", params, new Benchmark() {
+					public Object run() {
+						return CitationCore.fixData(paper, window);
+					}
+				});
+
+				measure("CitationTimeline", params, new Benchmark() {
+					public Object run() {
+						return CitationTimeline.of(CitationCore.fixData(paper, window));
+					}
+				});
+
+				final IterationState l = new IterationState();
+				measure("getIterationData", params, new Benchmark() {
+					public Object run() {
+						return cc.getIterationData(data, mu, sigma, m, 0, l);
+					}
+				});
+
+				final CitationData view = new PaperFitContext(paper).window(window);
+				measure("getIterationData (PaperFitContext)", params, new Benchmark() {
+					public Object run() {
+						return cc.getIterationData(view, mu, sigma, m, 0, l);
+					}
+				});
+
+				measure("PaperFitContext", params, new Benchmark() {
+					public Object run() {
+						return new PaperFitContext(paper).window(window);
+					}
+				});
+
+				cc.getIterationData(data, mu, sigma, m, 0, l);
+				measure("getPartialsData", params, new Benchmark() {
+					public Object run() {
+						return cc.getPartialsData(l);
+					}
+				});
+
+				measure("newtonRaphson", params, new Benchmark() {
+					public Object run() {
+						cc.newtonRaphson(data, mu, sigma, m, l);
+						return l;
+					}
+				});
+
+				for (final double step : steps) {
+					measure("newtonRaphson_ConvergenceTest", params + ", step=" + step, new Benchmark() {
+						public Object run() {
+							return CitationCore.newtonRaphson_ConvergenceTest(data, step, m, null, solver);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the curve benchmarks: evaluate 'papers' WSB solutions at 'times' future times.
+	 *
+	 * @param papers The number of papers (one solution each).
+	 * @param times The number of times.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 */
+	public void curves(final int papers, final int times, final double m) throws Exception {
+
+		//Solutions spread like the fits of the bundled files.
+		Random r = new Random(1);
+		final ArrayList<LinkedHashMap<String, Double>> solutions = new ArrayList<LinkedHashMap<String, Double>>();
+		final double[] lambda = new double[papers];
+		final double[] mu = new double[papers];
+		final double[] sigma = new double[papers];
+		for (int p=0; p<papers; p++) {
+			lambda[p] = .5 + 3*r.nextDouble();
+			mu[p] = 6 + 3*r.nextDouble();
+			sigma[p] = .5 + 1.5*r.nextDouble();
+			LinkedHashMap<String, Double> s = new LinkedHashMap<String, Double>();
+			s.put("lambda", lambda[p]);
+			s.put("mu", mu[p]);
+			s.put("sigma", sigma[p]);
+			solutions.add(s);
+		}
+		final double[] years = new double[times];
+		for (int j=0; j<times; j++) years[j] = 1 + 30.0*j/times;
+		final double[] out = new double[papers*times];
+		String params = "papers=" + papers + ", times=" + times;
+
+		measure("curve (per point)", params, new Benchmark() {
+			public Object run() {
+				double sum = 0;
+				for (LinkedHashMap<String, Double> s : solutions) {
+					for (int j=0; j<times; j++) {
+						sum += m * (Math.exp(s.get("lambda")*NormalKernel.pnorm((Math.log(365*years[j])-s.get("mu"))/s.get("sigma")))-1);
+					}
+				}
+				return sum;
+			}
+		});
+
+		measure("CitationCurve.cumulative", params, new Benchmark() {
+			public Object run() {
+				for (int p=0; p<papers; p++) CitationCurve.cumulative(m, lambda[p], mu[p], sigma[p], years, 0, times, out, p*times);
+				return out[out.length-1] + out[0];
+			}
+		});
+
+		measure("CitationCurve.cumulativeGrid", params, new Benchmark() {
+			public Object run() {
+				CitationCurve.cumulativeGrid(m, lambda, mu, sigma, papers, years, out);
+				return out[out.length-1] + out[0];
+			}
+		});
+	}
+
+	/**
+	 * Run the reading benchmarks on every csv file in a directory.
+	 *
+	 * @param dir The directory of the csv files.
+	 */
+	public void reading(File dir) throws Exception {
+
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".csv");
+			}
+		});
+		if (names == null) return;
+		Arrays.sort(names);
+
+		for (String name : names) {
+			final String filename = new File(dir, name).getPath();
+			final CitationReader.ErrorHandler ignore = new CitationReader.ErrorHandler() {
+				public void error(long lineNumber, String line, Exception e) {}
+			};
+
+			measure("CitationReader (stream)", "file=" + name, new Benchmark() {
+				public Object run() throws IOException {
+					int n = 0;
+					CitationReader in = new CitationReader(filename, false, ignore);
+					try {
+						for (PaperRecord p : in) n += p.citationsPerYear.length;
+					} finally {
+						in.close();
+					}
+					return n;
+				}
+			});
+
+			measure("CitationReader (mapped)", "file=" + name, new Benchmark() {
+				public Object run() throws IOException {
+					int n = 0;
+					CitationReader in = new CitationReader(filename, true, ignore);
+					try {
+						for (PaperRecord p : in) n += p.citationsPerYear.length;
+					} finally {
+						in.close();
+					}
+					return n;
+				}
+			});
+
+			final File cacheFile = File.createTempFile("bench", ".cache");
+			cacheFile.deleteOnExit();
+			CitationCache.build(filename, cacheFile.getPath(), ignore);
+			measure("CitationCache", "file=" + name, new Benchmark() {
+				public Object run() throws IOException {
+					int n = 0;
+					for (PaperRecord p : CitationCache.load(cacheFile.getPath())) n += p.citationsPerYear.length;
+					return n;
+				}
+			});
+		}
+	}
+
+	/** @return The results measured so far. */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Save the results to a file (one line per result: name, parameters, ns/op, error).
+	 *
+	 * @param filename The file to write.
+	 */
+	public void save(String filename) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(filename));
+		try {
+			for (Result r : results) { out.println(r.name + "\t" + r.params + "\t" + r.nsPerOp + "\t" + r.error); }
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Compare the results with a baseline saved by 'save' and print the change of each benchmark.
+	 *
+	 * @param filename The baseline file.
+	 * @return The number of benchmarks that regressed (slower by more than 'REGRESSION_THRESHOLD' and the error).
+	 */
+	public int compare(String filename) throws IOException {
+
+		HashMap<String, double[]> baseline = new HashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] f = line.split("\t");
+				if (f.length == 4) baseline.put(f[0] + " " + f[1], new double[] { Double.valueOf(f[2]), Double.valueOf(f[3]) });
+			}
+		} finally {
+			in.close();
+		}
+
+		int regressions = 0;
+		for (Result r : results) {
+			double[] b = baseline.get(r.key());
+			if (b == null) continue;
+
+			double change = (r.nsPerOp - b[0]) / b[0];
+			boolean regressed = change > REGRESSION_THRESHOLD && (r.nsPerOp - b[0]) > (r.error + b[1]);
+			if (regressed) regressions++;
+			System.out.println(String.format("%-70s %+7.1f%%%s", r.key(), 100*change, regressed ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+
+	private static int[] ints(String s) {
+		String[] f = s.split(",");
+		int[] r = new int[f.length];
+		for (int i=0; i<f.length; i++) r[i] = Integer.valueOf(f[i].trim());
+		return r;
+	}
+
+	private static double[] doubles(String s) {
+		String[] f = s.split(",");
+		double[] r = new double[f.length];
+		for (int i=0; i<f.length; i++) r[i] = Double.valueOf(f[i].trim());
+		return r;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		FitBenchmark bench = new FitBenchmark();
+		int[] counts = DEFAULT_COUNTS;
+		int[] windows = DEFAULT_WINDOWS;
+		double[] steps = DEFAULT_STEPS;
+		String save = null;
+		String baseline = null;
+
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].equals("-quick")) { bench.setIterations(1, 3, 100); }
+			else if (args[0].equals("-filter") && args.length > 1) { bench.setFilter(Pattern.compile(args[1])); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-counts") && args.length > 1) { counts = ints(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-windows") && args.length > 1) { windows = ints(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-steps") && args.length > 1) { steps = doubles(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-save") && args.length > 1) { save = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-baseline") && args.length > 1) { baseline = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else {
+				System.err.println("Usage: java citation_prediction.FitBenchmark [-quick] [-filter regex] [-counts 10,100,...] [-windows 5,10,0] [-steps 1,.5] [-save results.csv] [-baseline results.csv] [papersDir]");
+				System.exit(1);
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		File dir = new File(args.length > 0 ? args[0] : "papers/");
+		CitationCore.verbose = false;
+
+		List<PaperRecord> fixtures = CitationReader.readAll(new File(dir, "WSB_selected_testpapers.csv").getPath());
+		bench.fitting(fixtures.get(0), counts, windows, steps, 30);
+		bench.curves(1000, 100, 30);
+		bench.reading(dir);
+
+		if (save != null) { bench.save(save); }
+		if (baseline != null && bench.compare(baseline) > 0) { System.exit(2); }
+	}
+}
@@ -0,0 +1,244 @@
+package citation_prediction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the WSB solutions found by 'newtonRaphson_ConvergenceTest', keyed by the content of the
+ * citation history, so papers with the same citation history are only fitted once.
+ * <br><br>
+ * The key (see {@link #key}) is a SHA-256 hash of everything the start grid search depends on: the citation
+ * counts inside the training window with trailing zero years removed (years without citations after the last
+ * citation do not change the fit), m, the step, the start grid and how it is searched and how the data is summed.
+ * Two papers with different ids but the same counts share one entry, as do different windows that cover the same counts.
+ * <br><br>
+ * The least recently used entry is evicted once the cache is full. The cache can be saved to and loaded from a
+ * file so repeated runs over the same papers skip the fits they already did. All methods are thread safe.
+ */
+public class FitCache {
+
+	/** The number of entries kept by the default constructor. */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	//Change whenever the fitting changes in a way that changes the solutions, so old saved caches are not reused.
+	static final int KEY_VERSION = 2;
+
+	static final int FILE_MAGIC = 0x43494643; //"CIFC"
+	static final int FILE_VERSION = 1;
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, ArrayList<LinkedHashMap<String, Double>>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries The maximum number of fits kept before the least recently used one is evicted.
+	 */
+	public FitCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, ArrayList<LinkedHashMap<String, Double>>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, ArrayList<LinkedHashMap<String, Double>>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public FitCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Build the key of a fit.
+	 *
+	 * @param citationsPerYear The number of citations in each year since publication (year 0 first).
+	 * @param window The number of years of training data used (0 means all years).
+	 * @param grouped True if the fit uses 'GroupedCitationData', false if it uses 'fixData'.
+	 * @param step The step used to search the start grid.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param search How the start grid is searched ("grid" for the exhaustive search, or the 'AdaptiveSearch' toString()).
+	 * @return The key, a SHA-256 hash in hex.
+	 */
+	public static String key(int[] citationsPerYear, int window, boolean grouped, double step, double m, String search) {
+
+		int years = (window == 0) ? citationsPerYear.length : Math.min(window, citationsPerYear.length);
+		while (years > 0 && citationsPerYear[years-1] == 0) years--;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(96 + 4*years);
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(KEY_VERSION);
+			out.writeUTF(search);
+			out.writeBoolean(grouped);
+			out.writeInt(grouped ? GroupedCitationData.DEFAULT_EXACT_LIMIT : 0);
+			out.writeBoolean(NormalKernel.exact);
+			out.writeDouble(m);
+			out.writeDouble(step);
+			out.writeDouble(CitationCore.GRID_START);
+			out.writeDouble(CitationCore.GRID_MU_GUESS);
+			out.writeDouble(CitationCore.GRID_SIGMA_GUESS);
+			out.writeDouble(CitationCore.GRID_RETRY_STEP);
+			out.writeInt(years);
+			for (int i=0; i<years; i++) { out.writeInt(citationsPerYear[i]); }
+			out.flush();
+
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+
+			StringBuilder hex = new StringBuilder(2*hash.length);
+			for (byte b : hash) { hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16)); }
+			return hex.toString();
+
+		} catch (IOException e) {
+			throw new IllegalStateException(e); //a ByteArrayOutputStream does not throw
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); //every java platform has SHA-256
+		}
+	}
+
+	/**
+	 * @param key The key of the fit (see 'key').
+	 * @return A copy of the cached solutions, or null if the fit is not cached.
+	 */
+	public ArrayList<LinkedHashMap<String, Double>> get(String key) {
+
+		ArrayList<LinkedHashMap<String, Double>> solutions;
+		synchronized (entries) { solutions = entries.get(key); }
+
+		if (solutions == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return copy(solutions);
+	}
+
+	/**
+	 * @param key The key of the fit (see 'key').
+	 * @param solutions The solutions found by the fit (a copy is cached).
+	 */
+	public void put(String key, ArrayList<LinkedHashMap<String, Double>> solutions) {
+		ArrayList<LinkedHashMap<String, Double>> c = copy(solutions);
+		synchronized (entries) { entries.put(key, c); }
+	}
+
+	public int size() {
+		synchronized (entries) { return entries.size(); }
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public String toString() {
+		return "FitCache: " + size() + " fits, " + getHits() + " hits, " + getMisses() + " misses";
+	}
+
+	/**
+	 * Save every entry to a file, least recently used first.
+	 *
+	 * @param filename The file to write.
+	 */
+	public void save(String filename) throws IOException {
+
+		File tmp = new File(filename + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+
+			synchronized (entries) {
+				out.writeInt(entries.size());
+				for (Entry<String, ArrayList<LinkedHashMap<String, Double>>> e : entries.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue().size());
+
+					for (LinkedHashMap<String, Double> solution : e.getValue()) {
+						out.writeInt(solution.size());
+						for (Entry<String, Double> v : solution.entrySet()) {
+							out.writeUTF(v.getKey());
+							out.writeBoolean(v.getValue() != null);
+							if (v.getValue() != null) out.writeDouble(v.getValue());
+						}
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		File f = new File(filename);
+		if (f.exists() && !f.delete()) throw new IOException("Could not replace the fit cache " + filename);
+		if (!tmp.renameTo(f)) throw new IOException("Could not write the fit cache " + filename);
+	}
+
+	/**
+	 * Add every entry saved in a file to this cache (the hit and miss counts are not changed).
+	 *
+	 * @param filename The file to read.
+	 * @return The number of entries read.
+	 */
+	public int load(String filename) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		try {
+			if (in.readInt() != FILE_MAGIC) throw new IOException("Not a fit cache: " + filename);
+			int version = in.readInt();
+			if (version != FILE_VERSION) throw new IOException("Fit cache version " + version + " is not supported.");
+
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				String key = in.readUTF();
+				int solutionCount = in.readInt();
+
+				ArrayList<LinkedHashMap<String, Double>> solutions = new ArrayList<LinkedHashMap<String, Double>>(solutionCount);
+				for (int s=0; s<solutionCount; s++) {
+					int size = in.readInt();
+
+					LinkedHashMap<String, Double> solution = new LinkedHashMap<String, Double>();
+					for (int v=0; v<size; v++) {
+						String name = in.readUTF();
+						solution.put(name, in.readBoolean() ? in.readDouble() : null);
+					}
+					solutions.add(solution);
+				}
+
+				synchronized (entries) { entries.put(key, solutions); }
+			}
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ArrayList<LinkedHashMap<String, Double>> copy(ArrayList<LinkedHashMap<String, Double>> solutions) {
+
+		ArrayList<LinkedHashMap<String, Double>> r = new ArrayList<LinkedHashMap<String, Double>>(solutions.size());
+		for (LinkedHashMap<String, Double> s : solutions) { r.add(new LinkedHashMap<String, Double>(s)); }
+		return r;
+	}
+}
@@ -0,0 +1,432 @@
+package citation_prediction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import citation_prediction.BatchFitter.PaperFit;
+import citation_prediction.BatchFitter.ResultListener;
+
+/**
+ * This class fits, plots and saves whole citation files as a pipeline of stages, so fitting (which needs the CPU) never
+ * waits for plots to be rendered or results to be written.
+ * <br><br>
+ * The stages are connected by bounded queues, so a slow stage makes the stages before it wait instead of using more memory:
+ * <br>
+ * 	1. ingest: reads the papers (one thread).<br>
+ * 	2. fit: fits every training window of a paper with a {@link BatchFitter} ('fitThreads' threads).<br>
+ * 	3. render: plots the fits of a paper to a PNG file (see 'BatchFitter.plotFits', 'renderThreads' threads). This stage
+ * 		is left out when no plot directory is set.<br>
+ * 	4. persist: writes the fits in paper order and hands them to the listener (one thread, so the order is kept).<br>
+ * <br>
+ * A training window that cannot be fitted is persisted as a failed fit with its error (see 'PaperFit.failed') and the
+ * other windows of the paper are still fitted. A paper whose plot fails is reported and its fits are still persisted.
+ * Either way the rest of the pipeline carries on, and papers the fitter was told are completed (see 'BatchFitter.setCompleted') are skipped. Each stage counts the papers it processed, the time it
+ * spent working and the depth of its input queue (see {@link StageStats}), and the time each stage spends on a paper
+ * goes into the histogram 'stage.(name).nanos' of 'Metrics.GLOBAL'.
+ */
+public class FitPipeline {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+	/**
+	 * The counts of one stage of the pipeline. The counts can be read while the pipeline is running.
+	 */
+	public static class StageStats {
+		public final String name;
+		public final int threads;
+
+		private BlockingQueue<PaperJob> input;
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicInteger maxQueueDepth = new AtomicInteger();
+		private volatile long start;
+		private volatile long end;
+
+		StageStats(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		void queued() {
+			int depth = input.size();
+			int max;
+			while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+		}
+
+		/** @return The number of papers this stage has passed on. */
+		public long getProcessed() {
+			return processed.get();
+		}
+
+		/** @return The number of papers this stage could not process. */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/** @return The number of papers waiting for this stage. */
+		public int getQueueDepth() {
+			return (input == null) ? 0 : input.size();
+		}
+
+		/** @return The largest number of papers that were waiting for this stage. */
+		public int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+
+		/** @return The papers processed per second since the pipeline started. */
+		public double getThroughput() {
+			if (start == 0) return 0;
+			long elapsed = ((end == 0) ? System.nanoTime() : end) - start;
+			return (elapsed <= 0) ? 0 : processed.get() * 1e9 / elapsed;
+		}
+
+		/** @return The fraction of the time this stage's threads spent working (instead of waiting on a queue). */
+		public double getUtilization() {
+			if (start == 0) return 0;
+			long elapsed = ((end == 0) ? System.nanoTime() : end) - start;
+			return (elapsed <= 0) ? 0 : busyNanos.get() / ((double) elapsed * threads);
+		}
+
+		public String toString() {
+			return String.format("%s: %d threads, %d papers (%d failed), %.2f papers/s, %.0f%% busy, queue %d (max %d)",
+					name, threads, getProcessed(), getFailed(), getThroughput(), 100*getUtilization(), getQueueDepth(), getMaxQueueDepth());
+		}
+	}
+
+	/**
+	 * One paper moving through the pipeline.
+	 */
+	static class PaperJob {
+		int paperNumber;
+		PaperRecord paper;
+		ArrayList<PaperFit> fits;
+		boolean failed; //a stage failed and the paper has nothing to persist
+		boolean renderFailed; //the plot could not be written, the fits are still persisted
+		boolean skipped; //completed by an earlier run, only kept to hold its place in the order
+	}
+
+	//Tells a stage thread that there are no more papers.
+	private static final PaperJob END = new PaperJob();
+
+	private final BatchFitter fitter;
+	private final int fitThreads;
+	private final int renderThreads;
+	private final int queueCapacity;
+
+	private File plotDir;
+	private String plotPrefix;
+	private String plotTitle;
+	private int plotWidth = PlotRenderer.DEFAULT_WIDTH;
+	private int plotHeight = PlotRenderer.DEFAULT_HEIGHT;
+	private Writer out;
+	private ResultListener listener;
+
+	private StageStats ingest, fit, render, persist;
+	private volatile IOException writeError;
+	private volatile RuntimeException readError;
+
+	/**
+	 * @param fitter Fits each paper (its windows, solver, search and caches are used, its threads are not).
+	 * @param fitThreads The number of threads fitting papers.
+	 * @param renderThreads The number of threads rendering plots.
+	 * @param queueCapacity The number of papers each queue holds before the stage feeding it waits.
+	 */
+	public FitPipeline(BatchFitter fitter, int fitThreads, int renderThreads, int queueCapacity) {
+		if (fitThreads < 1 || renderThreads < 1 || queueCapacity < 1) throw new IllegalArgumentException("The threads and queue capacity must be at least 1.");
+		this.fitter = fitter;
+		this.fitThreads = fitThreads;
+		this.renderThreads = renderThreads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Plot every paper to '(prefix)_(paper number)_m(m).png' in a directory.
+	 *
+	 * @param dir The directory of the plots, or null to not plot.
+	 * @param prefix The start of each file name, or null to use the id of each paper.
+	 * @param title The title of every plot.
+	 */
+	public void setPlots(File dir, String prefix, String title) {
+		this.plotDir = dir;
+		this.plotPrefix = prefix;
+		this.plotTitle = title;
+	}
+
+	/**
+	 * @param width The width of the plots in pixels.
+	 * @param height The height of the plots in pixels.
+	 */
+	public void setPlotSize(int width, int height) {
+		this.plotWidth = width;
+		this.plotHeight = height;
+	}
+
+	/**
+	 * @param out Receives one line per fit (see 'PaperFit.toString') in paper order, or null. It is not closed.
+	 */
+	public void setOutput(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param listener Receives each fit in paper order, on the persist thread, or null.
+	 */
+	public void setListener(ResultListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Run every paper through the pipeline and wait for the last one to be persisted.
+	 *
+	 * @param papers The citation histories.
+	 * @return The number of papers persisted (papers whose fit failed are not counted).
+	 * @throws RuntimeException If the papers could not be read (the papers read before the error are still persisted).
+	 */
+	public int run(final Iterable<PaperRecord> papers) throws IOException, InterruptedException {
+
+		boolean plots = (plotDir != null);
+
+		ingest = new StageStats("ingest", 1);
+		fit = new StageStats("fit", fitThreads);
+		render = plots ? new StageStats("render", renderThreads) : null;
+		persist = new StageStats("persist", 1);
+		writeError = null;
+		readError = null;
+
+		final BlockingQueue<PaperJob> fitQueue = new ArrayBlockingQueue<PaperJob>(queueCapacity);
+		final BlockingQueue<PaperJob> renderQueue = plots ? new ArrayBlockingQueue<PaperJob>(queueCapacity) : null;
+		final BlockingQueue<PaperJob> persistQueue = new ArrayBlockingQueue<PaperJob>(queueCapacity);
+		fit.input = fitQueue;
+		if (plots) render.input = renderQueue;
+		persist.input = persistQueue;
+
+		final AtomicInteger persisted = new AtomicInteger();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		//1. ingest
+		threads.add(new Thread(new Runnable() {
+			public void run() {
+				try {
+					int pn = 0;
+					long t = System.nanoTime();
+					for (PaperRecord paper : papers) {
+						PaperJob job = new PaperJob();
+						job.paperNumber = ++pn;
+						job.paper = paper;
+						job.skipped = fitter.isCompleted(job.paperNumber, paper.id);
+						ingest.busyNanos.addAndGet(System.nanoTime() - t);
+						if (!job.skipped) ingest.processed.incrementAndGet();
+
+						fitQueue.put(job);
+						fit.queued();
+						t = System.nanoTime();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					readError = e; //the papers read so far are still fitted, the error is thrown once the pipeline finishes
+				} finally {
+					ingest.end = System.nanoTime();
+					//The fit threads always have to be told to stop, or a read error would leave the pipeline waiting forever.
+					if (!Thread.currentThread().isInterrupted()) {
+						try {
+							for (int i=0; i<fitThreads; i++) { fitQueue.put(END); }
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}
+		}, "pipeline-ingest"));
+
+		//2. fit
+		final BlockingQueue<PaperJob> afterFit = plots ? renderQueue : persistQueue;
+		final StageStats afterFitStats = plots ? render : persist;
+		Stage fitStage = new Stage(fit, fitQueue, afterFit, afterFitStats, plots ? renderThreads : 1) {
+			void process(PaperJob job) {
+				job.fits = new ArrayList<PaperFit>();
+				PaperFitContext context = new PaperFitContext(job.paper);
+				for (int window : fitter.getWindows()) {
+					try {
+						job.fits.add(fitter.fitPaper(context, job.paperNumber, window));
+					} catch (RuntimeException e) {
+						System.err.println("ERROR: Could not fit paper #" + job.paperNumber + " (train=" + window + ").");
+						e.printStackTrace();
+						job.fits.add(PaperFit.failed(job.paper, job.paperNumber, window, fitter.getM(), e));
+					}
+				}
+			}
+		};
+		for (int i=0; i<fitThreads; i++) { threads.add(new Thread(fitStage, "pipeline-fit-" + (i+1))); }
+
+		//3. render
+		if (plots) {
+			Stage renderStage = new Stage(render, renderQueue, persistQueue, persist, 1) {
+				void process(PaperJob job) throws IOException {
+					String name = ((plotPrefix == null) ? job.paper.id : plotPrefix) + "_" + job.paperNumber + "_m" + fitter.getM() + ".png";
+					PlotRenderer.writePNG(BatchFitter.plotFits(job.fits, plotTitle), new File(plotDir, name), plotWidth, plotHeight);
+				}
+				
+				void failed(PaperJob job) {
+					job.renderFailed = true; //the fits do not depend on the plot
+				}
+			};
+			for (int i=0; i<renderThreads; i++) { threads.add(new Thread(renderStage, "pipeline-render-" + (i+1))); }
+		}
+
+		//4. persist
+		threads.add(new Thread(new Stage(persist, persistQueue, null, null, 0) {
+
+			//The papers that arrived before the papers ahead of them.
+			TreeMap<Integer, PaperJob> waiting = new TreeMap<Integer, PaperJob>();
+			int next = 1;
+
+			boolean accepts(PaperJob job) {
+				return true; //failed papers still have to be taken out of the order
+			}
+
+			void process(PaperJob job) throws IOException {
+				waiting.put(job.paperNumber, job);
+				while (!waiting.isEmpty() && waiting.firstKey() == next) {
+					PaperJob j = waiting.remove(next++);
+					if (j.failed || j.skipped) continue;
+
+					for (PaperFit f : j.fits) {
+						if (out != null && writeError == null) {
+							try {
+								out.write(f.toString() + System.getProperty("line.separator"));
+							} catch (IOException e) {
+								writeError = e; //keep fitting, the error is thrown once the pipeline finishes
+							}
+						}
+						if (listener != null) listener.fitted(f);
+					}
+					persisted.incrementAndGet();
+				}
+			}
+		}, "pipeline-persist"));
+
+		long start = System.nanoTime();
+		for (StageStats s : getStats()) { s.start = start; }
+
+		try {
+			for (Thread t : threads) { t.start(); }
+			for (Thread t : threads) { t.join(); }
+		} catch (InterruptedException e) {
+			for (Thread t : threads) { t.interrupt(); }
+			throw e;
+		}
+
+		if (out != null) out.flush();
+		if (readError != null) throw readError;
+		if (writeError != null) throw writeError;
+		return persisted.get();
+	}
+
+	/**
+	 * The worker loop of the fit, render and persist stages: take a paper, process it and pass it on. The last thread
+	 * of a stage to finish tells every thread of the next stage that there are no more papers.
+	 */
+	private abstract static class Stage implements Runnable {
+
+		private final StageStats stats;
+		private final BlockingQueue<PaperJob> in;
+		private final BlockingQueue<PaperJob> next;
+		private final StageStats nextStats;
+		private final int nextThreads;
+		private final AtomicInteger running;
+
+		Stage(StageStats stats, BlockingQueue<PaperJob> in, BlockingQueue<PaperJob> next, StageStats nextStats, int nextThreads) {
+			this.stats = stats;
+			this.in = in;
+			this.next = next;
+			this.nextStats = nextStats;
+			this.nextThreads = nextThreads;
+			this.running = new AtomicInteger(stats.threads);
+		}
+
+		abstract void process(PaperJob job) throws Exception;
+
+		/** Mark a paper this stage failed on (by default nothing is left to persist for it). */
+		void failed(PaperJob job) {
+			job.failed = true;
+		}
+
+		/** @return True if the stage processes the paper (by default only papers that have not failed). */
+		boolean accepts(PaperJob job) {
+			return !job.failed;
+		}
+
+		public void run() {
+			try {
+				PaperJob job;
+				while ((job = in.take()) != END) {
+
+					if (job.skipped && next != null) { //not counted, only passed on so the persist stage can keep the order
+						next.put(job);
+						continue;
+					}
+
+					long t = System.nanoTime();
+					if (accepts(job)) {
+						try {
+							process(job);
+						} catch (Exception e) {
+							failed(job);
+							stats.failed.incrementAndGet();
+							System.err.println("ERROR: The " + stats.name + " stage failed on paper #" + job.paperNumber + ".");
+							e.printStackTrace();
+						}
+					}
+					t = System.nanoTime() - t;
+					if (!job.skipped) {
+						stats.busyNanos.addAndGet(t);
+						stats.processed.incrementAndGet();
+						Metrics.GLOBAL.histogram("stage." + stats.name + ".nanos").record(t);
+					}
+
+					if (next != null) {
+						next.put(job);
+						nextStats.queued();
+					}
+				}
+
+				if (running.decrementAndGet() == 0) {
+					stats.end = System.nanoTime();
+					if (next != null) {
+						for (int i=0; i<nextThreads; i++) { next.put(END); }
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The counts of each stage of the last run (the render stage is left out when there are no plots).
+	 */
+	public List<StageStats> getStats() {
+		ArrayList<StageStats> r = new ArrayList<StageStats>();
+		for (StageStats s : Arrays.asList(ingest, fit, render, persist)) {
+			if (s != null) r.add(s);
+		}
+		return r;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("FitPipeline:");
+		for (StageStats s : getStats()) { sb.append(System.getProperty("line.separator")).append("  ").append(s); }
+		return sb.toString();
+	}
+}
@@ -0,0 +1,242 @@
+package citation_prediction;
+
+import java.util.Arrays;
+
+/**
+ * A citation history kept as the number of citations in each year, instead of one timestamp per citation.
+ * <br><br>
+ * 'fixData' spreads the citations of each year evenly across the year, so the citations of year k have the
+ * timestamps 365*(k + j/c) for j=1..c where c is the number of citations that year. This class calculates the
+ * sums needed by the Newton-Raphson method straight from the yearly counts:
+ * <br>
+ * 	1. Years with at most 'exactLimit' citations are summed citation by citation, exactly like 'fixData' would.
+ * 		So are the first citations after publication, where ln(ti) changes too quickly for the formula below.<br>
+ * 	2. Larger years use the Euler-Maclaurin formula, sum = (c/365)*integral + (f(b)-f(a))/2 + (365/12c)*(f'(b)-f'(a)),
+ * 		where the integral of each term over the year has a closed form in pnorm and dnorm. This costs a fixed
+ * 		number of pnorm/dnorm calls per year no matter how many citations the year has.<br>
+ * <br>
+ * The sums of ln(ti) and ln(ti)^2 do not depend on mu or sigma, so they are calculated exactly once when the data
+ * is created and the sums of xi and xi^2 are derived from them on each iteration.
+ */
+public class GroupedCitationData implements CitationData {
+
+	/** Years with this many citations or less are summed exactly. */
+	public static final int DEFAULT_EXACT_LIMIT = 32;
+
+	/** The number of citations at the start of the first year that are always summed exactly. */
+	static final int FIRST_YEAR_EXACT = 32;
+
+	private double[] citationsPerYear;
+	private int exactLimit;
+
+	private double t;
+	private double n;
+	private double mean_ln_ti;
+	private double mean_ln_ti_sqrd;
+
+	/**
+	 * @param citationsPerYear The number of citations in each year since publication (year 0 first).
+	 * @param exactLimit Years with this many citations or less are summed exactly (0 uses the closed form for every year).
+	 */
+	public GroupedCitationData(double[] citationsPerYear, int exactLimit) {
+		this.citationsPerYear = citationsPerYear;
+		this.exactLimit = exactLimit;
+
+		double s_ln_ti = 0;
+		double s_ln_ti_sqrd = 0;
+
+		for (int k=0; k<citationsPerYear.length; k++) {
+			double c = citationsPerYear[k];
+			if (c <= 0) continue;
+
+			for (int j=0; j<c; j++) {
+				double ln_ti = Math.log(365 * (k + (j+1)/c));
+				s_ln_ti += ln_ti;
+				s_ln_ti_sqrd += ln_ti*ln_ti;
+			}
+			n += c;
+			t = 365 * (k + 1); //the last citation of the year falls at the end of the year
+		}
+
+		mean_ln_ti = s_ln_ti / n;
+		mean_ln_ti_sqrd = s_ln_ti_sqrd / n;
+	}
+
+	/**
+	 * @param citationsPerYear The number of citations in each year since publication (year 0 first).
+	 */
+	public GroupedCitationData(double[] citationsPerYear) {
+		this(citationsPerYear, DEFAULT_EXACT_LIMIT);
+	}
+
+	/**
+	 * Take the yearly citation counts of a paper, the grouped equivalent of 'fixData(PaperRecord, int)'.
+	 *
+	 * @param record The citation history in years.
+	 * @param limitToRows Limit the years being processed (0 for all years).
+	 * @return The grouped citation history.
+	 */
+	public static GroupedCitationData fromPaper(PaperRecord record, int limitToRows) {
+
+		int[] years = record.citationsPerYear;
+		int numberOfRowsToProcess = (limitToRows != 0) ? Math.min(limitToRows, years.length) : years.length;
+		double[] counts = new double[numberOfRowsToProcess];
+
+		for (int rowIndex=0; rowIndex<numberOfRowsToProcess; rowIndex++) {
+			counts[rowIndex] = years[rowIndex];
+		}
+
+		return new GroupedCitationData(counts);
+	}
+
+	public double getLastTime() {
+		return t;
+	}
+
+	public double getCitationCount() {
+		return n;
+	}
+
+	public void sumIterationData(CitationCore cc, double mu, double sigma, IterationState l) {
+
+		double[] sums = l.sums; //pnorm, dnorm, xi*dnorm, xi^2*dnorm, xi^3*dnorm
+		Arrays.fill(sums, 0);
+
+		for (int k=0; k<citationsPerYear.length; k++) {
+			sumYear(cc, k, citationsPerYear[k], mu, sigma, l, false);
+		}
+
+		l.s_ln_ti = mean_ln_ti;
+		l.s_ln_ti_sqrd = mean_ln_ti_sqrd;
+
+		l.s_xi = (mean_ln_ti - mu)/sigma;
+		l.s_xi_sqrd = (mean_ln_ti_sqrd - 2*mu*mean_ln_ti + mu*mu)/(sigma*sigma);
+
+		l.s_pnorm_xi = sums[0] / n;
+
+		l.s_dnorm_xi = sums[1] / n;
+		l.s_xi_dnorm_xi = sums[2] / n;
+		l.s_xi_sqrd_dnorm_xi = sums[3] / n;
+		l.s_xi_cubed_dnorm_xi = sums[4] / n;
+	}
+
+	public double meanPnorm(CitationCore cc, double mu, double sigma, IterationState l) {
+
+		double[] sums = l.sums;
+		Arrays.fill(sums, 0);
+
+		for (int k=0; k<citationsPerYear.length; k++) {
+			sumYear(cc, k, citationsPerYear[k], mu, sigma, l, true);
+		}
+		return sums[0] / n;
+	}
+
+	/**
+	 * Add the sums of pnorm(xi), dnorm(xi), xi*dnorm(xi), xi^2*dnorm(xi) and xi^3*dnorm(xi) over the citations of one year.
+	 *
+	 * @param k The year since publication.
+	 * @param c The number of citations in the year.
+	 * @param l The state holding the running sums and the scratch space of the year ('IterationState.sums').
+	 * @param pnormOnly Only the sum of pnorm(xi) is needed.
+	 */
+	private void sumYear(CitationCore cc, int k, double c, double mu, double sigma, IterationState l, boolean pnormOnly) {
+
+		double[] sums = l.sums;
+
+		if (c <= 0) return;
+
+		//ln(ti) changes fastest right after publication, so the start of the first year is always summed exactly.
+		int exact = (int) c;
+		if (c > exactLimit) {
+			exact = (k == 0) ? (int) Math.min(c, FIRST_YEAR_EXACT) : 0;
+		}
+
+		//Sum citation by citation, using the same timestamps as 'fixData'.
+		for (int j=0; j<exact; j++) {
+			double ti = 365 * (k + (j+1)/c);
+			double xi = (Math.log(ti) - mu)/sigma;
+
+			sums[0] += cc.pnorm(xi);
+
+			if (!pnormOnly) {
+				double dnorm_xi = cc.dnorm(xi);
+				sums[1] += dnorm_xi;
+				sums[2] += xi * dnorm_xi;
+				sums[3] += xi*xi * dnorm_xi;
+				sums[4] += xi*xi*xi * dnorm_xi;
+			}
+		}
+
+		if (exact < c) {
+			//The remaining citations are spaced 365/c days apart from just after 'a' up to 'b'.
+			double a = 365 * (k + exact/c);
+			double b = 365 * (k + 1);
+			double e = Math.exp(mu + sigma*sigma/2);
+
+			double[] upper = l.upper;
+			double[] lower = l.lower;
+
+			endpoint(cc, b, mu, sigma, e, upper);
+			endpoint(cc, a, mu, sigma, e, lower);
+
+			int terms = pnormOnly ? 1 : 5;
+			for (int i=0; i<terms; i++) {
+				sums[i] += (c/365) * (upper[i] - lower[i])
+						+ (upper[5+i] - lower[5+i]) / 2
+						+ (365/(12*c)) * (upper[10+i] - lower[10+i]);
+			}
+		}
+	}
+
+	/**
+	 * Evaluate, at time v (in days), the antiderivatives with respect to v of pnorm(x), dnorm(x), x*dnorm(x), x^2*dnorm(x)
+	 * and x^3*dnorm(x) where x = (ln(v) - mu)/sigma (r[0..4]), the functions themselves (r[5..9]) and their derivatives with
+	 * respect to v (r[10..14]). Everything is zero at v = 0. Every value of r is written, so r can be reused.
+	 * <br><br>
+	 * With y = x - sigma and e = exp(mu + sigma^2/2) the antiderivatives are:<br>
+	 * 	pnorm: v*pnorm(x) - e*pnorm(y)<br>
+	 * 	x^k*dnorm: sigma*e*M(y), where M is the antiderivative of (y+sigma)^k*dnorm(y) and e*dnorm(y) = v*dnorm(x).
+	 */
+	private static void endpoint(CitationCore cc, double v, double mu, double sigma, double e, double[] r) {
+
+		if (v <= 0) {
+			Arrays.fill(r, 0);
+			return;
+		}
+
+		double x = (Math.log(v) - mu)/sigma;
+		double y = x - sigma;
+
+		double pnorm_x = cc.pnorm(x);
+		double dnorm_x = cc.dnorm(x);
+
+		//Antiderivatives of y^j*dnorm(y) multiplied by e. pnorm(y) is far in the lower tail whenever e is large,
+		//so it must keep its relative precision there.
+		double em0 = e * NormalKernel.lowerTail(y);
+		double em1 = -v * dnorm_x;
+		double em2 = em0 - y * v * dnorm_x;
+		double em3 = -(y*y + 2) * v * dnorm_x;
+
+		double s = sigma;
+
+		r[0] = v*pnorm_x - em0;
+		r[1] = s * em0;
+		r[2] = s * (em1 + s*em0);
+		r[3] = s * (em2 + 2*s*em1 + s*s*em0);
+		r[4] = s * (em3 + 3*s*em2 + 3*s*s*em1 + s*s*s*em0);
+
+		double x2 = x*x;
+		r[5] = pnorm_x;
+		r[6] = dnorm_x;
+		r[7] = x * dnorm_x;
+		r[8] = x2 * dnorm_x;
+		r[9] = x2 * x * dnorm_x;
+
+		double dx_dv = 1/(sigma*v);
+		r[10] = dnorm_x * dx_dv;
+		r[11] = -x * dnorm_x * dx_dv;
+		r[12] = (1 - x2) * dnorm_x * dx_dv;
+		r[13] = (2*x - x2*x) * dnorm_x * dx_dv;
+		r[14] = (3*x2 - x2*x2) * dnorm_x * dx_dv;
+	}
+}
@@ -0,0 +1,142 @@
+package citation_prediction;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Mutable holder for all of the values calculated during one iteration of the Newton-Raphson method
+ * for solving for a WSB solution.
+ * <br><br>
+ * The Newton-Raphson functions in {@link CitationCore} fill one of these in place on every iteration
+ * instead of building a new map of boxed values, so a single instance can be reused across every
+ * iteration of a solve and across every start point of a convergence test. An instance must not be
+ * shared between threads.
+ * <br><br>
+ * The field names match the keys of the list returned by the older map based functions, see {@link #toMap()}.
+ */
+public class IterationState {
+
+	public int iteration;
+	public int evaluations; //the number of times the equations were evaluated during the last solve
+	public double t;
+	public double xt;
+	public double n;
+	public double m;
+	public double mhat;
+	public double mu;
+	public double sigma;
+
+	public double s_ln_ti;
+	public double s_ln_ti_sqrd;
+
+	public double s_xi;
+	public double s_xi_sqrd;
+
+	public double s_pnorm_xi;
+
+	public double s_dnorm_xi;
+	public double s_xi_dnorm_xi;
+	public double s_xi_sqrd_dnorm_xi;
+	public double s_xi_cubed_dnorm_xi;
+
+	public double fn;
+	public double gn;
+	public double df_dmu;
+	public double df_dsigma;
+	public double dg_dmu;
+	public double dg_dsigma;
+
+	/** The WSB solution found by the last solve, only valid when 'converged' is true. */
+	public double lambda;
+	public boolean converged;
+	public boolean singular; //the last solve stopped because the Jacobian was singular
+
+	//Scratch space for evaluating pnorm and dnorm over a block of citations at once (see 'scratch').
+	double[] x = new double[0];
+	double[] cdf = new double[0];
+	double[] pdf = new double[0];
+
+	/**
+	 * Make sure the scratch arrays hold at least 'size' values.
+	 *
+	 * @param size The number of values needed.
+	 */
+	void scratch(int size) {
+		if (x.length < size) {
+			x = new double[size];
+			cdf = new double[size];
+			pdf = new double[size];
+		}
+	}
+
+	//Scratch space for the sums over the years of 'GroupedCitationData': the running sums and the values at both ends
+	//	of a year (see 'GroupedCitationData.endpoint').
+	final double[] sums = new double[5];
+	final double[] upper = new double[15];
+	final double[] lower = new double[15];
+
+	/**
+	 * Copy the values of this state into a list keyed by the same names used by 'getIterationData' and
+	 * 'getPartialsData'. Useful for printing with 'printList'.
+	 *
+	 * @return A list containing the calculated values for the Newton-Raphson method.
+	 */
+	public LinkedHashMap<String, Double> toMap() {
+
+		LinkedHashMap<String, Double> r_list = new LinkedHashMap<String, Double>();
+
+		r_list.put("iteration", (double) iteration);
+		r_list.put("evaluations", (double) evaluations);
+		r_list.put("t", t);
+		r_list.put("xt", xt);
+		r_list.put("n", n);
+		r_list.put("m", m);
+		r_list.put("mhat", mhat);
+		r_list.put("mu", mu);
+		r_list.put("sigma", sigma);
+
+		r_list.put("s_ln_ti", s_ln_ti);
+		r_list.put("s_ln_ti_sqrd", s_ln_ti_sqrd);
+
+		r_list.put("s_xi", s_xi);
+		r_list.put("s_xi_sqrd", s_xi_sqrd);
+
+		r_list.put("s_pnorm_xi", s_pnorm_xi);
+
+		r_list.put("s_dnorm_xi", s_dnorm_xi);
+		r_list.put("s_xi_dnorm_xi", s_xi_dnorm_xi);
+		r_list.put("s_xi_sqrd_dnorm_xi", s_xi_sqrd_dnorm_xi);
+		r_list.put("s_xi_cubed_dnorm_xi", s_xi_cubed_dnorm_xi);
+
+		r_list.put("fn", fn);
+		r_list.put("gn", gn);
+		r_list.put("df_dmu", df_dmu);
+		r_list.put("df_dsigma", df_dsigma);
+		r_list.put("dg_dmu", dg_dmu);
+		r_list.put("dg_dsigma", dg_dsigma);
+
+		return r_list;
+	}
+
+	/**
+	 * Build the WSB solution list returned by the public 'newtonRaphson' function from the result of the last solve.
+	 *
+	 * @return A list containing the WSB solution of (lambda, mu, sigma, iterations), all null if the solve did not converge.
+	 */
+	public LinkedHashMap<String, Double> toSolution() {
+
+		LinkedHashMap<String, Double> r = new LinkedHashMap<String, Double>();
+
+		if (converged) {
+			r.put("lambda", lambda);
+			r.put("mu", mu);
+			r.put("sigma", sigma);
+			r.put("iterations", (double) iteration);
+		} else {
+			r.put("lambda", null);
+			r.put("mu", null);
+			r.put("sigma", null);
+			r.put("iterations", null);
+		}
+		return r;
+	}
+}
@@ -0,0 +1,110 @@
+package citation_prediction;
+
+/**
+ * A {@link WSBSolver} using the Levenberg-Marquardt method on Dr. Allen Parks' equations: it minimizes fn^2 + gn^2 with
+ * steps that move from gradient descent (far from a solution) to Newton-Raphson steps (close to one), using the same
+ * Jacobian as 'CitationCore.newtonRaphson'. A step is only taken if it lowers fn^2 + gn^2, so starts that make
+ * Newton-Raphson oscillate or run away still make progress.
+ * <br><br>
+ * Minimizing fn^2 + gn^2 can also settle in a minimum that is not a solution, so a solve only counts as converged once
+ * the full Newton-Raphson step from the current point is smaller than the tolerance.
+ */
+public class LevenbergMarquardtSolver implements WSBSolver {
+
+	//Pivots smaller than this are treated as singular (the same threshold as 'CitationCore.newtonRaphson').
+	private static final double SINGULAR_PIVOT = 1e-11;
+
+	/** The maximum number of steps taken for each start point. */
+	public int maxIterations = 50;
+
+	/** A solve has converged once the Newton-Raphson step is smaller than this. */
+	public double stepTolerance = 1e-8;
+
+	/** The first damping factor, and the largest allowed before the solve gives up. */
+	public double initialDamping = 1e-3;
+	public double maxDamping = 1e12;
+
+	private final CitationCore cc = new CitationCore();
+	private final Stats stats = new Stats();
+
+	public boolean solve(CitationData data, double mu, double sigma, double m, IterationState l) {
+
+		long start = System.nanoTime();
+		boolean converged = levenbergMarquardt(data, mu, sigma, m, l);
+		stats.add(l, converged, System.nanoTime() - start);
+
+		return converged;
+	}
+
+	private boolean levenbergMarquardt(CitationData data, double mu, double sigma, double m, IterationState l) {
+
+		l.evaluations = 0;
+		l.iteration = 0;
+		l.converged = false;
+		l.singular = false;
+
+		double damping = initialDamping;
+		cc.evaluate(data, mu, sigma, m, l);
+
+		for (int iteration=0; iteration<maxIterations; iteration++) {
+
+			double fn = l.fn, gn = l.gn;
+			double a = l.df_dmu, b = l.df_dsigma, c = l.dg_dmu, d = l.dg_dsigma;
+			double cost = fn*fn + gn*gn;
+			if (Double.isNaN(cost)) return false;
+
+			//Converged once the full Newton-Raphson step is below the tolerance.
+			//A singular Jacobian means the solve has wandered off to where the equations are flat (see 'CitationCore.newtonRaphson').
+			double det = a*d - b*c;
+			double pivot = Math.max(Math.abs(a), Math.abs(c));
+			if (!(pivot >= SINGULAR_PIVOT) || !(Math.abs(det/pivot) >= SINGULAR_PIVOT)) {
+				l.singular = true;
+				return false;
+			}
+
+			double n_mu = (d*fn - b*gn) / det;
+			double n_sigma = (a*gn - c*fn) / det;
+			if (Math.sqrt(n_mu*n_mu + n_sigma*n_sigma) < stepTolerance) {
+				cc.converged(data, mu - n_mu, sigma - n_sigma, m, iteration, l);
+				return true;
+			}
+
+			//(J'J + damping*diag(J'J)) * step = -J'r
+			double jtj00 = a*a + c*c, jtj01 = a*b + c*d, jtj11 = b*b + d*d;
+			double g0 = a*fn + c*gn, g1 = b*fn + d*gn;
+
+			boolean accepted = false;
+			while (!accepted) {
+				double h00 = jtj00 * (1 + damping), h11 = jtj11 * (1 + damping);
+				double hdet = h00*h11 - jtj01*jtj01;
+				if (!(Math.abs(hdet) > 0)) return false;
+
+				double s_mu = -(h11*g0 - jtj01*g1) / hdet;
+				double s_sigma = -(h00*g1 - jtj01*g0) / hdet;
+
+				cc.evaluate(data, mu + s_mu, sigma + s_sigma, m, l);
+				double trial = l.fn*l.fn + l.gn*l.gn;
+
+				if (trial < cost) {
+					mu += s_mu;
+					sigma += s_sigma;
+					damping = Math.max(damping / 10, 1e-12);
+					accepted = true;
+				} else {
+					damping *= 10;
+					if (damping > maxDamping) return false;
+				}
+			}
+			l.iteration = iteration + 1;
+		}
+		return false;
+	}
+
+	public String getName() {
+		return "levenberg-marquardt(max=" + maxIterations + ", tol=" + stepTolerance + ")";
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+}
@@ -0,0 +1,306 @@
+package citation_prediction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import citation_prediction.BatchFitter.PaperFit;
+import citation_prediction.BatchFitter.ResultListener;
+
+/**
+ * This class fits a citation file for several values of m (the average number of new references contained in each
+ * paper for a journal) in one pass, to choose m for a journal.
+ * <br><br>
+ * Each paper is read and expanded once (see 'PaperFitContext') and the fits of the paper for every m are spread across
+ * a pool of worker threads, one task per paper and m. Every fit goes to one listener, usually a {@link ResultWriter}
+ * whose table has a column for m, so the sweep writes one result table for all the values of m. Because the writer
+ * waits for every fit of a paper (every m and training window) before writing it, a sweep that stopped part way
+ * carries on where it stopped. A result file is only resumed by a sweep with the same values of m and settings.
+ * <br><br>
+ * For each m the sweep counts the fits, the fits without a solution, the fits that failed, the solutions found and the
+ * time spent (see {@link MStats}). A training window that fails is written as a row with its error and the other
+ * windows of the paper are still fitted.
+ * <br><br>
+ * Usage: java citation_prediction.MSweep [-m 2.9,20,30,50,70,100] [-step 1] [-threads n] [-grouped] [-solver newton|lm] [-out sweep.csv|sweep.jsonl] file
+ */
+public class MSweep {
+
+	/** The values of m the test harness used to be run for, one after the other. */
+	public static final double[] DEFAULT_MS = { 2.9, 20, 30, 50, 70, 100 };
+
+	/**
+	 * The counts of the fits for one value of m.
+	 */
+	public static class MStats {
+		public final double m;
+		private final AtomicInteger fits = new AtomicInteger();
+		private final AtomicInteger unsolved = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final AtomicLong solutions = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		MStats(double m) {
+			this.m = m;
+		}
+
+		/** @return The number of fits. */
+		public int getFits() {
+			return fits.get();
+		}
+
+		/** @return The number of fits without any solution. */
+		public int getUnsolved() {
+			return unsolved.get();
+		}
+
+		/** @return The number of fits that failed with an error (they are written as a row with the error). */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/** @return The mean number of solutions of a fit. */
+		public double getSolutionsPerFit() {
+			int f = fits.get();
+			return (f == 0) ? 0 : solutions.get() / (double) f;
+		}
+
+		/** @return The time spent fitting, summed over the threads, in seconds. */
+		public double getSeconds() {
+			return nanos.get() / 1e9;
+		}
+
+		public String toString() {
+			return String.format("m=%-8s %7d fits %7d without a solution %5d failed %6.2f solutions/fit %9.1f s", m, getFits(), getUnsolved(), getFailed(), getSolutionsPerFit(), getSeconds());
+		}
+	}
+
+	private final double[] ms;
+	private final BatchFitter[] fitters;
+	private final MStats[] stats;
+	private final int threads;
+
+	/**
+	 * @param ms The values of m.
+	 * @param step The step used to search the start grid (see newtonRaphson_ConvergenceTest).
+	 * @param windows The training windows to fit for each paper and m (0 means all years).
+	 * @param threads The number of worker threads.
+	 */
+	public MSweep(double[] ms, double step, int[] windows, int threads) {
+		this.ms = ms.clone();
+		this.threads = threads;
+		fitters = new BatchFitter[ms.length];
+		stats = new MStats[ms.length];
+		for (int i=0; i<ms.length; i++) {
+			fitters[i] = new BatchFitter(threads, 4 * threads, step, ms[i], windows);
+			stats[i] = new MStats(ms[i]);
+		}
+	}
+
+	/**
+	 * @return The fitter of each m, in the order of the values of m (to set their solver, search, fit cache or
+	 * 		completed papers).
+	 */
+	public BatchFitter[] getFitters() {
+		return fitters.clone();
+	}
+
+	/**
+	 * @param solver The solver used for every m (its stats are shared).
+	 */
+	public void setSolver(WSBSolver solver) {
+		for (BatchFitter f : fitters) f.setSolver(solver);
+	}
+
+	/**
+	 * @param groupedData True to fit from the yearly counts (see 'BatchFitter.setGroupedData').
+	 */
+	public void setGroupedData(boolean groupedData) {
+		for (BatchFitter f : fitters) f.setGroupedData(groupedData);
+	}
+
+	/**
+	 * @param completed The papers written by an earlier run, skipped for every m (see 'BatchFitter.setCompleted').
+	 */
+	public void setCompleted(java.util.Map<Integer, String> completed) {
+		for (BatchFitter f : fitters) f.setCompleted(completed);
+	}
+
+	/**
+	 * @return The number of fits of each paper (one per m and training window), the window count of a 'ResultWriter'.
+	 */
+	public int getFitsPerPaper() {
+		return ms.length * fitters[0].getWindows().length;
+	}
+
+	/**
+	 * @return The settings of the sweep, the values of m and the settings shared by every m (see
+	 * 		'BatchFitter.getSettings'), to check that a result file is resumed by the same sweep.
+	 */
+	public String getSettings() {
+		StringBuilder m = new StringBuilder();
+		for (int i=0; i<ms.length; i++) m.append(i > 0 ? "," : "").append(ms[i]);
+		return fitters[0].settings(m.toString());
+	}
+
+	/**
+	 * @param filename The citation file swept.
+	 * @return The settings of a sweep of the given file, 'getSettings' with the name and size of the file (see
+	 * 		'BatchFitter.input'), to check that a result file is resumed by the same sweep.
+	 */
+	public String getRunSettings(String filename) {
+		return getSettings() + BatchFitter.input(null, filename);
+	}
+
+	/**
+	 * @return The counts of the fits for each m, in the order of the values of m.
+	 */
+	public MStats[] getStats() {
+		return stats.clone();
+	}
+
+	/**
+	 * Fit every paper for every m.
+	 *
+	 * @param papers The citation histories.
+	 * @param listener Receives each fit as it finishes (from the worker threads).
+	 * @return The number of fits completed.
+	 */
+	public int run(Iterable<PaperRecord> papers, final ResultListener listener) throws InterruptedException {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(4 * threads);
+		final AtomicInteger completed = new AtomicInteger();
+
+		try {
+			int pn = 0;
+			for (PaperRecord paper : papers) {
+
+				final int paperNumber = ++pn;
+				if (fitters[0].isCompleted(paperNumber, paper.id)) continue;
+				final PaperFitContext context = new PaperFitContext(paper); //shared by every m
+
+				for (int i=0; i<ms.length; i++) {
+
+					final BatchFitter fitter = fitters[i];
+					final MStats s = stats[i];
+					inFlight.acquire(); //back-pressure: wait for a fit to finish before reading further ahead.
+					workers.execute(new Runnable() {
+						public void run() {
+							try {
+								//Each window is fitted on its own, so one that fails is written as a failed row and
+								//	the other windows of the paper are still fitted.
+								for (int window : fitter.getWindows()) {
+									long start = System.nanoTime();
+									PaperFit fit;
+									try {
+										fit = fitter.fitPaper(context, paperNumber, window);
+									} catch (RuntimeException e) {
+										System.err.println("ERROR: Could not fit paper #" + paperNumber + " (m=" + fitter.getM() + ", train=" + window + ").");
+										e.printStackTrace();
+										fit = PaperFit.failed(context.paper, paperNumber, window, fitter.getM(), e);
+										s.failed.incrementAndGet();
+									}
+									s.nanos.addAndGet(System.nanoTime() - start);
+									s.fits.incrementAndGet();
+									s.solutions.addAndGet(fit.solutions.size());
+									if (fit.solutions.isEmpty() && fit.error == null) s.unsolved.incrementAndGet();
+
+									listener.fitted(fit);
+									completed.incrementAndGet();
+								}
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+
+		return completed.get();
+	}
+
+	/**
+	 * @param list The values separated by commas.
+	 * @return The values.
+	 */
+	public static double[] parse(String list) {
+		String[] v = list.split(",");
+		double[] r = new double[v.length];
+		for (int i=0; i<v.length; i++) r[i] = Double.parseDouble(v[i].trim());
+		return r;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MSweep:");
+		for (MStats s : stats) sb.append(System.getProperty("line.separator")).append("  ").append(s);
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		double[] ms = DEFAULT_MS;
+		double step = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean grouped = false;
+		WSBSolver solver = new ParksNewtonSolver();
+		String out = "sweep.csv";
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].equals("-grouped")) { grouped = true; }
+			else if (args[0].equals("-m") && args.length > 1) { ms = parse(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-step") && args.length > 1) { step = Double.valueOf(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-threads") && args.length > 1) { threads = Integer.parseInt(args[1]); args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-out") && args.length > 1) { out = args[1]; args = Arrays.copyOfRange(args, 1, args.length); }
+			else if (args[0].equals("-solver") && args.length > 1) {
+				solver = BatchFitter.parseSolver(args[1]);
+				if (solver == null) { System.err.println("ERROR: Unknown solver '" + args[1] + "' (expected " + BatchFitter.SOLVER_NAMES + ")."); args = new String[0]; break; }
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			else { args = new String[0]; break; }
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		if (args.length != 1) {
+			System.err.println("Usage: java citation_prediction.MSweep [-m 2.9,20,30,50,70,100] [-step 1] [-threads n] [-grouped] [-solver newton|lm] [-out sweep.csv|sweep.jsonl] file");
+			System.exit(1);
+		}
+
+		CitationCore.verbose = false;
+
+		MSweep sweep = new MSweep(ms, step, BatchFitter.DEFAULT_WINDOWS, threads);
+		sweep.setSolver(solver);
+		sweep.setGroupedData(grouped);
+
+		ResultWriter results = null;
+		try {
+			results = new ResultWriter(new File(out), ResultWriter.Format.of(out), sweep.getFitsPerPaper(), sweep.getRunSettings(args[0]), true);
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+		sweep.setCompleted(results.getCompleted());
+		if (results.getResumed() > 0) { System.err.println("Resuming " + out + ": skipping the " + results.getResumed() + " papers already written."); }
+
+		long start = System.nanoTime();
+		int fits;
+		try {
+			fits = sweep.run(CitationCache.open(args[0]), results);
+		} finally {
+			results.close();
+		}
+
+		System.err.println(String.format("Finished %d fits in %.1f s.", fits, (System.nanoTime() - start)/1e9));
+		System.err.println(results.toString());
+		System.err.println(sweep.toString());
+		System.err.println(solver.getName() + ": " + solver.getStats());
+	}
+}
@@ -0,0 +1,399 @@
+package citation_prediction;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of what the fitting code does at run time, so a run can be sized and papers that use up the
+ * iteration budget can be found without reading the verbose output.
+ * <br><br>
+ * Every solve (whatever the solver, see 'WSBSolver.Stats') counts as converged, singular (the Jacobian was singular) or
+ * exhausted (it ran out of iterations or diverged), and the iterations of converged solves and the time of every solve
+ * go into histograms. 'BatchFitter' adds the time, solves and exhausted solves of each paper, and 'FitPipeline' the
+ * time each stage spends on a paper. The papers with the most exhausted solves are kept (see {@link #getWorstPapers}).
+ * <br><br>
+ * The metrics can be read as a snapshot, printed periodically (see {@link #startDump}) or read over JMX once
+ * registered (see {@link #register}), where each counter and each histogram statistic is an attribute. All methods
+ * are thread safe and recording does not lock.
+ */
+public class Metrics implements DynamicMBean {
+
+	/** The metrics recorded by the fitting code. */
+	public static final Metrics GLOBAL = new Metrics();
+
+	public static final String OBJECT_NAME = "citation_prediction:type=Metrics";
+
+	//The names of the metrics recorded by the fitting code.
+	public static final String SOLVES = "solver.solves";
+	public static final String CONVERGED = "solver.converged";
+	public static final String SINGULAR = "solver.singular";
+	public static final String EXHAUSTED = "solver.exhausted";
+	public static final String ITERATIONS = "solver.iterations"; //histogram, converged solves only
+	public static final String SOLVE_NANOS = "solver.nanos"; //histogram
+	public static final String PAPER_NANOS = "paper.nanos"; //histogram, one value per fit
+	public static final String PAPER_SOLVES = "paper.solves"; //histogram, one value per fit
+	public static final String PAPER_EXHAUSTED = "paper.exhausted"; //histogram, one value per fit
+	public static final String PAPER_CACHED = "paper.cached";
+
+	/** The number of papers kept by 'getWorstPapers'. */
+	public static final int WORST_PAPERS = 10;
+
+	/**
+	 * A histogram of non-negative longs. Values below 16 are counted exactly, larger values in 8 buckets per power of two
+	 * (so a percentile is within 12.5% of the true value). Negative values are counted as 0.
+	 */
+	public static class Histogram {
+
+		private static final int BUCKETS = 16 + 60*8;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0) value = 0;
+
+			buckets.incrementAndGet(bucket(value));
+			count.increment();
+			sum.add(value);
+
+			long m;
+			while (value > (m = max.get()) && !max.compareAndSet(m, value));
+		}
+
+		static int bucket(long value) {
+			if (value < 16) return (int) value;
+			int e = 63 - Long.numberOfLeadingZeros(value); //4 or more
+			return 16 + (e-4)*8 + (int) ((value >>> (e-3)) & 7);
+		}
+
+		//The largest value counted in a bucket.
+		static long upper(int bucket) {
+			if (bucket < 16) return bucket;
+			int e = (bucket-16)/8 + 4;
+			long lower = (8L + (bucket-16)%8) << (e-3);
+			return lower + (1L << (e-3)) - 1;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getMean() {
+			long c = count.sum();
+			return (c == 0) ? 0 : sum.sum() / (double) c;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param q The quantile (0.5 for the median).
+		 * @return The value below which the fraction 'q' of the values fall (the top of its bucket), 0 when empty.
+		 */
+		public long getPercentile(double q) {
+			long c = count.sum();
+			if (c == 0) return 0;
+
+			long rank = (long) Math.ceil(q * c);
+			long seen = 0;
+			for (int i=0; i<BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) return Math.min(upper(i), max.get());
+			}
+			return max.get();
+		}
+
+		public void reset() {
+			for (int i=0; i<BUCKETS; i++) buckets.set(i, 0);
+			count.reset();
+			sum.reset();
+			max.set(0);
+		}
+
+		public String toString() {
+			return String.format("count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d", getCount(), getMean(),
+					getPercentile(.5), getPercentile(.9), getPercentile(.99), getMax());
+		}
+	}
+
+	private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final TreeMap<String, Long> worstPapers = new TreeMap<String, Long>();
+
+	//The solves done on each thread, so the solves of one paper can be counted (see 'threadSolves').
+	private final ThreadLocal<long[]> threadSolves = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	private final LongAdder solves = counter(SOLVES);
+	private final LongAdder converged = counter(CONVERGED);
+	private final LongAdder singular = counter(SINGULAR);
+	private final LongAdder exhausted = counter(EXHAUSTED);
+	private final Histogram iterations = histogram(ITERATIONS);
+	private final Histogram solveNanos = histogram(SOLVE_NANOS);
+
+	/**
+	 * @param name The name of the counter.
+	 * @return The counter, created the first time it is asked for.
+	 */
+	public LongAdder counter(String name) {
+		LongAdder c = counters.get(name);
+		if (c == null) {
+			LongAdder n = new LongAdder();
+			c = counters.putIfAbsent(name, n);
+			if (c == null) c = n;
+		}
+		return c;
+	}
+
+	/**
+	 * @param name The name of the histogram.
+	 * @return The histogram, created the first time it is asked for.
+	 */
+	public Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			Histogram n = new Histogram();
+			h = histograms.putIfAbsent(name, n);
+			if (h == null) h = n;
+		}
+		return h;
+	}
+
+	/**
+	 * Count one solve.
+	 *
+	 * @param l The state the solve finished with ('l.singular' tells a singular Jacobian from running out of iterations).
+	 * @param converged True if the solve converged.
+	 * @param nanos The wall time of the solve.
+	 */
+	public void solved(IterationState l, boolean converged, long nanos) {
+
+		solves.increment();
+		if (converged) {
+			this.converged.increment();
+			iterations.record(l.iteration);
+		} else if (l.singular) {
+			singular.increment();
+		} else {
+			exhausted.increment();
+		}
+		solveNanos.record(nanos);
+
+		long[] t = threadSolves.get();
+		t[0]++;
+		if (!converged && !l.singular) t[1]++;
+	}
+
+	/**
+	 * @return The number of solves and exhausted solves counted on this thread so far (subtract two readings to count
+	 * the solves of one paper fitted on this thread).
+	 */
+	public long[] threadSolves() {
+		return threadSolves.get().clone();
+	}
+
+	/**
+	 * Count one fitted paper.
+	 *
+	 * @param paperId The id of the paper.
+	 * @param window The training window (0 means all years).
+	 * @param nanos The time the fit took.
+	 * @param solves The number of solves done.
+	 * @param exhausted The number of solves that ran out of iterations.
+	 */
+	public void paperFitted(String paperId, int window, long nanos, long solves, long exhausted) {
+
+		histogram(PAPER_NANOS).record(nanos);
+		histogram(PAPER_SOLVES).record(solves);
+		histogram(PAPER_EXHAUSTED).record(exhausted);
+
+		if (exhausted == 0) return;
+		synchronized (worstPapers) {
+			worstPapers.put(paperId + " (train=" + (window == 0 ? "All" : String.valueOf(window)) + ")", exhausted);
+			if (worstPapers.size() > WORST_PAPERS) {
+				String least = null;
+				for (Entry<String, Long> e : worstPapers.entrySet()) {
+					if (least == null || e.getValue() < worstPapers.get(least)) least = e.getKey();
+				}
+				worstPapers.remove(least);
+			}
+		}
+	}
+
+	/**
+	 * @return The papers (and windows) with the most solves that ran out of iterations, most first.
+	 */
+	public ArrayList<Entry<String, Long>> getWorstPapers() {
+		ArrayList<Entry<String, Long>> r;
+		synchronized (worstPapers) { r = new ArrayList<Entry<String, Long>>(new TreeMap<String, Long>(worstPapers).entrySet()); }
+
+		Collections.sort(r, new Comparator<Entry<String, Long>>() {
+			public int compare(Entry<String, Long> a, Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		return r;
+	}
+
+	/**
+	 * @return Every counter, and the count, mean, p50, p90, p99 and max of every histogram, by name.
+	 */
+	public LinkedHashMap<String, Number> snapshot() {
+
+		LinkedHashMap<String, Number> r = new LinkedHashMap<String, Number>();
+		for (Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			r.put(e.getKey(), e.getValue().sum());
+		}
+		for (Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			Histogram h = e.getValue();
+			r.put(e.getKey() + ".count", h.getCount());
+			r.put(e.getKey() + ".mean", h.getMean());
+			r.put(e.getKey() + ".p50", h.getPercentile(.5));
+			r.put(e.getKey() + ".p90", h.getPercentile(.9));
+			r.put(e.getKey() + ".p99", h.getPercentile(.99));
+			r.put(e.getKey() + ".max", h.getMax());
+		}
+		return r;
+	}
+
+	/**
+	 * Set every counter and histogram back to 0 and forget the worst papers.
+	 */
+	public void reset() {
+		for (LongAdder c : counters.values()) c.reset();
+		for (Histogram h : histograms.values()) h.reset();
+		synchronized (worstPapers) { worstPapers.clear(); }
+	}
+
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+
+		for (Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			sb.append(e.getKey()).append(" = ").append(e.getValue().sum()).append(nl);
+		}
+		for (Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append(nl);
+		}
+		ArrayList<Entry<String, Long>> worst = getWorstPapers();
+		if (!worst.isEmpty()) sb.append("most exhausted solves: ").append(worst).append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Print the metrics every 'periodMillis' on a daemon thread, until the returned executor is shut down.
+	 *
+	 * @param out Where the metrics are printed.
+	 * @param periodMillis The time between two prints.
+	 * @return The executor printing the metrics.
+	 */
+	public ScheduledExecutorService startDump(final PrintStream out, long periodMillis) {
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-dump");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.println("--- metrics " + new Date() + " ---");
+				out.print(Metrics.this.toString());
+				out.flush();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		return timer;
+	}
+
+	/**
+	 * Register this instance with the platform MBean server as 'OBJECT_NAME' (does nothing if something is already registered there).
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(this, name);
+		} catch (Exception e) {
+			System.err.println("ERROR: Could not register the metrics with JMX: " + e);
+		}
+	}
+
+	//DynamicMBean: every entry of the snapshot is a read-only attribute, 'reset' is the only operation.
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number v = snapshot().get(attribute);
+		if (v == null) throw new AttributeNotFoundException(attribute);
+		return v;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("The metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		LinkedHashMap<String, Number> s = snapshot();
+		AttributeList r = new AttributeList();
+		for (String a : attributes) {
+			if (s.containsKey(a)) r.add(new Attribute(a, s.get(a)));
+		}
+		return r;
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		if ("reset".equals(actionName)) {
+			reset();
+			return null;
+		}
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Entry<String, Number> e : snapshot().entrySet()) {
+			String type = (e.getValue() instanceof Double) ? "java.lang.Double" : "java.lang.Long";
+			attributes.add(new MBeanAttributeInfo(e.getKey(), type, e.getKey(), true, false, false));
+		}
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Set every metric back to 0.", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+		return new MBeanInfo(getClass().getName(), "Counters and histograms of the fitting code.",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[] { reset }, null);
+	}
+}
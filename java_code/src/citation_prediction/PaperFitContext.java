@@ -0,0 +1,71 @@
+package citation_prediction;
+
+/**
+ * The citation history of one paper prepared once for fitting any number of training windows.
+ * <br><br>
+ * 'fixData' builds a new array of citation timestamps for every training window. This class expands the history once
+ * into a {@link CitationTimeline} (with the same timestamps as 'fixData'), which keeps ln(ti) of every citation and the
+ * sums of ln(ti) and ln(ti)^2. A training window is the first citations of that timeline: it copies nothing and only
+ * has to work out xi = (ln(ti) - mu)/sigma on each iteration.
+ * <br><br>
+ * A window gives exactly the same fits as 'CitationTimeline.of(fixData(paper, window))'. The history is expanded the
+ * first time a window is asked for, so a context that is only used for grouped fits ('GroupedCitationData') costs
+ * nothing. A context can be shared by threads fitting different windows of the paper.
+ */
+public class PaperFitContext {
+
+	public final PaperRecord paper;
+
+	private volatile boolean expanded;
+	private CitationTimeline timeline; //every citation of the paper
+	private int[] citationsBefore; //citationsBefore[k] = the number of citations in the years before year k
+
+	/**
+	 * @param paper The citation history.
+	 */
+	public PaperFitContext(PaperRecord paper) {
+		this.paper = paper;
+	}
+
+	private void expand() {
+		if (expanded) return;
+		synchronized (this) {
+			if (expanded) return;
+
+			int[] years = paper.citationsPerYear;
+			citationsBefore = new int[years.length+1];
+			for (int k=0; k<years.length; k++) {
+				citationsBefore[k+1] = citationsBefore[k] + Math.max(years[k], 0);
+			}
+			timeline = CitationTimeline.of(paper);
+			expanded = true;
+		}
+	}
+
+	/**
+	 * @param years The number of years of training data (0, or more years than the paper has, means all years).
+	 * @return The number of citations in those years.
+	 */
+	public int getCitationCount(int years) {
+		expand();
+		return citationsBefore[clamp(years)];
+	}
+
+	private int clamp(int years) {
+		int all = paper.citationsPerYear.length;
+		return (years <= 0 || years > all) ? all : years;
+	}
+
+	/**
+	 * @param years The number of years of training data (0, or more years than the paper has, means all years).
+	 * @return The citation history of those years, the same as 'CitationTimeline.of(fixData(paper, years))'.
+	 * @throws IllegalArgumentException If the paper has no citations in those years.
+	 */
+	public CitationTimeline window(int years) {
+		expand();
+		int y = clamp(years);
+		int count = citationsBefore[y];
+		if (count == 0) throw new IllegalArgumentException("Paper " + paper.id + " has no citations in its first " + y + " years.");
+		return timeline.first(count);
+	}
+}
@@ -0,0 +1,42 @@
+package citation_prediction;
+
+import java.util.Arrays;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * The citation history of one paper: its id, the year it was published and the number of citations
+ * it received in each year since it was published (year 0 first).
+ */
+public class PaperRecord {
+
+	public final String id;
+	public final int year;
+	public final int[] citationsPerYear;
+
+	public PaperRecord(String id, int year, int[] citationsPerYear) {
+		this.id = id;
+		this.year = year;
+		this.citationsPerYear = citationsPerYear;
+	}
+
+	/**
+	 * Convert a csv record (paper id, publish year, citations per year...) to a paper record.
+	 *
+	 * @param record The csv record.
+	 * @return The paper record.
+	 * @throws NumberFormatException If the year or a citation count is not a whole number.
+	 */
+	public static PaperRecord fromRecord(CSVRecord record) {
+
+		int[] counts = new int[record.size()-2];
+		for (int i=0; i<counts.length; i++) {
+			counts[i] = Integer.parseInt(record.get(i+2).trim());
+		}
+		return new PaperRecord(record.get(0), Integer.parseInt(record.get(1).trim()), counts);
+	}
+
+	public String toString() {
+		return id + ", " + year + ", " + Arrays.toString(citationsPerYear);
+	}
+}
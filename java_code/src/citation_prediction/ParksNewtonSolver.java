@@ -0,0 +1,44 @@
+package citation_prediction;
+
+/**
+ * The default {@link WSBSolver}: the Newton-Raphson method of 'CitationCore.newtonRaphson', using the partial derivatives
+ * provided by Dr. Allen Parks. The settings (max iterations, tolerances, backtracking) are the public fields of the
+ * 'CitationCore' the solver is created with.
+ */
+public class ParksNewtonSolver implements WSBSolver {
+
+	private final CitationCore cc;
+	private final Stats stats = new Stats();
+
+	/**
+	 * @param cc The core whose settings are used.
+	 */
+	public ParksNewtonSolver(CitationCore cc) {
+		this.cc = cc;
+	}
+
+	/**
+	 * Uses the default settings.
+	 */
+	public ParksNewtonSolver() {
+		this(new CitationCore());
+	}
+
+	public boolean solve(CitationData data, double mu, double sigma, double m, IterationState l) {
+
+		long start = System.nanoTime();
+		boolean converged = cc.newtonRaphson(data, mu, sigma, m, l);
+		stats.add(l, converged, System.nanoTime() - start);
+
+		return converged;
+	}
+
+	public String getName() {
+		return "parks-newton(max=" + cc.maxIterations + ", tol=" + cc.stepTolerance + ", residual=" + cc.residualTolerance + 
+				(cc.backtracking ? ", backtracking=" + cc.maxBacktracks : "") + ")";
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+}
@@ -0,0 +1,182 @@
+package citation_prediction;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.math.plot.Plot2DPanel;
+
+/**
+ * This class renders WSB plots (see 'CitationCore.graphWSB') straight to PNG files without showing them on the screen,
+ * so plots can be saved on a machine without a display (run with -Djava.awt.headless=true).
+ * <br><br>
+ * Each plot is built and painted on one of a fixed pool of worker threads, and only a bounded number of plots are
+ * allowed to be waiting or being rendered at once. A plot that cannot be rendered or written is reported and counted
+ * as failed; the other plots are still written.
+ */
+public class PlotRenderer {
+
+	/** The size of the plots, the size of the window the test harness used to capture. */
+	public static final int DEFAULT_WIDTH = 1000;
+	public static final int DEFAULT_HEIGHT = 800;
+
+	private final int width;
+	private final int height;
+	private final ExecutorService workers;
+	private final Semaphore inFlight;
+
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * @param threads The number of worker threads.
+	 * @param maxInFlight The maximum number of plots waiting or being rendered before 'submit' blocks.
+	 * @param width The width of the plots in pixels.
+	 * @param height The height of the plots in pixels.
+	 */
+	public PlotRenderer(int threads, int maxInFlight, int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Uses one thread per processor, the default plot size and allows four plots per thread in flight.
+	 */
+	public PlotRenderer() {
+		this(Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors(), DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	/**
+	 * This function paints a plot into an image without displaying it.
+	 *
+	 * @param plot The plot (it must not be showing in a window).
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @return The image of the plot.
+	 */
+	public static BufferedImage render(Plot2DPanel plot, int width, int height) {
+
+		plot.removePlotToolBar();
+		plot.setSize(width, height);
+		layout(plot);
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			plot.printAll(g);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	//Nothing lays out a panel that is not in a window, so lay out the plot and its legend by hand.
+	private static void layout(Container c) {
+		c.doLayout();
+		for (Component child : c.getComponents()) {
+			if (child instanceof Container) layout((Container) child);
+		}
+	}
+
+	/**
+	 * This function paints a plot into a PNG file without displaying it.
+	 *
+	 * @param plot The plot (it must not be showing in a window).
+	 * @param file The PNG file to write (its directory is created if needed).
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 */
+	public static void writePNG(Plot2DPanel plot, File file, int width, int height) throws IOException {
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists()) dir.mkdirs();
+
+		if (!ImageIO.write(render(plot, width, height), "png", file)) throw new IOException("No PNG writer is available.");
+	}
+
+	/**
+	 * This function plots the WSB solutions of several training windows of one paper against the paper's citations,
+	 * the same way the test harness does.
+	 *
+	 * @param data_in_days The citation data of the paper (all years, see 'fixData').
+	 * @param m The average number of new references in each new paper for a journal.
+	 * @param graphTitle The title of the plot.
+	 * @param lineLegends The legend of the curves of each list of solutions.
+	 * @param solutions The lists of WSB solutions to plot.
+	 * @return The plot, ready to render.
+	 */
+	public static Plot2DPanel plotSolutions(double[][] data_in_days, double m, String graphTitle, List<String> lineLegends, List<ArrayList<LinkedHashMap<String, Double>>> solutions) {
+
+		CitationCore cc = new CitationCore();
+		Plot2DPanel plot = null;
+		for (int i=0; i<solutions.size(); i++) {
+			plot = cc.graphWSB(data_in_days, m, plot, graphTitle, lineLegends.get(i), solutions.get(i), i == solutions.size()-1, null);
+		}
+		return plot;
+	}
+
+	/**
+	 * Build and write a plot on a worker thread. This blocks while too many plots are in flight.
+	 *
+	 * @param plot Builds the plot (called on the worker thread).
+	 * @param file The PNG file to write.
+	 */
+	public void submit(final Callable<Plot2DPanel> plot, final File file) throws InterruptedException {
+
+		inFlight.acquire();
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					writePNG(plot.call(), file, width, height);
+					written.incrementAndGet();
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					System.err.println("ERROR: Could not write the plot " + file);
+					e.printStackTrace();
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for every submitted plot to be written and stop the worker threads.
+	 *
+	 * @return The number of plots written.
+	 */
+	public int finish() throws InterruptedException {
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return written.get();
+	}
+
+	/** @return The number of plots written so far. */
+	public int getWritten() {
+		return written.get();
+	}
+
+	/** @return The number of plots that could not be rendered or written. */
+	public int getFailed() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,673 @@
+package citation_prediction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class answers predictions from fitted WSB solutions over HTTP. It loads a result file written by
+ * {@link ResultWriter} (CSV or JSONL) into memory and evaluates the fits with {@link CitationCurve}, so each answer
+ * is a hash lookup and a few calls to exp and pnorm.
+ * <br><br>
+ * A paper is predicted from one fit, the training window 0 (all years) unless another is asked for, and the solution
+ * with the largest basin (the solution most start points converged to). A result file of an m sweep ('MSweep') holds
+ * the fits of every paper for several values of m, so with such a file each request has to name the m to predict
+ * with (a file with one value of m is answered without it). The requests are:
+ * <br>
+ * 	GET /predict?id=(paper id)&amp;t=(years,...)[&amp;window=(years)][&amp;m=(m)]: the solution, ultimate impact and the
+ * 		cumulative citations at each time as JSON.<br>
+ * 	POST /batch: one query per line, 'paper id,years[,window[,m]]'. The answer has one line per query,
+ * 		'paper id,window,years,citations,ultimate impact' (the last two are empty if the paper has no fit).<br>
+ * 	GET /stats: the papers and values of m loaded and the p50/p99/max latency of each kind of request, in microseconds.<br>
+ * 	POST /reload: loads the result file again (only the file the server was started with can be loaded).<br>
+ * <br>
+ * A reload reads the new file next to the old one and then swaps them, so requests keep being answered from the old
+ * fits while it loads and nothing is dropped. If the new file cannot be read the old fits are kept. With -watch the
+ * file is also reloaded whenever it changes, and while a run is still writing it only the papers up to its last
+ * checkpoint are read. The latencies are the histograms 'server.(request).nanos' of 'Metrics.GLOBAL'.
+ * <br><br>
+ * The server has no authentication, so it only listens on the loopback interface unless another address is given with
+ * -bind. Errors are answered without the contents of the result file or the details of the server's files.
+ * <br><br>
+ * Usage: java citation_prediction.PredictionServer [-bind address] [-port 8080] [-threads n] [-watch seconds] resultfile
+ */
+public class PredictionServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_PORT = 8080;
+
+	/**
+	 * The solutions of one paper for one training window, the solution with the largest basin first.
+	 */
+	public static class Fit {
+		public final String paperId;
+		public final int window;
+		public final double m;
+		public final double[] lambda;
+		public final double[] mu;
+		public final double[] sigma;
+		public final long[] basin;
+
+		Fit(String paperId, int window, double m, ArrayList<double[]> solutions) {
+			this.paperId = paperId;
+			this.window = window;
+			this.m = m;
+
+			//Largest basin first, in the order they were written when the basins are the same.
+			ArrayList<double[]> sorted = new ArrayList<double[]>(solutions);
+			Collections.sort(sorted, new Comparator<double[]>() {
+				public int compare(double[] a, double[] b) {
+					return Double.compare(b[3], a[3]);
+				}
+			});
+
+			int n = sorted.size();
+			lambda = new double[n];
+			mu = new double[n];
+			sigma = new double[n];
+			basin = new long[n];
+			for (int i=0; i<n; i++) {
+				double[] s = sorted.get(i);
+				lambda[i] = s[0];
+				mu[i] = s[1];
+				sigma[i] = s[2];
+				basin[i] = (long) s[3];
+			}
+		}
+
+		/** @return True if the fit found at least one solution. */
+		public boolean hasSolution() {
+			return lambda.length > 0;
+		}
+
+		/**
+		 * @param years The time since publication in years.
+		 * @return The cumulative citations predicted by the best solution, NaN if there is none.
+		 */
+		public double cumulative(double years) {
+			return hasSolution() ? CitationCurve.cumulative(m, lambda[0], mu[0], sigma[0], years) : Double.NaN;
+		}
+
+		/** @return The ultimate impact predicted by the best solution, NaN if there is none. */
+		public double ultimateImpact() {
+			return hasSolution() ? CitationCurve.ultimateImpact(m, lambda[0]) : Double.NaN;
+		}
+	}
+
+	/**
+	 * The fits of one result file. It is never changed once loaded, so any number of requests can read it while the
+	 * next one loads.
+	 */
+	public static class FitSet {
+		public final File file;
+		public final long lastModified;
+		public final long loadNanos;
+		private final HashMap<String, Fit> fits; //(m) (window) (paper id) -> fit
+		private final TreeSet<Double> ms;
+		private final int papers;
+
+		private FitSet(File file, long lastModified, long loadNanos, HashMap<String, Fit> fits, TreeSet<Double> ms, int papers) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.loadNanos = loadNanos;
+			this.fits = fits;
+			this.ms = ms;
+			this.papers = papers;
+		}
+
+		/**
+		 * @param paperId The paper id.
+		 * @param window The training window (0 means all years).
+		 * @param m The value of m of the fit, or null if the file only has one.
+		 * @return The fit, or null if the paper was not fitted for that window and m.
+		 * @throws IllegalArgumentException If m is null and the file has fits for several values of m.
+		 */
+		public Fit get(String paperId, int window, Double m) {
+			if (m == null) {
+				if (ms.size() > 1) throw new IllegalArgumentException("The result file has fits for m=" + ms + ", choose one with m.");
+				if (ms.isEmpty()) return null;
+				m = ms.first();
+			}
+			return fits.get(key(m, window, paperId));
+		}
+
+		/** @return The values of m the file has fits for. */
+		public TreeSet<Double> getMs() {
+			return new TreeSet<Double>(ms);
+		}
+
+		/** @return The number of papers loaded. */
+		public int getPapers() {
+			return papers;
+		}
+
+		/** @return The number of fits loaded. */
+		public int getFits() {
+			return fits.size();
+		}
+	}
+
+	//{"lambda":..,"mu":..,"sigma":..,"basin":..} of a JSONL line written by ResultWriter
+	private static final Pattern JSON_SOLUTION = Pattern.compile("\\{\"lambda\":([^,]+),\"mu\":([^,]+),\"sigma\":([^,]+),\"basin\":(\\d+)\\}");
+	private static final Pattern JSON_FIT = Pattern.compile("^\\{\"paper_number\":\\d+,\"paper_id\":\"((?:[^\"\\\\]|\\\\.)*)\",\"window\":(\\d+),\"m\":([^,]+),");
+
+	private static String key(double m, int window, String paperId) {
+		return m + " " + window + " " + paperId;
+	}
+
+	/**
+	 * This function loads a result file written by 'ResultWriter' (the format is chosen by 'ResultWriter.Format.of').
+	 * A file can be loaded while a run is still writing it (see -watch), so only the papers that are written are read
+	 * (see 'written').
+	 *
+	 * @param file The result file.
+	 * @return The fits in the file.
+	 */
+	public static FitSet load(File file) throws IOException {
+
+		long start = System.nanoTime();
+		long lastModified = file.lastModified();
+		boolean json = ResultWriter.Format.of(file.getName()) == ResultWriter.Format.JSONL;
+
+		//Collect the solutions of each fit, in the order they come.
+		HashMap<String, ArrayList<double[]>> solutions = new HashMap<String, ArrayList<double[]>>();
+		HashMap<String, Object[]> keys = new HashMap<String, Object[]>(); //key -> paper id, window, m
+		TreeSet<Double> ms = new TreeSet<Double>();
+		HashMap<String, Boolean> papers = new HashMap<String, Boolean>();
+
+		final long[] left = { written(file) };
+		InputStream stream = new FilterInputStream(new FileInputStream(file)) {
+			public int read() throws IOException {
+				if (left[0] <= 0) return -1;
+				int b = super.read();
+				if (b >= 0) left[0]--;
+				return b;
+			}
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (left[0] <= 0) return -1;
+				int n = super.read(b, off, (int) Math.min(len, left[0]));
+				if (n > 0) left[0] -= n;
+				return n;
+			}
+		};
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream, UTF8), 1 << 16);
+		try {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				if (line.isEmpty()) continue;
+				if (!json && n == 1) {
+					if (!line.equals(ResultWriter.CSV_HEADER) && !line.equals(ResultWriter.CSV_HEADER_NO_ERROR)) throw new IOException(file + " is not a result file (it does not have the header of one).");
+					continue;
+				}
+
+				String id;
+				int window;
+				double m;
+				ArrayList<double[]> s = new ArrayList<double[]>();
+				try {
+					if (json) {
+						Matcher f = JSON_FIT.matcher(line);
+						if (!f.find()) throw new IOException(file + ":" + n + " is not a fit.");
+						id = f.group(1).replace("\\\"", "\"").replace("\\\\", "\\");
+						window = Integer.parseInt(f.group(2));
+						m = Double.parseDouble(f.group(3));
+						Matcher sm = JSON_SOLUTION.matcher(line);
+						while (sm.find()) {
+							if (sm.group(1).equals("null")) continue;
+							s.add(new double[] { Double.parseDouble(sm.group(1)), Double.parseDouble(sm.group(2)), Double.parseDouble(sm.group(3)), Double.parseDouble(sm.group(4)) });
+						}
+					} else {
+						String[] c = splitCSV(line);
+						if (c.length != 8 && c.length != 9) throw new IOException(file + ":" + n + " does not have 9 columns.");
+						id = c[1];
+						window = Integer.parseInt(c[2]);
+						m = Double.parseDouble(c[3]);
+						if (!c[4].isEmpty() && !c[4].equals("null")) {
+							s.add(new double[] { Double.parseDouble(c[4]), Double.parseDouble(c[5]), Double.parseDouble(c[6]), Double.parseDouble(c[7]) });
+						}
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + n + " has a value that is not a number.");
+				}
+
+				String key = key(m, window, id);
+				ArrayList<double[]> all = solutions.get(key);
+				if (all == null) {
+					all = new ArrayList<double[]>();
+					solutions.put(key, all);
+					keys.put(key, new Object[] { id, window, m });
+					papers.put(id, Boolean.TRUE);
+					ms.add(m);
+				}
+				all.addAll(s);
+			}
+		} finally {
+			in.close();
+		}
+
+		HashMap<String, Fit> fits = new HashMap<String, Fit>(2*solutions.size());
+		for (String key : solutions.keySet()) {
+			Object[] k = keys.get(key);
+			fits.put(key, new Fit((String) k[0], (Integer) k[1], (Double) k[2], solutions.get(key)));
+		}
+		return new FitSet(file, lastModified, System.nanoTime() - start, fits, ms, papers.size());
+	}
+
+	/**
+	 * This function finds the end of the papers written to a result file: its last checkpoint, or if it has no
+	 * checkpoint the end of its last line, so a paper (or line) that is still being written is not read half way.
+	 *
+	 * @param file The result file.
+	 * @return The number of bytes of the file to read.
+	 */
+	private static long written(File file) throws IOException {
+
+		ResultWriter.Checkpoint c = ResultWriter.readCheckpoint(file);
+		if (c != null) return Math.max(c.length, 0);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] b = new byte[1 << 13];
+			long end = raf.length();
+			while (end > 0) {
+				int n = (int) Math.min(b.length, end);
+				raf.seek(end - n);
+				raf.readFully(b, 0, n);
+				for (int i=n-1; i>=0; i--) if (b[i] == '\n') return end - n + i + 1;
+				end -= n;
+			}
+			return 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	static String[] splitCSV(String line) {
+		if (line.indexOf('"') < 0) return line.split(",", -1);
+
+		ArrayList<String> r = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i+1 < line.length() && line.charAt(i+1) == '"') { sb.append('"'); i++; }
+				else if (c == '"') quoted = false;
+				else sb.append(c);
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				r.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(c);
+			}
+		}
+		r.add(sb.toString());
+		return r.toArray(new String[r.size()]);
+	}
+
+	private final AtomicReference<FitSet> current = new AtomicReference<FitSet>();
+	private final Object reloading = new Object();
+	private HttpServer server;
+	private ExecutorService executor;
+	private ScheduledExecutorService watcher;
+	private volatile int reloads;
+
+	private final Metrics.Histogram predictNanos = Metrics.GLOBAL.histogram("server.predict.nanos");
+	private final Metrics.Histogram batchNanos = Metrics.GLOBAL.histogram("server.batch.nanos");
+	private final Metrics.Histogram batchQueryNanos = Metrics.GLOBAL.histogram("server.batch.query.nanos");
+
+	/**
+	 * @param file The result file to answer from.
+	 */
+	public PredictionServer(File file) throws IOException {
+		current.set(load(file));
+	}
+
+	/**
+	 * @return The fits requests are answered from.
+	 */
+	public FitSet getFits() {
+		return current.get();
+	}
+
+	/**
+	 * Load the result file again and answer from it once it is loaded. Requests are answered from the old fits until
+	 * then, and the old fits are kept if the file cannot be read. Only one reload runs at a time.
+	 *
+	 * @return The fits now answered from.
+	 */
+	public FitSet reload() throws IOException {
+		synchronized (reloading) {
+			FitSet fits = load(current.get().file);
+			current.set(fits);
+			reloads++;
+			return fits;
+		}
+	}
+
+	/**
+	 * Start answering requests on the loopback interface.
+	 *
+	 * @param port The port to listen on (0 picks a free port, see 'getPort').
+	 * @param threads The number of threads answering requests.
+	 */
+	public void start(int port, int threads) throws IOException {
+		start(InetAddress.getLoopbackAddress(), port, threads);
+	}
+
+	/**
+	 * Start answering requests.
+	 *
+	 * @param address The address to listen on (the server has no authentication, so only use an address other clients
+	 * 		can reach on a trusted network).
+	 * @param port The port to listen on (0 picks a free port, see 'getPort').
+	 * @param threads The number of threads answering requests.
+	 */
+	public void start(InetAddress address, int port, int threads) throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+
+		server.createContext("/predict", new Handler() {
+			String handle(HttpExchange ex, HashMap<String, String> q) throws IOException {
+				long start = System.nanoTime();
+				String r = predict(current.get(), q.get("id"), q.get("t"), q.get("window"), q.get("m"));
+				predictNanos.record(System.nanoTime() - start);
+				return r;
+			}
+		});
+		server.createContext("/batch", new Handler() {
+			String handle(HttpExchange ex, HashMap<String, String> q) throws IOException {
+				long start = System.nanoTime();
+				BufferedReader in = new BufferedReader(new InputStreamReader(ex.getRequestBody(), UTF8));
+				String r = batch(current.get(), in);
+				batchNanos.record(System.nanoTime() - start);
+				return r;
+			}
+		});
+		server.createContext("/stats", new Handler() {
+			String handle(HttpExchange ex, HashMap<String, String> q) {
+				return stats();
+			}
+		});
+		server.createContext("/reload", new Handler() {
+			String handle(HttpExchange ex, HashMap<String, String> q) throws IOException {
+				if (!ex.getRequestMethod().equals("POST")) throw new IllegalArgumentException("Use POST to reload.");
+				FitSet f = reload();
+				return "{\"file\":" + json(f.file.getPath()) + ",\"papers\":" + f.getPapers() + ",\"fits\":" + f.getFits() + ",\"load_ms\":" + f.loadNanos/1000000 + "}\n";
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Reload the result file whenever it changes.
+	 *
+	 * @param periodMillis How often the file is checked.
+	 */
+	public void watch(long periodMillis) {
+		watcher = Executors.newSingleThreadScheduledExecutor();
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				FitSet f = current.get();
+				if (f.file.lastModified() == f.lastModified) return;
+				try {
+					f = reload();
+					System.err.println("Reloaded " + f.file + ": " + f.getPapers() + " papers in " + f.loadNanos/1000000 + " ms.");
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not reload " + f.file + ", still answering from the old fits: " + e.getMessage());
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop answering requests, after waiting up to a second for the requests being answered.
+	 */
+	public void stop() {
+		if (watcher != null) watcher.shutdownNow();
+		if (server != null) server.stop(1);
+		if (executor != null) executor.shutdown();
+	}
+
+	/**
+	 * This function answers one prediction request.
+	 *
+	 * @param fits The fits to answer from.
+	 * @param id The paper id.
+	 * @param times The times since publication in years, separated by commas, or null.
+	 * @param window The training window of the fit (0, the default, means all years), or null.
+	 * @param m The value of m of the fit, or null if the result file has only one.
+	 * @return The answer as JSON.
+	 */
+	static String predict(FitSet fits, String id, String times, String window, String m) {
+
+		if (id == null) throw new IllegalArgumentException("The paper id (id=) is missing.");
+		int w = (window == null) ? 0 : Integer.parseInt(window);
+
+		Fit f = fits.get(id, w, (m == null) ? null : Double.valueOf(m));
+		if (f == null) throw new NotFound("Paper " + id + " has no fit for window " + w + (m == null ? "" : " and m=" + m) + ".");
+
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"paper_id\":").append(json(f.paperId)).append(",\"window\":").append(f.window).append(",\"m\":").append(number(f.m));
+		if (!f.hasSolution()) return sb.append(",\"solutions\":0}\n").toString();
+
+		sb.append(",\"lambda\":").append(number(f.lambda[0])).append(",\"mu\":").append(number(f.mu[0])).append(",\"sigma\":").append(number(f.sigma[0]))
+			.append(",\"basin\":").append(f.basin[0]).append(",\"solutions\":").append(f.lambda.length)
+			.append(",\"ultimate_impact\":").append(number(f.ultimateImpact()));
+
+		if (times != null) {
+			String[] t = times.split(",");
+			double[] years = new double[t.length];
+			for (int i=0; i<t.length; i++) { years[i] = Double.parseDouble(t[i].trim()); }
+			double[] citations = new double[t.length];
+			CitationCurve.cumulative(f.m, f.lambda[0], f.mu[0], f.sigma[0], years, citations);
+
+			sb.append(",\"t\":[");
+			for (int i=0; i<t.length; i++) { sb.append(i == 0 ? "" : ",").append(number(years[i])); }
+			sb.append("],\"citations\":[");
+			for (int i=0; i<t.length; i++) { sb.append(i == 0 ? "" : ",").append(number(citations[i])); }
+			sb.append(']');
+		}
+		return sb.append("}\n").toString();
+	}
+
+	/**
+	 * This function answers a batch of queries, one per line 'paper id,years[,window[,m]]'.
+	 *
+	 * @param fits The fits to answer from.
+	 * @param in The queries.
+	 * @return One line per query, 'paper id,window,years,citations,ultimate impact'.
+	 */
+	String batch(FitSet fits, BufferedReader in) throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		String line;
+		int n = 0;
+		while ((line = in.readLine()) != null) {
+			n++;
+			if (line.trim().isEmpty()) continue;
+			long start = System.nanoTime();
+
+			String[] q = line.split(",");
+			if (q.length < 2 || q.length > 4) throw new IllegalArgumentException("Query " + n + " is not 'paper id,years[,window[,m]]': " + line);
+			String id = q[0].trim();
+			double years = Double.parseDouble(q[1].trim());
+			int w = (q.length > 2 && !q[2].trim().isEmpty()) ? Integer.parseInt(q[2].trim()) : 0;
+			Double m = (q.length > 3) ? Double.valueOf(q[3].trim()) : null;
+
+			Fit f = fits.get(id, w, m);
+			sb.append(id).append(',').append(w).append(',').append(years).append(',');
+			if (f != null && f.hasSolution()) sb.append(f.cumulative(years)).append(',').append(f.ultimateImpact());
+			else sb.append(',');
+			sb.append('\n');
+
+			batchQueryNanos.record(System.nanoTime() - start);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The papers loaded and the latency of each kind of request as JSON.
+	 */
+	String stats() {
+		FitSet f = current.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"file\":").append(json(f.file.getPath())).append(",\"papers\":").append(f.getPapers()).append(",\"fits\":").append(f.getFits())
+			.append(",\"m\":").append(f.getMs().toString().replace(" ", "")).append(",\"reloads\":").append(reloads);
+		latency(sb, "predict", predictNanos);
+		latency(sb, "batch", batchNanos);
+		latency(sb, "batch_query", batchQueryNanos);
+		return sb.append("}\n").toString();
+	}
+
+	private static void latency(StringBuilder sb, String name, Metrics.Histogram h) {
+		sb.append(",\"").append(name).append("\":{\"count\":").append(h.getCount())
+			.append(",\"p50_us\":").append(h.getPercentile(0.5)/1000.0)
+			.append(",\"p99_us\":").append(h.getPercentile(0.99)/1000.0)
+			.append(",\"max_us\":").append(h.getMax()/1000.0).append('}');
+	}
+
+	private static String number(double v) {
+		return (Double.isNaN(v) || Double.isInfinite(v)) ? "null" : String.valueOf(v);
+	}
+
+	private static String json(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * A paper that has no fit, answered with 404.
+	 */
+	static class NotFound extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		NotFound(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Parses the query string, writes the answer and turns errors into 400 (a bad request), 404 (no fit) or 500.
+	 */
+	private abstract static class Handler implements HttpHandler {
+
+		abstract String handle(HttpExchange ex, HashMap<String, String> query) throws IOException;
+
+		public void handle(HttpExchange ex) throws IOException {
+			int status = 200;
+			String body;
+			try {
+				body = handle(ex, query(ex.getRequestURI().getRawQuery()));
+			} catch (NotFound e) {
+				status = 404;
+				body = "{\"error\":" + json(e.getMessage()) + "}\n";
+			} catch (IllegalArgumentException e) { //NumberFormatException too
+				status = 400;
+				body = "{\"error\":" + json(String.valueOf(e.getMessage())) + "}\n";
+			} catch (Exception e) {
+				//The details stay in the server's log, they can hold paths and the contents of files.
+				status = 500;
+				body = "{\"error\":\"The request could not be answered, see the server's log.\"}\n";
+				System.err.println("ERROR: Could not answer " + ex.getRequestMethod() + " " + ex.getRequestURI().getPath() + ": " + e);
+			}
+
+			byte[] b = body.getBytes(UTF8);
+			ex.getResponseHeaders().set("Content-Type", body.startsWith("{") ? "application/json" : "text/csv");
+			ex.sendResponseHeaders(status, b.length);
+			OutputStream out = ex.getResponseBody();
+			try {
+				out.write(b);
+			} finally {
+				out.close();
+			}
+		}
+
+		private static HashMap<String, String> query(String raw) throws IOException {
+			HashMap<String, String> q = new HashMap<String, String>();
+			if (raw == null) return q;
+			for (String p : raw.split("&")) {
+				int eq = p.indexOf('=');
+				if (eq < 0) q.put(URLDecoder.decode(p, "UTF-8"), "");
+				else q.put(URLDecoder.decode(p.substring(0, eq), "UTF-8"), URLDecoder.decode(p.substring(eq+1), "UTF-8"));
+			}
+			return q;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long watchPeriod = 0;
+		while (args.length > 1 && args[0].startsWith("-")) {
+			if (args[0].equals("-bind")) { address = InetAddress.getByName(args[1]); }
+			else if (args[0].equals("-port")) { port = Integer.parseInt(args[1]); }
+			else if (args[0].equals("-threads")) { threads = Integer.parseInt(args[1]); }
+			else if (args[0].equals("-watch")) { watchPeriod = (long) (1000*Double.valueOf(args[1])); }
+			else { args = new String[0]; break; }
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+
+		if (args.length != 1) {
+			System.err.println("Usage: java citation_prediction.PredictionServer [-bind address] [-port 8080] [-threads n] [-watch seconds] resultfile");
+			System.exit(1);
+		}
+
+		PredictionServer s = new PredictionServer(new File(args[0]));
+		Metrics.GLOBAL.register();
+		s.start(address, port, threads);
+		if (watchPeriod > 0) s.watch(watchPeriod);
+
+		FitSet f = s.getFits();
+		System.err.println("Answering from " + f.file + " (" + f.getPapers() + " papers, " + f.getFits() + " fits, loaded in " + f.loadNanos/1000000 + " ms) on " + address.getHostAddress() + ":" + s.getPort() + ".");
+	}
+}
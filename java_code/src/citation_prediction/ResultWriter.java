@@ -0,0 +1,391 @@
+package citation_prediction;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import citation_prediction.BatchFitter.PaperFit;
+import citation_prediction.BatchFitter.ResultListener;
+
+/**
+ * This class streams the fits of a run to a result file as each paper finishes, and keeps a checkpoint of the papers
+ * written so a run that stopped part way can be resumed.
+ * <br><br>
+ * The fits of a paper are held until every training window has been fitted, then written together (in window order)
+ * and flushed. The result file is either:
+ * <br>
+ * 	CSV: a header and one row per solution, 'paper_number,paper_id,window,m,lambda,mu,sigma,basin,error'. A fit without
+ * 		any solution has one row with the solution columns empty, and a fit that failed also has the error.<br>
+ * 	JSONL: one object per fit, {"paper_number":..,"paper_id":..,"window":..,"m":..,"solutions":[{"lambda":..,"mu":..,"sigma":..,"basin":..}]},
+ * 		with an "error" after "m" if the fit failed.<br>
+ * <br>
+ * The window is 0 for all years of training. The checkpoint file '(result file).checkpoint' starts with the line
+ * 'settings (tab) settings of the run' (see 'BatchFitter.getRunSettings') and after each paper the line 'paper number (tab)
+ * paper id (tab) length of the result file' is added to it. When a run is resumed the result file is cut back to the
+ * length of its last checkpoint (so a paper that was half written is written again) and the papers in the checkpoint
+ * are skipped (see 'getCompleted' and 'BatchFitter.setCompleted'). A run is only resumed with the settings the file
+ * was started with, so fits of different settings are never mixed in one file.
+ */
+public class ResultWriter implements ResultListener, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String CSV_HEADER = "paper_number,paper_id,window,m,lambda,mu,sigma,basin,error";
+
+	/** The header of result files written before the error column was added (see 'PredictionServer.load'). */
+	static final String CSV_HEADER_NO_ERROR = "paper_number,paper_id,window,m,lambda,mu,sigma,basin";
+
+	/** The start of the first line of a checkpoint file, before the settings of the run. */
+	static final String SETTINGS = "settings\t";
+
+	/**
+	 * The format of a result file.
+	 */
+	public enum Format {
+		CSV, JSONL;
+
+		/**
+		 * @param filename The name of a result file.
+		 * @return JSONL for a '.jsonl' or '.json' file, otherwise CSV.
+		 */
+		public static Format of(String filename) {
+			String f = filename.toLowerCase();
+			return (f.endsWith(".jsonl") || f.endsWith(".json")) ? JSONL : CSV;
+		}
+	}
+
+	private final File file;
+	private final File checkpointFile;
+	private final Format format;
+	private final int windowCount;
+	private final String settings;
+	private final FileOutputStream outStream;
+	private final Writer out;
+	private final Writer checkpoint;
+	private final TreeMap<Integer, String> completed = new TreeMap<Integer, String>();
+	private final HashMap<Integer, ArrayList<PaperFit>> pending = new HashMap<Integer, ArrayList<PaperFit>>();
+	private int resumed;
+	private int written;
+	private IOException error;
+
+	/**
+	 * @param file The result file.
+	 * @param format The format of the result file.
+	 * @param windowCount The number of fits of each paper: one per training window (and per m for an m sweep, see 'MSweep').
+	 * @param settings The settings of the run (see 'BatchFitter.getRunSettings'), on one line.
+	 * @param resume True to carry on from the checkpoint of the result file (if there is one), false to start a new file.
+	 * @throws IOException If the result file can not be written, or it is resumed and was started with other settings.
+	 */
+	public ResultWriter(File file, Format format, int windowCount, String settings, boolean resume) throws IOException {
+
+		this.file = file;
+		this.checkpointFile = checkpointFile(file);
+		this.format = format;
+		this.windowCount = windowCount;
+		this.settings = settings.replace('\n', ' ').replace('\r', ' ');
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists()) dir.mkdirs();
+
+		long length = (resume && file.exists() && checkpointFile.exists()) ? readCheckpoint() : -1;
+		resumed = completed.size();
+
+		if (length >= 0) {
+			//Drop whatever was written after the last checkpoint.
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+
+		outStream = new FileOutputStream(file, length >= 0);
+		out = new BufferedWriter(new OutputStreamWriter(outStream, UTF8), 1 << 16);
+		checkpoint = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(checkpointFile, length >= 0), UTF8));
+
+		if (length < 0) {
+			checkpoint.write(SETTINGS + this.settings + "\n");
+			checkpoint.flush();
+			if (format == Format.CSV) {
+				out.write(CSV_HEADER + "\n");
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * What a checkpoint file says about its result file.
+	 */
+	static class Checkpoint {
+		/** The settings of the run, "(not recorded)" if the first line has none. */
+		String settings;
+		/** The papers written, paper number to paper id, in the order they were written. */
+		LinkedHashMap<Integer, String> papers = new LinkedHashMap<Integer, String>();
+		/** The length of the result file at the last checkpoint kept, -1 if no paper was written. */
+		long length = -1;
+		/** The length of the lines of the checkpoint file that were kept. */
+		long checkpointLength;
+		/** True if a checkpoint was past the end of the result file. */
+		boolean pastEnd;
+	}
+
+	/**
+	 * @param file A result file.
+	 * @return The checkpoint file of the result file.
+	 */
+	static File checkpointFile(File file) {
+		return new File(file.getPath() + ".checkpoint");
+	}
+
+	/**
+	 * This function reads the checkpoint file of a result file without changing either, for a run that is resumed and
+	 * for the readers of result files ('ShardMerger' and 'PredictionServer'). Checkpoints past the end of the result
+	 * file (which can happen when the machine stopped before the file was on disk) are dropped, and so is a last line
+	 * that was only partly written.
+	 *
+	 * @param file The result file.
+	 * @return The checkpoint, or null if there is none (or it is empty because the run stopped before anything was written).
+	 */
+	static Checkpoint readCheckpoint(File file) throws IOException {
+
+		File checkpointFile = checkpointFile(file);
+		if (!checkpointFile.exists()) return null;
+		long fileLength = file.length();
+		Checkpoint c = new Checkpoint();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), UTF8));
+		try {
+			String line = in.readLine();
+			if (line == null) return null; //stopped before anything was written
+			c.settings = line.startsWith(SETTINGS) ? line.substring(SETTINGS.length()) : "(not recorded)";
+			long read = line.getBytes(UTF8).length + 1;
+			c.checkpointLength = read;
+			while ((line = in.readLine()) != null) {
+				read += line.getBytes(UTF8).length + 1;
+				if (read > checkpointFile.length()) break; //the last line has no end, so it was only partly written
+				String[] f = line.split("\t");
+				if (f.length != 3) break;
+				long offset;
+				try {
+					offset = Long.parseLong(f[2]);
+					if (offset > fileLength) { c.pastEnd = true; break; }
+					if (offset < c.length) break;
+					c.papers.put(Integer.parseInt(f[0]), f[1]);
+				} catch (NumberFormatException e) {
+					break;
+				}
+				c.length = offset;
+				c.checkpointLength = read;
+			}
+		} finally {
+			in.close();
+		}
+		return c;
+	}
+
+	/**
+	 * This function reads the checkpoint file of this writer and cuts it back to the lines that were kept (see
+	 * 'readCheckpoint(File)').
+	 *
+	 * @return The length of the result file at the last checkpoint kept, or -1 to start a new file.
+	 * @throws IOException If the checkpoint was written by a run with other settings.
+	 */
+	private long readCheckpoint() throws IOException {
+
+		Checkpoint c = readCheckpoint(file);
+		if (c == null) return -1;
+		if (!c.settings.equals(settings)) {
+			throw new IOException(file + " was started with other settings, so it can not be resumed. Use another result file or delete "
+					+ file + " and " + checkpointFile + ".\n  File:     " + c.settings + "\n  This run: " + settings);
+		}
+		if (c.length < 0) return -1; //nothing to resume, start again (the settings line is written again)
+		completed.putAll(c.papers);
+
+		//Cut the checkpoint back to the lines that were kept.
+		RandomAccessFile raf = new RandomAccessFile(checkpointFile, "rw");
+		try {
+			raf.setLength(Math.min(c.checkpointLength, raf.length()));
+		} finally {
+			raf.close();
+		}
+		return c.length;
+	}
+
+	/**
+	 * @return The papers written by earlier runs, paper number to paper id (see 'BatchFitter.setCompleted').
+	 */
+	public Map<Integer, String> getCompleted() {
+		return Collections.unmodifiableMap(completed);
+	}
+
+	/**
+	 * @return The number of papers written by earlier runs.
+	 */
+	public int getResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return The number of papers written by this run.
+	 */
+	public synchronized int getWritten() {
+		return written;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public void fitted(PaperFit fit) {
+
+		ArrayList<PaperFit> fits;
+		synchronized (pending) {
+			ArrayList<PaperFit> f = pending.get(fit.paperNumber);
+			if (f == null) {
+				f = new ArrayList<PaperFit>(windowCount);
+				pending.put(fit.paperNumber, f);
+			}
+			f.add(fit);
+			if (f.size() < windowCount) return;
+			fits = pending.remove(fit.paperNumber);
+		}
+
+		write(fits);
+	}
+
+	/**
+	 * This function writes the fits of one paper, flushes them to the result file and then adds the paper to the
+	 * checkpoint. An error is kept and thrown by 'close', so the fitting carries on.
+	 *
+	 * @param fits The fits of every training window of one paper.
+	 */
+	private synchronized void write(ArrayList<PaperFit> fits) {
+
+		if (error != null) return;
+
+		Collections.sort(fits, new Comparator<PaperFit>() {
+			public int compare(PaperFit a, PaperFit b) {
+				if (a.m != b.m) return Double.compare(a.m, b.m); //the fits of an m sweep, one m after the other
+				int wa = (a.window == 0) ? Integer.MAX_VALUE : a.window;
+				int wb = (b.window == 0) ? Integer.MAX_VALUE : b.window;
+				return (wa < wb) ? -1 : (wa == wb ? 0 : 1);
+			}
+		});
+
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (PaperFit f : fits) {
+				if (format == Format.CSV) appendCSV(sb, f);
+				else appendJSON(sb, f);
+			}
+			out.write(sb.toString());
+			out.flush();
+
+			PaperFit first = fits.get(0);
+			checkpoint.write(first.paperNumber + "\t" + first.paperId + "\t" + outStream.getChannel().position() + "\n");
+			checkpoint.flush();
+			written++;
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	private static void appendCSV(StringBuilder sb, PaperFit f) {
+		String prefix = f.paperNumber + "," + csv(f.paperId) + "," + f.window + "," + f.m + ",";
+		if (f.solutions.isEmpty()) {
+			sb.append(prefix).append(",,,,").append(f.error == null ? "" : csv(f.error)).append('\n');
+			return;
+		}
+		for (LinkedHashMap<String, Double> s : f.solutions) {
+			sb.append(prefix).append(value(s, "lambda")).append(',').append(value(s, "mu")).append(',').append(value(s, "sigma")).append(',').append(basin(s)).append(",\n");
+		}
+	}
+
+	private static void appendJSON(StringBuilder sb, PaperFit f) {
+		sb.append("{\"paper_number\":").append(f.paperNumber)
+			.append(",\"paper_id\":").append(json(f.paperId))
+			.append(",\"window\":").append(f.window)
+			.append(",\"m\":").append(number(f.m));
+		if (f.error != null) sb.append(",\"error\":").append(json(f.error));
+		sb.append(",\"solutions\":[");
+		for (int i=0; i<f.solutions.size(); i++) {
+			LinkedHashMap<String, Double> s = f.solutions.get(i);
+			if (i > 0) sb.append(',');
+			sb.append("{\"lambda\":").append(value(s, "lambda"))
+				.append(",\"mu\":").append(value(s, "mu"))
+				.append(",\"sigma\":").append(value(s, "sigma"))
+				.append(",\"basin\":").append(basin(s)).append('}');
+		}
+		sb.append("]}\n");
+	}
+
+	private static String value(LinkedHashMap<String, Double> s, String key) {
+		Double v = s.get(key);
+		return (v == null) ? "null" : number(v);
+	}
+
+	private static String basin(LinkedHashMap<String, Double> s) {
+		Double b = s.get("basin");
+		return (b == null) ? "1" : String.valueOf(b.longValue());
+	}
+
+	private static String number(double v) {
+		return (Double.isNaN(v) || Double.isInfinite(v)) ? "null" : String.valueOf(v);
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String json(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Close the result and checkpoint files. The fits of papers that are not complete are not written, they are fitted
+	 * again when the run is resumed.
+	 *
+	 * @throws IOException If a paper could not be written.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			checkpoint.close();
+		}
+		if (error != null) throw error;
+	}
+
+	public String toString() {
+		return "ResultWriter: " + getWritten() + " papers written to " + file + (resumed > 0 ? " (resumed after " + resumed + " papers)" : "") + ".";
+	}
+}
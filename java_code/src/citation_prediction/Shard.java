@@ -0,0 +1,75 @@
+package citation_prediction;
+
+import java.nio.charset.Charset;
+
+/**
+ * One part of a citation file when the file is fitted on several machines (or JVMs) at once: shard 'index' of 'count'
+ * holds the papers whose id hashes to 'index' (see {@link #hash}).
+ * <br><br>
+ * The hash only depends on the bytes of the paper id, so every machine puts a paper in the same shard whatever its
+ * JVM, the order of the file or the other papers in it, and the shards of a file never overlap. The fits of each shard
+ * are combined by 'ShardMerger'.
+ */
+public class Shard {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public final int index;
+	public final int count;
+
+	/**
+	 * @param index The shard, from 0 to count-1.
+	 * @param count The number of shards.
+	 */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 0 || index >= count) throw new IllegalArgumentException("Not a shard: " + index + "/" + count + " (the index goes from 0 to count-1).");
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * @param shard The shard as "index/count", like "0/4".
+	 * @return The shard.
+	 */
+	public static Shard parse(String shard) {
+		int slash = shard.indexOf('/');
+		if (slash < 0) throw new IllegalArgumentException("Not a shard: " + shard + " (expected index/count, like 0/4).");
+		return new Shard(Integer.parseInt(shard.substring(0, slash).trim()), Integer.parseInt(shard.substring(slash+1).trim()));
+	}
+
+	/**
+	 * The 64 bit FNV-1a hash of the UTF-8 bytes of a paper id.
+	 *
+	 * @param paperId The paper id.
+	 * @return The hash.
+	 */
+	public static long hash(String paperId) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : paperId.getBytes(UTF8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * @param paperId The paper id.
+	 * @param count The number of shards.
+	 * @return The shard of the paper, from 0 to count-1.
+	 */
+	public static int of(String paperId, int count) {
+		return (int) ((hash(paperId) >>> 1) % count);
+	}
+
+	/**
+	 * @param paperId The paper id.
+	 * @return True if the paper is in this shard.
+	 */
+	public boolean contains(String paperId) {
+		return of(paperId, count) == index;
+	}
+
+	public String toString() {
+		return index + "/" + count;
+	}
+}
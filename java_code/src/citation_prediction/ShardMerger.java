@@ -0,0 +1,491 @@
+package citation_prediction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import citation_prediction.ResultWriter.Checkpoint;
+
+/**
+ * This class combines the fits of the shards of a citation file (see {@link Shard} and 'BatchFitter -shard') into one
+ * result file, and checks that no paper is missing or fitted twice.
+ * <br><br>
+ * The shards are either the text files of 'BatchFitter -out' or the result files of 'BatchFitter -results' (see
+ * 'ResultWriter'):
+ * <br>
+ * 	-out: a header naming the shard and settings, one line per fit (see 'PaperFit.toString') and a footer with the
+ * 		number of fits, so a shard that stopped part way is caught.<br>
+ * 	-results: a CSV or JSONL file and its checkpoint, whose settings end with the shard (see 'BatchFitter.getRunSettings').
+ * 		Only the papers in the checkpoint are merged, and a shard that stopped part way through a paper is caught.<br>
+ * <br>
+ * The merge checks that:
+ * <br>
+ * 	1. every shard from 0 to count-1 is there once and all were fitted with the same file (by name and size) and<br>
+ * 	   settings (m, step, training windows, grouped data, solver and search),<br>
+ * 	2. every result file is complete and each of its papers belongs to its shard,<br>
+ * 	3. no paper and training window (and m, for an m sweep) is fitted twice, and every paper has a fit for every one,<br>
+ * 	4. no paper number is skipped and, with -expect, every paper of the citation file is there under its own id.<br>
+ * <br>
+ * The merged fits are written in paper order, in the format of the parts. Result files are merged into a result file
+ * with a checkpoint, the same as the file of one run over the whole citation file. To try it on one machine, run one
+ * JVM per shard:
+ * <br>
+ * <pre>
+ * for i in 0 1 2; do java citation_prediction.BatchFitter -shard $i/3 -results part$i.csv papers/1980s_selected_papers.csv &amp; done; wait
+ * java citation_prediction.ShardMerger -expect papers/1980s_selected_papers.csv merged.csv part0.csv part1.csv part2.csv
+ * </pre>
+ * Usage: java citation_prediction.ShardMerger [-expect file.csv] merged parts...
+ */
+public class ShardMerger {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String HEADER = "# citation_prediction fits";
+	static final String FOOTER = "# end fits=";
+
+	//P#(paper number)((paper id), train=(window)):: (solutions)
+	private static final Pattern FIT = Pattern.compile("^P#(\\d+)\\((.*), train=(\\w+)\\):: ");
+
+	//{"paper_number":..,"paper_id":..,"window":..,"m":.. of a JSONL line written by ResultWriter
+	private static final Pattern JSON_FIT = Pattern.compile("^\\{\"paper_number\":(\\d+),\"paper_id\":\"((?:[^\"\\\\]|\\\\.)*)\",\"window\":(\\d+),\"m\":([^,]+),");
+
+	/** The most problems of each kind listed in the report. */
+	static final int MAX_LISTED = 20;
+
+	/**
+	 * The input file is named by its name and size rather than its path, so shards run from different directories (or
+	 * machines) with the same copy of the file still agree, and a file that was changed between shards is caught.
+	 *
+	 * @param shard The shard of the fits, or null when the whole file is fitted.
+	 * @param filename The citation file fitted.
+	 * @param fitter The fitter of the shard, for its m, step, training windows, solver and search (see
+	 * 		'BatchFitter.getSettings').
+	 * @return The first line of a result file.
+	 */
+	public static String header(Shard shard, String filename, BatchFitter fitter) {
+		int[] windows = fitter.getWindows();
+		StringBuilder w = new StringBuilder();
+		for (int i=0; i<windows.length; i++) { w.append(i == 0 ? "" : ",").append(windows[i]); }
+		File f = new File(filename);
+		return HEADER + " shard=" + (shard == null ? new Shard(0, 1) : shard) + " windows=" + w + " file=" + f.getName() + " size=" + f.length()
+				+ " settings=" + fitter.getSettings();
+	}
+
+	/**
+	 * @param fits The number of fits written.
+	 * @return The last line of a complete result file.
+	 */
+	public static String footer(int fits) {
+		return FOOTER + fits;
+	}
+
+	/**
+	 * One fit of a part: a line of a -out file, or the rows (CSV) or line (JSONL) of a training window of a paper in a
+	 * result file.
+	 */
+	static class Fit {
+		int number;
+		String id;
+		String slot; //the training window (and m of a result file) of the fit, see 'Part.slots'
+		String text;
+	}
+
+	/**
+	 * The fits of one shard.
+	 */
+	static class Part {
+		File file;
+		ResultWriter.Format format; //null for a -out file
+		Shard shard;
+		String settings; //everything in the header (or checkpoint) but the shard
+		String[] slots; //the fits of each paper, in the order they are written
+		ArrayList<Fit> fits = new ArrayList<Fit>();
+		ArrayList<String> notFits = new ArrayList<String>();
+		int footerFits = -1;
+		Checkpoint checkpoint;
+	}
+
+	/**
+	 * What the merge found.
+	 */
+	public static class Report {
+		public int shards;
+		public int papers;
+		public int fits;
+		public ArrayList<String> problems = new ArrayList<String>();
+		private int[] listed = new int[8];
+
+		void problem(int kind, String message) {
+			if (listed[kind]++ < MAX_LISTED) problems.add(message);
+			else if (listed[kind] == MAX_LISTED+1) problems.add("... (more problems of this kind are not listed)");
+		}
+
+		public boolean isOk() {
+			return problems.isEmpty();
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder(shards + " shards, " + papers + " papers, " + fits + " fits: " + (isOk() ? "OK" : problems.size() + " problems"));
+			for (String p : problems) { sb.append(System.getProperty("line.separator")).append("  ").append(p); }
+			return sb.toString();
+		}
+	}
+
+	static Part read(File file) throws IOException {
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String first;
+		try {
+			first = in.readLine();
+		} finally {
+			in.close();
+		}
+		if (first != null && first.startsWith(HEADER + " shard=")) return readOut(file);
+		if (ResultWriter.checkpointFile(file).exists()) return readResults(file);
+		throw new IOException(file + " is not a result file (it has no header and no checkpoint).");
+	}
+
+	/**
+	 * @param file The text file of 'BatchFitter -out'.
+	 * @return The fits of the file.
+	 */
+	private static Part readOut(File file) throws IOException {
+
+		Part p = new Part();
+		p.file = file;
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String header = in.readLine();
+			String rest = header.substring((HEADER + " shard=").length());
+			int space = rest.indexOf(' ');
+			p.shard = Shard.parse(space < 0 ? rest : rest.substring(0, space));
+			p.settings = (space < 0) ? "" : rest.substring(space+1);
+
+			Matcher w = Pattern.compile("windows=([0-9,]+)").matcher(p.settings);
+			if (!w.find()) throw new IOException(file + " does not name its training windows.");
+			p.slots = w.group(1).split(",");
+			for (int i=0; i<p.slots.length; i++) p.slots[i] = "window " + Integer.parseInt(p.slots[i]);
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(FOOTER)) {
+					p.footerFits = Integer.parseInt(line.substring(FOOTER.length()).trim());
+				} else if (!line.startsWith("#") && !line.isEmpty()) {
+					Matcher m = FIT.matcher(line);
+					if (!m.find()) { p.notFits.add(line); continue; }
+					Fit f = new Fit();
+					f.number = Integer.parseInt(m.group(1));
+					f.id = m.group(2);
+					f.slot = "window " + (m.group(3).equals("All") ? 0 : Integer.parseInt(m.group(3)));
+					f.text = line + "\n";
+					p.fits.add(f);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+
+	/**
+	 * This function reads the papers of a result file of 'ResultWriter' up to its last checkpoint, so a paper that was
+	 * being written when the run stopped is left out.
+	 *
+	 * @param file The result file of 'BatchFitter -results' (or 'MSweep').
+	 * @return The fits of the file.
+	 */
+	private static Part readResults(File file) throws IOException {
+
+		Part p = new Part();
+		p.file = file;
+		p.format = ResultWriter.Format.of(file.getName());
+		p.checkpoint = ResultWriter.readCheckpoint(file);
+		if (p.checkpoint == null) throw new IOException(file + " has an empty checkpoint, so nothing was written to it.");
+
+		String settings = p.checkpoint.settings;
+		int s = settings.lastIndexOf(BatchFitter.SHARD_SETTING);
+		if (s < 0) throw new IOException(file + " does not name its shard (it was written before shards were recorded).");
+		p.shard = Shard.parse(settings.substring(s + BatchFitter.SHARD_SETTING.length()));
+		p.settings = settings.substring(0, s);
+
+		//m=(m or m1,m2,..), step=.., windows=[w1, w2, ..], ...
+		Matcher ms = Pattern.compile("^m=(\\S+), step=").matcher(p.settings);
+		Matcher ws = Pattern.compile("windows=\\[([0-9, ]+)\\]").matcher(p.settings);
+		if (!ms.find() || !ws.find()) throw new IOException(file + " does not name its m and training windows.");
+		TreeSet<Double> mSet = new TreeSet<Double>();
+		for (String m : ms.group(1).split(",")) mSet.add(Double.valueOf(m));
+		TreeSet<Integer> wSet = new TreeSet<Integer>();
+		for (String w : ws.group(1).split(",")) wSet.add(Integer.valueOf(w.trim()));
+		//the order of 'ResultWriter.write': by m, then by window with all years last
+		ArrayList<String> slots = new ArrayList<String>();
+		for (Double m : mSet) {
+			for (Integer w : wSet) if (w != 0) slots.add(slot(m, w));
+			if (wSet.contains(0)) slots.add(slot(m, 0));
+		}
+		p.slots = slots.toArray(new String[slots.size()]);
+
+		if (p.checkpoint.length < 0) return p;
+		byte[] b = new byte[(int) p.checkpoint.length];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully(b);
+		} finally {
+			raf.close();
+		}
+
+		String[] lines = new String(b, UTF8).split("\n");
+		Fit last = null;
+		for (int i=0; i<lines.length; i++) {
+			String line = lines[i];
+			if (line.isEmpty()) continue;
+			if (p.format == ResultWriter.Format.CSV && i == 0) {
+				if (!line.equals(ResultWriter.CSV_HEADER) && !line.equals(ResultWriter.CSV_HEADER_NO_ERROR)) throw new IOException(file + " is not a result file (it does not have the header of one).");
+				continue;
+			}
+
+			Fit f = new Fit();
+			try {
+				if (p.format == ResultWriter.Format.JSONL) {
+					Matcher m = JSON_FIT.matcher(line);
+					if (!m.find()) { p.notFits.add(line); continue; }
+					f.number = Integer.parseInt(m.group(1));
+					f.id = m.group(2).replace("\\\"", "\"").replace("\\\\", "\\");
+					f.slot = slot(Double.parseDouble(m.group(4)), Integer.parseInt(m.group(3)));
+				} else {
+					String[] c = PredictionServer.splitCSV(line);
+					if (c.length != 8 && c.length != 9) { p.notFits.add(line); continue; }
+					f.number = Integer.parseInt(c[0]);
+					f.id = c[1];
+					f.slot = slot(Double.parseDouble(c[3]), Integer.parseInt(c[2]));
+				}
+			} catch (NumberFormatException e) {
+				p.notFits.add(line);
+				continue;
+			}
+
+			//the solutions of a fit are on rows one after the other
+			if (last != null && last.number == f.number && last.id.equals(f.id) && last.slot.equals(f.slot) && p.format == ResultWriter.Format.CSV) {
+				last.text += line + "\n";
+				continue;
+			}
+			f.text = line + "\n";
+			p.fits.add(f);
+			last = f;
+		}
+		return p;
+	}
+
+	private static String slot(double m, int window) {
+		return "m=" + m + ", window " + window;
+	}
+
+	/**
+	 * Merge the result files of the shards of a citation file.
+	 *
+	 * @param parts The result file of each shard.
+	 * @param merged The file the merged fits are written to (it is only written when nothing is wrong), or null.
+	 * @param expect The citation file that was fitted, to check every paper is there, or null.
+	 * @return What the merge found.
+	 */
+	public static Report merge(List<File> parts, File merged, String expect) throws IOException {
+
+		Report r = new Report();
+
+		ArrayList<Part> ps = new ArrayList<Part>();
+		for (File f : parts) ps.add(read(f));
+		if (ps.isEmpty()) {
+			r.problem(0, "There are no result files.");
+			return r;
+		}
+
+		//1. every shard once, with the same settings
+		Part first = ps.get(0);
+		int count = first.shard.count;
+		Part[] byIndex = new Part[count];
+		ArrayList<Part> same = new ArrayList<Part>(); //the parts of the same format and shard count as the first
+		for (Part p : ps) {
+			if (p.format != first.format) { r.problem(0, p.file + " is " + name(p.format) + " but " + first.file + " is " + name(first.format) + "."); continue; }
+			if (p.shard.count != count) { r.problem(0, p.file + " is shard " + p.shard + " but " + first.file + " is shard " + first.shard + "."); continue; }
+			if (!p.settings.equals(first.settings)) r.problem(0, p.file + " was fitted with '" + p.settings + "' but " + first.file + " with '" + first.settings + "'.");
+			if (byIndex[p.shard.index] != null) r.problem(0, "Shard " + p.shard + " is in both " + byIndex[p.shard.index].file + " and " + p.file + ".");
+			byIndex[p.shard.index] = p;
+			same.add(p);
+		}
+		for (int i=0; i<count; i++) {
+			if (byIndex[i] == null) r.problem(0, "Shard " + new Shard(i, count) + " is missing.");
+		}
+		if (merged != null && first.format != null && ResultWriter.Format.of(merged.getName()) != first.format) {
+			r.problem(0, merged + " is not " + name(first.format) + ", the format of the parts.");
+		}
+		r.shards = ps.size();
+
+		//2. and 3. complete files, papers in the right shard, no fit twice
+		List<String> slots = Arrays.asList(first.slots);
+		TreeMap<Integer, String[]> fits = new TreeMap<Integer, String[]>(); //paper number -> text of each slot
+		TreeMap<Integer, String> ids = new TreeMap<Integer, String>();
+
+		for (Part p : same) {
+			if (p.format == null) {
+				if (p.footerFits < 0) r.problem(1, p.file + " is not complete (it has no footer).");
+				else if (p.footerFits != p.fits.size()) r.problem(1, p.file + " has " + p.fits.size() + " fits but its footer says " + p.footerFits + ".");
+			} else {
+				long kept = (p.checkpoint.length >= 0) ? p.checkpoint.length : (p.format == ResultWriter.Format.CSV ? (ResultWriter.CSV_HEADER + "\n").length() : 0);
+				long tail = p.file.length() - kept;
+				if (p.checkpoint.pastEnd) r.problem(1, p.file + " is shorter than its checkpoint, it was cut after it was written.");
+				else if (tail > 0) r.problem(1, p.file + " stopped part way through a paper (it has " + tail + " bytes after its last checkpoint), resume it to finish the shard.");
+				TreeSet<Integer> numbers = new TreeSet<Integer>();
+				for (Fit f : p.fits) numbers.add(f.number);
+				if (numbers.size() != p.checkpoint.papers.size()) r.problem(1, p.file + " has " + numbers.size() + " papers but its checkpoint says " + p.checkpoint.papers.size() + ".");
+			}
+			for (String line : p.notFits) r.problem(2, p.file + " has a line that is not a fit: " + line);
+
+			for (Fit f : p.fits) {
+				int w = slots.indexOf(f.slot);
+
+				if (!p.shard.contains(f.id)) r.problem(3, "Paper #" + f.number + " (" + f.id + ") is in " + p.file + " but belongs to shard " + Shard.of(f.id, p.shard.count) + "/" + p.shard.count + ".");
+				if (w < 0) { r.problem(2, "Paper #" + f.number + " (" + f.id + ") has a fit for " + f.slot + ", which was not fitted."); continue; }
+
+				String known = ids.get(f.number);
+				if (known == null) ids.put(f.number, f.id);
+				else if (!known.equals(f.id)) r.problem(4, "Paper #" + f.number + " is both " + known + " and " + f.id + ".");
+
+				String[] t = fits.get(f.number);
+				if (t == null) { t = new String[slots.size()]; fits.put(f.number, t); }
+				if (t[w] != null) r.problem(4, "Paper #" + f.number + " (" + f.id + ", " + f.slot + ") is fitted twice.");
+				t[w] = f.text;
+			}
+		}
+
+		for (Integer number : fits.keySet()) {
+			String[] t = fits.get(number);
+			for (int w=0; w<t.length; w++) {
+				if (t[w] == null) r.problem(5, "Paper #" + number + " (" + ids.get(number) + ") has no fit for " + slots.get(w) + ".");
+			}
+		}
+
+		//4. no paper missing
+		if (expect != null) {
+			List<PaperRecord> papers = CitationReader.readAll(expect);
+			for (int i=0; i<papers.size(); i++) {
+				String id = ids.get(i+1);
+				if (id == null) r.problem(6, "Paper #" + (i+1) + " (" + papers.get(i).id + ") is missing.");
+				else if (!id.equals(papers.get(i).id)) r.problem(6, "Paper #" + (i+1) + " is " + id + " but it is " + papers.get(i).id + " in " + expect + ".");
+			}
+			if (!fits.isEmpty() && fits.lastKey() > papers.size()) r.problem(6, "Paper #" + fits.lastKey() + " is not in " + expect + ", which has " + papers.size() + " papers.");
+		} else if (!fits.isEmpty()) {
+			for (int number=1; number<fits.lastKey(); number++) {
+				if (!fits.containsKey(number)) r.problem(6, "Paper #" + number + " is missing.");
+			}
+		}
+
+		r.papers = fits.size();
+		for (String[] t : fits.values()) for (String text : t) if (text != null) r.fits++;
+
+		if (merged != null && r.isOk()) {
+			if (first.format == null) writeOut(merged, first, fits, r.fits);
+			else writeResults(merged, first, fits, ids);
+		}
+		return r;
+	}
+
+	private static String name(ResultWriter.Format format) {
+		return (format == null) ? "a -out file" : "a " + format + " result file";
+	}
+
+	/**
+	 * This function writes the merged fits of -out files, with the header of the whole file.
+	 */
+	private static void writeOut(File merged, Part first, TreeMap<Integer, String[]> fits, int count) throws IOException {
+		File tmp = new File(merged.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(new FileWriter(tmp));
+		try {
+			out.println(HEADER + " shard=" + new Shard(0, 1) + " " + first.settings);
+			for (String[] t : fits.values()) for (String text : t) out.print(text);
+			out.println(footer(count));
+		} finally {
+			out.close();
+		}
+		replace(tmp, merged);
+	}
+
+	/**
+	 * This function writes the merged fits of result files as 'ResultWriter' does, with a checkpoint after each paper
+	 * and the settings of the whole file, so the merged file reads (and resumes) like the file of one run.
+	 */
+	private static void writeResults(File merged, Part first, TreeMap<Integer, String[]> fits, TreeMap<Integer, String> ids) throws IOException {
+		File tmp = new File(merged.getPath() + ".tmp");
+		File checkpointTmp = new File(ResultWriter.checkpointFile(merged).getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+		Writer checkpoint = new OutputStreamWriter(new FileOutputStream(checkpointTmp), UTF8);
+		try {
+			checkpoint.write(ResultWriter.SETTINGS + first.settings + BatchFitter.SHARD_SETTING + new Shard(0, 1) + "\n");
+			long length = 0;
+			if (first.format == ResultWriter.Format.CSV) {
+				out.write(ResultWriter.CSV_HEADER + "\n");
+				length += (ResultWriter.CSV_HEADER + "\n").getBytes(UTF8).length;
+			}
+			for (Integer number : fits.keySet()) {
+				for (String text : fits.get(number)) {
+					out.write(text);
+					length += text.getBytes(UTF8).length;
+				}
+				checkpoint.write(number + "\t" + ids.get(number) + "\t" + length + "\n");
+			}
+		} finally {
+			try {
+				out.close();
+			} finally {
+				checkpoint.close();
+			}
+		}
+		//The old checkpoint goes first and the new one last, so the merged file is never read with a checkpoint of another file.
+		File checkpointFile = ResultWriter.checkpointFile(merged);
+		if (checkpointFile.exists() && !checkpointFile.delete()) throw new IOException("Could not replace " + checkpointFile);
+		replace(tmp, merged);
+		replace(checkpointTmp, checkpointFile);
+	}
+
+	private static void replace(File tmp, File file) throws IOException {
+		if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+		if (!tmp.renameTo(file)) throw new IOException("Could not write " + file);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		String expect = null;
+		if (args.length > 1 && args[0].equals("-expect")) {
+			expect = args[1];
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length < 2) {
+			System.err.println("Usage: java citation_prediction.ShardMerger [-expect file.csv] merged parts...");
+			System.exit(1);
+		}
+
+		ArrayList<File> parts = new ArrayList<File>();
+		for (int i=1; i<args.length; i++) parts.add(new File(args[i]));
+
+		Report r = merge(parts, new File(args[0]), expect);
+		System.err.println(r);
+		if (!r.isOk()) {
+			System.err.println("Nothing was written to " + args[0] + ".");
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package citation_prediction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Groups the converged start points of a start grid search into unique WSB solutions.
+ * <br><br>
+ * Two solutions are the same when lambda, mu and sigma are each within their tolerance of the first solution of a
+ * cluster. The clusters are kept in a hash of grid cells one tolerance wide, so adding a solution only compares it
+ * with the clusters in the 27 cells around it instead of with every solution found so far. Each cluster counts the
+ * start points that converged to it (its basin), so solutions can be ranked by how many starts reach them.
+ * <br><br>
+ * Solutions with a negative (or NaN) lambda are not WSB solutions and are counted as rejected. Not thread safe.
+ */
+public class SolutionClusters {
+
+	public static final double DEFAULT_TOLERANCE = 1e-2;
+
+	public final double lambdaTolerance;
+	public final double muTolerance;
+	public final double sigmaTolerance;
+
+	/**
+	 * One unique WSB solution and the number of start points that converged to it.
+	 */
+	public static class Cluster {
+		public final double lambda;
+		public final double mu;
+		public final double sigma;
+		int basin;
+
+		Cluster(double lambda, double mu, double sigma) {
+			this.lambda = lambda;
+			this.mu = mu;
+			this.sigma = sigma;
+		}
+
+		/** @return The number of start points that converged to this solution. */
+		public int getBasin() {
+			return basin;
+		}
+
+		/**
+		 * @return The solution as a list of (lambda, mu, sigma, basin), the format returned by 'newtonRaphson_ConvergenceTest'.
+		 */
+		public LinkedHashMap<String, Double> toSolution() {
+			LinkedHashMap<String, Double> s = new LinkedHashMap<String, Double>();
+			s.put("lambda", lambda);
+			s.put("mu", mu);
+			s.put("sigma", sigma);
+			s.put("basin", (double) basin);
+			return s;
+		}
+
+		public String toString() {
+			return toSolution().toString();
+		}
+	}
+
+	private HashMap<Long, ArrayList<Cluster>> cells = new HashMap<Long, ArrayList<Cluster>>();
+	private ArrayList<Cluster> clusters = new ArrayList<Cluster>();
+	private int rejected;
+
+	/**
+	 * @param lambdaTolerance The largest difference in lambda between two solutions that are the same.
+	 * @param muTolerance The largest difference in mu between two solutions that are the same.
+	 * @param sigmaTolerance The largest difference in sigma between two solutions that are the same.
+	 */
+	public SolutionClusters(double lambdaTolerance, double muTolerance, double sigmaTolerance) {
+		if (!(lambdaTolerance > 0 && muTolerance > 0 && sigmaTolerance > 0)) throw new IllegalArgumentException("The tolerances must be positive.");
+		this.lambdaTolerance = lambdaTolerance;
+		this.muTolerance = muTolerance;
+		this.sigmaTolerance = sigmaTolerance;
+	}
+
+	/**
+	 * Uses the default tolerance (1e-2, the tolerance on lambda used by 'newtonRaphson_ConvergenceTest') for all three values.
+	 */
+	public SolutionClusters() {
+		this(DEFAULT_TOLERANCE, DEFAULT_TOLERANCE, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * Remove every cluster (the tolerances are kept).
+	 */
+	public void clear() {
+		cells.clear();
+		clusters.clear();
+		rejected = 0;
+	}
+
+	/**
+	 * Add a converged solution, either to the cluster it is within the tolerances of or as a new cluster.
+	 *
+	 * @param lambda The lambda of the solution.
+	 * @param mu The mu of the solution.
+	 * @param sigma The sigma of the solution.
+	 * @return True if the solution started a new cluster.
+	 */
+	public boolean add(double lambda, double mu, double sigma) {
+		return add(lambda, mu, sigma, 1);
+	}
+
+	/**
+	 * Add a converged solution that stands for several start points, for example a solution refitted from a previous
+	 * solution whose basin was that many start points (see 'newtonRaphson_Refit').
+	 *
+	 * @param lambda The lambda of the solution.
+	 * @param mu The mu of the solution.
+	 * @param sigma The sigma of the solution.
+	 * @param starts The number of start points the solution counts for in the basin of its cluster.
+	 * @return True if the solution started a new cluster.
+	 */
+	public boolean add(double lambda, double mu, double sigma, int starts) {
+
+		if (!(lambda >= 0)) {
+			rejected++;
+			return false;
+		}
+
+		long i = cell(lambda, lambdaTolerance);
+		long j = cell(mu, muTolerance);
+		long k = cell(sigma, sigmaTolerance);
+
+		//A solution within the tolerances of a cluster is at most one cell away from it. If it is close to more
+		//	than one cluster it joins the one found first.
+		for (long a=i-1; a<=i+1; a++) {
+			for (long b=j-1; b<=j+1; b++) {
+				for (long c=k-1; c<=k+1; c++) {
+
+					ArrayList<Cluster> cell = cells.get(hash(a, b, c));
+					if (cell == null) continue;
+
+					for (Cluster cl : cell) {
+						if (Math.abs(cl.lambda - lambda) < lambdaTolerance && Math.abs(cl.mu - mu) < muTolerance && Math.abs(cl.sigma - sigma) < sigmaTolerance) {
+							cl.basin += starts;
+							return false;
+						}
+					}
+				}
+			}
+		}
+
+		Cluster cl = new Cluster(lambda, mu, sigma);
+		cl.basin = starts;
+		clusters.add(cl);
+
+		Long h = hash(i, j, k);
+		ArrayList<Cluster> cell = cells.get(h);
+		if (cell == null) {
+			cell = new ArrayList<Cluster>(1);
+			cells.put(h, cell);
+		}
+		cell.add(cl);
+
+		return true;
+	}
+
+	private static long cell(double value, double tolerance) {
+		return (long) Math.floor(value / tolerance);
+	}
+
+	//Different cells can share a hash, the clusters in a bucket are always compared by value.
+	private static long hash(long i, long j, long k) {
+		return (i * 73856093L) ^ (j * 19349663L) ^ (k * 83492791L);
+	}
+
+	/**
+	 * @return The clusters in the order they were found.
+	 */
+	public ArrayList<Cluster> getClusters() {
+		return new ArrayList<Cluster>(clusters);
+	}
+
+	/**
+	 * @return The clusters from the largest basin to the smallest (clusters with the same basin stay in the order they were found).
+	 */
+	public ArrayList<Cluster> rankedByBasin() {
+		ArrayList<Cluster> r = getClusters();
+		Collections.sort(r, new Comparator<Cluster>() {
+			public int compare(Cluster a, Cluster b) {
+				return b.basin - a.basin;
+			}
+		});
+		return r;
+	}
+
+	/**
+	 * @return The unique solutions (lambda, mu, sigma, basin) in the order they were found.
+	 */
+	public ArrayList<LinkedHashMap<String, Double>> toSolutions() {
+		ArrayList<LinkedHashMap<String, Double>> r = new ArrayList<LinkedHashMap<String, Double>>(clusters.size());
+		for (Cluster cl : clusters) { r.add(cl.toSolution()); }
+		return r;
+	}
+
+	/** @return The number of unique solutions. */
+	public int size() {
+		return clusters.size();
+	}
+
+	public boolean isEmpty() {
+		return clusters.isEmpty();
+	}
+
+	/** @return The number of solutions that were not added because lambda was negative. */
+	public int getRejected() {
+		return rejected;
+	}
+
+	public String toString() {
+		return clusters.toString();
+	}
+}
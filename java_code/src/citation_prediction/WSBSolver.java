@@ -0,0 +1,82 @@
+package citation_prediction;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Estimates a WSB solution (lambda, mu, sigma) of a citation history from one (mu, sigma) start point. The start grid
+ * search ('newtonRaphson_ConvergenceTest'), 'AdaptiveSearch', refits and 'BatchFitter' all solve through this interface.
+ * <br><br>
+ * Implementations:<br>
+ * 	{@link ParksNewtonSolver}: the Newton-Raphson method on Dr. Allen Parks' equations (the default).<br>
+ * 	{@link LevenbergMarquardtSolver}: a damped least squares method on the same equations.<br>
+ * <br>
+ * A solver is shared by every thread of a search, so implementations must be thread safe (all per-solve values
+ * belong in the 'IterationState').
+ */
+public interface WSBSolver {
+
+	/**
+	 * Solve for a WSB solution.
+	 *
+	 * @param data The citation history.
+	 * @param mu The initial mu guess.
+	 * @param sigma The initial sigma guess.
+	 * @param m The average number of new references contained in each paper for a journal.
+	 * @param l The state used to store values for each iteration, it holds the WSB solution when this function returns.
+	 * @return True if a solution was converged on, the solution is in (l.lambda, l.mu, l.sigma, l.iteration).
+	 */
+	boolean solve(CitationData data, double mu, double sigma, double m, IterationState l);
+
+	/**
+	 * @return A short name of the solver and its settings (used in reports and fit cache keys).
+	 */
+	String getName();
+
+	/**
+	 * @return The counts of every solve done by this solver.
+	 */
+	Stats getStats();
+
+	/**
+	 * Counts of the solves done by a solver: the number of solves, how many converged, the iterations and the
+	 * evaluations of the equations (sums over every citation) they took and the wall time spent. Thread safe.
+	 */
+	public static class Stats {
+		public final LongAdder solves = new LongAdder();
+		public final LongAdder converged = new LongAdder();
+		public final LongAdder iterations = new LongAdder();
+		public final LongAdder evaluations = new LongAdder();
+		public final LongAdder nanos = new LongAdder();
+
+		/**
+		 * Count one solve (it is also counted in 'Metrics.GLOBAL').
+		 *
+		 * @param l The state the solve finished with.
+		 * @param converged True if the solve converged.
+		 * @param nanos The wall time of the solve.
+		 */
+		public void add(IterationState l, boolean converged, long nanos) {
+			this.solves.increment();
+			if (converged) this.converged.increment();
+			this.iterations.add(l.iteration);
+			this.evaluations.add(l.evaluations);
+			this.nanos.add(nanos);
+
+			Metrics.GLOBAL.solved(l, converged, nanos);
+		}
+
+		public void reset() {
+			solves.reset();
+			converged.reset();
+			iterations.reset();
+			evaluations.reset();
+			nanos.reset();
+		}
+
+		public String toString() {
+			long s = Math.max(1, solves.sum());
+			return solves.sum() + " solves, " + converged.sum() + " converged, " +
+					String.format("%.2f iterations/solve, %.2f evaluations/solve, %.3fs", (double) iterations.sum()/s, (double) evaluations.sum()/s, nanos.sum()/1e9);
+		}
+	}
+}